@@ -12,6 +12,7 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 
 import com.example.administrator.demox.net.IRequestCallback;
+import com.example.administrator.demox.net.IRequestHandle;
 import com.example.administrator.demox.net.RequestFactory;
 import com.example.administrator.demox.net.SimpleRequestCallback;
 import com.lzy.okgo.OkGo;
@@ -63,6 +64,7 @@ public class TestFragment extends Fragment {
     @ViewInject(R.id.size)
     private TextView size;
     private String info;
+    private IRequestHandle mOkHttpHandle;
 
     @Nullable
     @Override
@@ -90,56 +92,54 @@ public class TestFragment extends Fragment {
     @Event(R.id.ok_1)
     private void visitOkHttp(View view) {
 
-        new Thread() {
+        /**RequestFactory封装了请求操作，内部使用OkHttp3.5，异步请求在Dispatcher的线程池中执行，结果回调到主线程**/
+
+        // get
+        /*mOkHttpHandle = RequestFactory.getRequestManager().getAsync(TEST_URL_HTTPS, new
+        SimpleRequestCallback(getActivity()) {
             @Override
-            public void run() {
-                /**RequestFactory封装了请求操作，内部使用OkHttp3.5，但是是在主线程工作的**/
+            public void onSucceed(String result) {
+                super.onSucceed(result);
+                resultTV.setText(result);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                super.onFailure(throwable);
+            }
+        });*/
+
+        // post
+        String TEST_URL = "http://api.vbrosfitness.com/act/pay/checkAppVersion/";
+        Map<String, String> params = new HashMap<>();
+        params.put("versionCode", "1");
+        params.put("txt", "apk");
+        mOkHttpHandle = RequestFactory.getRequestManager().postAsync(TEST_URL, params, new
+                IRequestCallback() {
 
-                // get
-                /*RequestFactory.getRequestManager().get(TEST_URL_HTTPS, new
-                SimpleRequestCallback(getActivity()) {
                     @Override
-                    public void onSucceed(String result) {
-                        super.onSucceed(result);
+                    public void onNetError(Throwable th) {
 
-                        Message msg = Message.obtain();
-                        msg.obj = result;
-                        mHandler.sendMessage(msg);
+                    }
+
+                    @Override
+                    public void onSucceed(String result) {
+                        resultTV.setText(result);
                     }
 
                     @Override
                     public void onFailure(Throwable throwable) {
-                        super.onFailure(throwable);
+                        Log.e("jason", throwable.getMessage());
                     }
-                });*/
-
-                // post
-                String TEST_URL = "http://api.vbrosfitness.com/act/pay/checkAppVersion/";
-                Map<String, String> params = new HashMap<>();
-                params.put("versionCode", "1");
-                params.put("txt", "apk");
-                RequestFactory.getRequestManager().post(TEST_URL, params, new
-                        IRequestCallback() {
-
-                            @Override
-                            public void onNetError(Throwable th) {
-
-                            }
-
-                            @Override
-                            public void onSucceed(String result) {
-                                Message msg = Message.obtain();
-                                msg.obj = result;
-                                mHandler.sendMessage(msg);
-                            }
-
-                            @Override
-                            public void onFailure(Throwable throwable) {
-                                Log.e("jason", throwable.getMessage());
-                            }
-                        });
-            }
-        }.start();
+                });
+    }
+
+    @Override
+    public void onDestroyView() {
+        if (mOkHttpHandle != null) {
+            mOkHttpHandle.cancel();     // 页面销毁时取消还在进行中的请求
+        }
+        super.onDestroyView();
     }
 
 
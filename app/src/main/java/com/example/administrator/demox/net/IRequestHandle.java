@@ -0,0 +1,13 @@
+package com.example.administrator.demox.net;
+
+/**
+ * 异步请求的句柄，页面销毁时可以用来取消还在进行中的请求
+ * Created by Jason on 2018/1/15.
+ */
+
+public interface IRequestHandle {
+
+    void cancel();
+
+    boolean isCanceled();
+}
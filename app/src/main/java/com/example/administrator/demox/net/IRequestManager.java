@@ -1,5 +1,6 @@
 package com.example.administrator.demox.net;
 
+import java.io.File;
 import java.util.Map;
 
 /**
@@ -12,9 +13,34 @@ public interface IRequestManager {
 
     void post(String url, Map param, IRequestCallback requestCallback);
 
-    void put(String url, IRequestCallback requestCallback);
+    /**
+     * 支持表单、json、multipart、文件等请求体
+     **/
+    void post(String url, RequestParams params, IRequestCallback requestCallback);
+
+    void put(String url, RequestParams params, IRequestCallback requestCallback);
 
     void delete(String url, IRequestCallback requestCallback);
 
-    void download(String url, IRequestCallback requestCallback);
+    /**
+     * 异步下载到文件，边读边写，内存占用与文件大小无关；成功时onSucceed返回文件路径。
+     * 文件已存在时使用Range请求断点续传，并用If-Range校验服务端文件没有变化；
+     * 服务端文件已变化或返回的区间对不上时从头下载
+     **/
+    IRequestHandle download(String url, File file, IRequestCallback requestCallback);
+
+    /**
+     * 异步get，请求在Dispatcher的线程池中执行，不阻塞调用线程
+     **/
+    IRequestHandle getAsync(String url, IRequestCallback requestCallback);
+
+    /**
+     * 异步post，请求在Dispatcher的线程池中执行，不阻塞调用线程
+     **/
+    IRequestHandle postAsync(String url, Map param, IRequestCallback requestCallback);
+
+    /**
+     * 异步get，以流的方式交出响应体
+     **/
+    IRequestHandle stream(String url, IStreamCallback streamCallback);
 }
@@ -0,0 +1,24 @@
+package com.example.administrator.demox.net;
+
+import java.io.IOException;
+
+import okio.BufferedSource;
+
+/**
+ * 流式读取响应体，不会把整个body读成String放在内存里；
+ * 所有方法都在Dispatcher的工作线程回调，读多少取多少，读得慢就不会继续从socket拉取数据
+ * Created by Jason on 2018/1/16.
+ */
+
+public interface IStreamCallback {
+
+    void onNetError(Throwable th);
+
+    /**
+     * @param source        响应体，方法返回后会被关闭，不要在其他线程中继续读取
+     * @param contentLength 响应体长度，未知时为-1
+     **/
+    void onResponse(BufferedSource source, long contentLength) throws IOException;
+
+    void onFailure(Throwable throwable);
+}
@@ -1,10 +1,52 @@
 package com.example.administrator.demox.net;
 
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
 /**
  * Created by Jason on 2018/1/12.
  */
 
 public class NetUtils {
 
+    private static volatile Executor sMainThreadExecutor;
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private NetUtils() {
+    }
+
+    /**
+     * 在主线程回调，可以直接更新UI
+     **/
+    public static Executor mainThreadExecutor() {
+        if (sMainThreadExecutor == null) {
+            synchronized (NetUtils.class) {
+                if (sMainThreadExecutor == null) {
+                    final Handler handler = new Handler(Looper.getMainLooper());
+                    sMainThreadExecutor = new Executor() {
+                        @Override
+                        public void execute(Runnable command) {
+                            handler.post(command);
+                        }
+                    };
+                }
+            }
+        }
+        return sMainThreadExecutor;
+    }
 
+    /**
+     * 直接在Dispatcher的工作线程回调，不做线程切换
+     **/
+    public static Executor directExecutor() {
+        return DIRECT_EXECUTOR;
+    }
 }
@@ -2,17 +2,30 @@ package com.example.administrator.demox.net;
 
 import android.text.TextUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.ConnectionPool;
 import okhttp3.FormBody;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
 import okhttp3.OkHttpClient;
+import okhttp3.Priority;
 import okhttp3.Request;
+import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Sink;
 
 /**
  * Created by Jason on 2018/1/11.
@@ -20,11 +33,39 @@ import okhttp3.Response;
 
 public class OkHttpRequestManager implements IRequestManager {
 
+    private static final long DEFAULT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final long DOWNLOAD_CHUNK_SIZE = 8192;
+
+    private static final MediaType MEDIA_TYPE_JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final MediaType MEDIA_TYPE_STREAM = MediaType.parse("application/octet-stream");
+
     private static OkHttpRequestManager instance;
     private static Object object = new Object();
 
-    private OkHttpRequestManager() {
+    /**
+     * 所有请求共用一个OkHttpClient，连接池、Dispatcher、缓存都是共享的，连接可以keep-alive复用
+     **/
+    private volatile OkHttpClient mOkHttpClient;
 
+    /**
+     * 异步请求结果的回调线程
+     **/
+    private volatile Executor mCallbackExecutor = NetUtils.mainThreadExecutor();
+
+    private OkHttpRequestManager() {
+        mOkHttpClient = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool())       // 自定义参数
+                .connectTimeout(DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .readTimeout(DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .writeTimeout(DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+//                .proxy(new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("10.0.1.84", 8888)))  // 设置Http代理服务器
+//                .hostnameVerifier(new HostnameVerifier() {      // 证书验证
+//                    @Override
+//                    public boolean verify(String hostname, SSLSession session) {
+//                        return true;
+//                    }
+//                })
+                .build();
     }
 
     public static OkHttpRequestManager getInstance() {
@@ -38,9 +79,46 @@ public class OkHttpRequestManager implements IRequestManager {
         return instance;
     }
 
+    /**
+     * 替换共享的OkHttpClient，例如在Application中配置缓存、拦截器、证书等
+     **/
+    public void setOkHttpClient(OkHttpClient okHttpClient) {
+        if (okHttpClient == null) throw new NullPointerException("okHttpClient == null");
+        mOkHttpClient = okHttpClient;
+    }
+
+    public OkHttpClient getOkHttpClient() {
+        return mOkHttpClient;
+    }
+
+    /**
+     * 单个请求需要不同超时时间时，通过newBuilder()派生，派生出的client仍然共享连接池、Dispatcher和缓存
+     **/
+    private OkHttpClient client(long timeoutMillis) {
+        OkHttpClient okHttpClient = mOkHttpClient;
+        if (timeoutMillis <= 0
+                || (okHttpClient.connectTimeoutMillis() == timeoutMillis
+                && okHttpClient.readTimeoutMillis() == timeoutMillis
+                && okHttpClient.writeTimeoutMillis() == timeoutMillis)) {
+            return okHttpClient;
+        }
+        return okHttpClient.newBuilder()
+                .connectTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .readTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .writeTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
 
     @Override
     public void get(String url, IRequestCallback requestCallback) {
+        get(url, 0, requestCallback);
+    }
+
+    /**
+     * @param timeoutMillis 本次请求的超时时间，小于等于0时使用共享client的配置
+     **/
+    public void get(String url, long timeoutMillis, IRequestCallback requestCallback) {
 
         /*
         // 网络连接不可用，网络错误
@@ -49,66 +127,155 @@ public class OkHttpRequestManager implements IRequestManager {
             return;
         }*/
 
-        OkHttpClient okHttpClient = new OkHttpClient.Builder()
-                .connectionPool(new ConnectionPool())       // 自定义参数
-//                .proxy(new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved("10.0.1.84", 8888)))  // 设置Http代理服务器
-//                .hostnameVerifier(new HostnameVerifier() {      // 证书验证
-//                    @Override
-//                    public boolean verify(String hostname, SSLSession session) {
-//                        return true;
-//                    }
-//                })
-                .build();
+        execute(client(timeoutMillis).newCall(newRequest("GET", url, null)), requestCallback);
+    }
 
-        /* original request */
-        Request request = new Request.Builder()
-                .url(url)
-                .method("GET", null)
-                .build();
+    @Override
+    public void post(String url, Map params, IRequestCallback requestCallback) {
+        post(url, params, 0, requestCallback);
+    }
 
-        Call call = okHttpClient.newCall(request);
+    /**
+     * @param timeoutMillis 本次请求的超时时间，小于等于0时使用共享client的配置
+     **/
+    public void post(String url, Map params, long timeoutMillis, IRequestCallback requestCallback) {
+        execute(client(timeoutMillis).newCall(newRequest("POST", url, formBody(params))),
+                requestCallback);
+    }
 
-        try {
+    @Override
+    public void post(String url, RequestParams params, IRequestCallback requestCallback) {
+        execute(mOkHttpClient.newCall(newRequest("POST", url, requestBody(params))),
+                requestCallback);
+    }
 
-            Response response = call.execute();     // 同步执行
+    @Override
+    public void put(String url, RequestParams params, IRequestCallback requestCallback) {
+        execute(mOkHttpClient.newCall(newRequest("PUT", url, requestBody(params))),
+                requestCallback);
+    }
 
-            /*call.enqueue(new Callback() {       // 异步调用
-                @Override
-                public void onFailure(Call call, IOException e) {
+    @Override
+    public void delete(String url, IRequestCallback requestCallback) {
+        execute(mOkHttpClient.newCall(newRequest("DELETE", url, null)), requestCallback);
+    }
 
-                }
+    @Override
+    public IRequestHandle getAsync(String url, IRequestCallback requestCallback) {
+        return enqueue(mOkHttpClient.newCall(newRequest("GET", url, null)), requestCallback);
+    }
 
-                @Override
-                public void onResponse(Call call, Response response) throws IOException {
+    @Override
+    public IRequestHandle postAsync(String url, Map params, IRequestCallback requestCallback) {
+        return enqueue(mOkHttpClient.newCall(newRequest("POST", url, formBody(params))),
+                requestCallback);
+    }
 
-                }
-            });*/
+    @Override
+    public IRequestHandle stream(String url, IStreamCallback streamCallback) {
+        return enqueueStream(mOkHttpClient.newCall(newRequest("GET", url, null)), streamCallback);
+    }
 
+    @Override
+    public IRequestHandle download(String url, File file, IRequestCallback requestCallback) {
+        long downloaded = file.exists() ? file.length() : 0;
+        OkHttpRequestHandle handle = new OkHttpRequestHandle(newDownloadCall(url, file, downloaded));
+        enqueueDownload(handle, url, file, downloaded, requestCallback);
+        return handle;
+    }
 
-            /**取得请求响应的结果**/
-            String result = response.body().string();
-            if (!TextUtils.isEmpty(result)) {
-                requestCallback.onSucceed(result);
-            } else {
-                requestCallback.onFailure(new NullPointerException("no result !!!"));
+    private Call newDownloadCall(String url, File file, long downloaded) {
+        // 下载属于后台批量流量，排队时让位于界面请求
+        Request.Builder builder = new Request.Builder()
+                .url(url)
+                .priority(Priority.LOW)
+                .get();
+        if (downloaded > 0) {
+            // 断点续传；显式关闭gzip，否则Range对应的是压缩后的字节
+            builder.header("Range", "bytes=" + downloaded + "-")
+                    .header("Accept-Encoding", "identity");
+            // 服务端文件已经变化时If-Range让它返回完整的200，避免把新旧两个版本拼在一起
+            String validator = readValidator(file);
+            if (validator != null) {
+                builder.header("If-Range", validator);
             }
+        }
+        return mOkHttpClient.newCall(builder.build());
+    }
 
-        } catch (SocketTimeoutException e) {
+    private void enqueueDownload(final OkHttpRequestHandle handle, final String url, final File file,
+                                 final long downloaded, final IRequestCallback requestCallback) {
+        final Executor callbackExecutor = mCallbackExecutor;
+        handle.call().enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                deliverFailure(callbackExecutor, call, e, requestCallback);     // 保留已下载的部分，下次继续
+            }
 
-            requestCallback.onNetError(e);   // 连接出现超时错误
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                ResponseBody body = response.body();
+                try {
+                    Sink sink;
+                    if (response.code() == 206) {
+                        if (rangeStart(response) != downloaded) {
+                            if (downloaded == 0) {
+                                throw new IOException("Unexpected Content-Range "
+                                        + response.header("Content-Range"));
+                            }
+                            // 返回的区间和本地文件对不上，丢弃本地文件从头下载
+                            body.close();
+                            if (file.delete() || !file.exists()) {
+                                deleteValidator(file);
+                                handle.follow(newDownloadCall(url, file, 0));
+                                enqueueDownload(handle, url, file, 0, requestCallback);
+                                return;
+                            }
+                            throw new IOException("failed to delete " + file);
+                        }
+                        sink = Okio.appendingSink(file);        // 服务端支持Range，从断点处追加
+                    } else if (response.code() == 416 && isComplete(response, downloaded)) {
+                        deleteValidator(file);
+                        deliverResult(callbackExecutor, call, file.getAbsolutePath(), requestCallback);
+                        return;
+                    } else if (response.isSuccessful()) {
+                        writeValidator(file, response);
+                        sink = Okio.sink(file);                 // 不支持Range或文件已变化，重新下载
+                    } else {
+                        throw new IOException("Unexpected code " + response);
+                    }
+                    writeTo(body.source(), sink);
+                    deleteValidator(file);
+                    deliverResult(callbackExecutor, call, file.getAbsolutePath(), requestCallback);
+                } catch (IOException e) {
+                    onFailure(call, e);
+                } finally {
+                    body.close();
+                }
+            }
+        });
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    /**
+     * 设置异步请求结果的回调线程，默认回调到主线程
+     *
+     * @see NetUtils#mainThreadExecutor()
+     * @see NetUtils#directExecutor()
+     **/
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        if (callbackExecutor == null) throw new NullPointerException("callbackExecutor == null");
+        mCallbackExecutor = callbackExecutor;
     }
 
-    @Override
-    public void post(String url, Map params, IRequestCallback requestCallback) {
-        OkHttpClient okHttpClient = new OkHttpClient.Builder()
-                .connectionPool(new ConnectionPool())       // 自定义连接池
+    private static Request newRequest(String method, String url, RequestBody body) {
+        return new Request.Builder()
+                .url(url)
+                .method(method, body)
                 .build();
+    }
 
-        /*表单数据*/
+    /*表单数据*/
+    private static FormBody formBody(Map params) {
         FormBody.Builder requestBodyBuilder = new FormBody.Builder();
         if(params != null) {
             Iterator iterator = params.entrySet().iterator();
@@ -118,19 +285,49 @@ public class OkHttpRequestManager implements IRequestManager {
                 requestBodyBuilder.add(entry.getKey(), entry.getValue());
             }
         }
+        return requestBodyBuilder.build();
+    }
 
-        Request request = new Request.Builder()
-                .url(url)
-                .method("POST", requestBodyBuilder.build())
-//                .post(requestBodyBuilder.build())
-                .build();
-
-        Call call = okHttpClient.newCall(request);
+    /**
+     * 把RequestParams序列化为OkHttp的RequestBody；文件都是在writeTo时才流式读取
+     **/
+    private static RequestBody requestBody(RequestParams params) {
+        switch (params.type()) {
+            case RequestParams.TYPE_FORM:
+                return formBody(params.fields());
+            case RequestParams.TYPE_JSON:
+                return RequestBody.create(MEDIA_TYPE_JSON, params.json());
+            case RequestParams.TYPE_MULTIPART:
+                MultipartBody.Builder builder = new MultipartBody.Builder()
+                        .setType(MultipartBody.FORM);
+                for (Map.Entry<String, String> entry : params.fields().entrySet()) {
+                    builder.addFormDataPart(entry.getKey(), entry.getValue());
+                }
+                for (Map.Entry<String, File> entry : params.files().entrySet()) {
+                    File file = entry.getValue();
+                    builder.addFormDataPart(entry.getKey(), file.getName(),
+                            RequestBody.create(MEDIA_TYPE_STREAM, file));
+                }
+                return builder.build();
+            case RequestParams.TYPE_FILE:
+                MediaType contentType = params.contentType() != null
+                        ? MediaType.parse(params.contentType())
+                        : MEDIA_TYPE_STREAM;
+                return RequestBody.create(contentType, params.file());
+            default:
+                throw new IllegalArgumentException("unknown params type: " + params.type());
+        }
+    }
 
+    /**
+     * 同步执行，所有请求方法共用的结果处理
+     **/
+    private static void execute(Call call, IRequestCallback requestCallback) {
         try {
 
             Response response = call.execute();     // 同步执行
 
+            /**取得请求响应的结果**/
             String result = response.body().string();
             if (!TextUtils.isEmpty(result)) {
                 requestCallback.onSucceed(result);
@@ -143,22 +340,215 @@ public class OkHttpRequestManager implements IRequestManager {
             requestCallback.onNetError(e);   // 连接出现超时错误
 
         } catch (IOException e) {
-            e.printStackTrace();
+            requestCallback.onFailure(e);
         }
     }
 
-    @Override
-    public void put(String url, IRequestCallback requestCallback) {
+    /**
+     * 交给Dispatcher异步执行，不需要为每个请求单独开线程；结果通过mCallbackExecutor回调
+     **/
+    private IRequestHandle enqueue(Call call, final IRequestCallback requestCallback) {
+        final Executor callbackExecutor = mCallbackExecutor;
+        call.enqueue(new Callback() {       // 异步调用
+            @Override
+            public void onFailure(Call call, IOException e) {
+                deliverFailure(callbackExecutor, call, e, requestCallback);
+            }
 
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                final String result;
+                try {
+                    result = response.body().string();      // 在工作线程读取body
+                } catch (IOException e) {
+                    onFailure(call, e);
+                    return;
+                }
+                deliverResult(callbackExecutor, call, result, requestCallback);
+            }
+        });
+        return new OkHttpRequestHandle(call);
     }
 
-    @Override
-    public void delete(String url, IRequestCallback requestCallback) {
+    /**
+     * 响应体以BufferedSource交给调用方，由调用方按需读取，读完后关闭
+     **/
+    private static IRequestHandle enqueueStream(Call call, final IStreamCallback streamCallback) {
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                if (call.isCanceled()) return;      // 已取消的请求不再回调
+                if (e instanceof SocketTimeoutException) {
+                    streamCallback.onNetError(e);
+                } else {
+                    streamCallback.onFailure(e);
+                }
+            }
 
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                ResponseBody body = response.body();
+                try {
+                    if (!response.isSuccessful()) {
+                        throw new IOException("Unexpected code " + response);
+                    }
+                    streamCallback.onResponse(body.source(), body.contentLength());
+                } catch (IOException e) {
+                    onFailure(call, e);
+                } finally {
+                    body.close();
+                }
+            }
+        });
+        return new OkHttpRequestHandle(call);
     }
 
-    @Override
-    public void download(String url, IRequestCallback requestCallback) {
+    /**
+     * 一次搬运一个segment大小的数据并立即写入文件，大文件也不会整个留在内存里
+     **/
+    private static void writeTo(BufferedSource source, Sink fileSink) throws IOException {
+        BufferedSink sink = Okio.buffer(fileSink);
+        try {
+            while (source.read(sink.buffer(), DOWNLOAD_CHUNK_SIZE) != -1) {
+                sink.emitCompleteSegments();
+            }
+        } finally {
+            sink.close();
+        }
+    }
+
+    /**
+     * 206响应Content-Range的起始位置，格式为"bytes start-end/total"，无法解析时返回-1
+     **/
+    private static long rangeStart(Response response) {
+        String contentRange = response.header("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes ")) return -1;
+        int dash = contentRange.indexOf('-', 6);
+        if (dash == -1) return -1;
+        try {
+            return Long.parseLong(contentRange.substring(6, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 续传用的校验值保存在下载文件旁边，下载完成后删除
+     **/
+    private static File validatorFile(File file) {
+        return new File(file.getPath() + ".validator");
+    }
 
+    private static String readValidator(File file) {
+        File validatorFile = validatorFile(file);
+        if (!validatorFile.exists()) return null;
+        try {
+            BufferedSource source = Okio.buffer(Okio.source(validatorFile));
+            try {
+                String validator = source.readUtf8().trim();
+                return validator.isEmpty() ? null : validator;
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 优先保存强ETag；弱ETag不能用于If-Range，此时退而使用Last-Modified
+     **/
+    private static void writeValidator(File file, Response response) throws IOException {
+        String validator = response.header("ETag");
+        if (validator == null || validator.startsWith("W/")) {
+            validator = response.header("Last-Modified");
+        }
+        if (validator == null) {
+            deleteValidator(file);
+            return;
+        }
+        BufferedSink sink = Okio.buffer(Okio.sink(validatorFile(file)));
+        try {
+            sink.writeUtf8(validator);
+        } finally {
+            sink.close();
+        }
+    }
+
+    private static void deleteValidator(File file) {
+        validatorFile(file).delete();
+    }
+
+    /**
+     * 416时Content-Range中给出的总长度和本地文件一致，说明已经下载完成
+     **/
+    private static boolean isComplete(Response response, long downloaded) {
+        String contentRange = response.header("Content-Range");
+        return contentRange != null && contentRange.equals("bytes */" + downloaded);
+    }
+
+    private static void deliverFailure(Executor callbackExecutor, final Call call,
+                                       final Throwable e, final IRequestCallback requestCallback) {
+        if (call.isCanceled()) return;      // 已取消的请求不再回调
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (call.isCanceled()) return;
+                if (e instanceof SocketTimeoutException) {
+                    requestCallback.onNetError(e);   // 连接出现超时错误
+                } else {
+                    requestCallback.onFailure(e);
+                }
+            }
+        });
+    }
+
+    private static void deliverResult(Executor callbackExecutor, final Call call,
+                                      final String result, final IRequestCallback requestCallback) {
+        if (call.isCanceled()) return;
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (call.isCanceled()) return;
+                if (!TextUtils.isEmpty(result)) {
+                    requestCallback.onSucceed(result);
+                } else {
+                    requestCallback.onFailure(new NullPointerException("no result !!!"));
+                }
+            }
+        });
+    }
+
+    static final class OkHttpRequestHandle implements IRequestHandle {
+
+        private volatile Call call;
+        private volatile boolean canceled;
+
+        OkHttpRequestHandle(Call call) {
+            this.call = call;
+        }
+
+        Call call() {
+            return call;
+        }
+
+        /**
+         * 续传失败从头下载时改为跟踪新的请求，句柄已取消则新请求也取消
+         **/
+        void follow(Call call) {
+            this.call = call;
+            if (canceled) call.cancel();
+        }
+
+        @Override
+        public void cancel() {
+            canceled = true;
+            call.cancel();
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return canceled || call.isCanceled();
+        }
     }
 }
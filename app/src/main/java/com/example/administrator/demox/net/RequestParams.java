@@ -0,0 +1,89 @@
+package com.example.administrator.demox.net;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 请求体参数，与具体的网络库无关，由IRequestManager的实现负责序列化
+ * 支持：表单、json、multipart（表单字段+文件）、直接上传单个文件（流式读取，不会整个读进内存）
+ * Created by Jason on 2018/1/17.
+ */
+
+public final class RequestParams {
+
+    public static final int TYPE_FORM = 0;
+    public static final int TYPE_JSON = 1;
+    public static final int TYPE_MULTIPART = 2;
+    public static final int TYPE_FILE = 3;
+
+    private final int type;
+    private final Map<String, String> fields;
+    private final Map<String, File> files;
+    private final String json;
+    private final File file;
+    private final String contentType;
+
+    private RequestParams(int type, Map<String, String> fields, Map<String, File> files,
+                          String json, File file, String contentType) {
+        this.type = type;
+        this.fields = fields != null
+                ? Collections.unmodifiableMap(new LinkedHashMap<>(fields))
+                : Collections.<String, String>emptyMap();
+        this.files = files != null
+                ? Collections.unmodifiableMap(new LinkedHashMap<>(files))
+                : Collections.<String, File>emptyMap();
+        this.json = json;
+        this.file = file;
+        this.contentType = contentType;
+    }
+
+    public static RequestParams form(Map<String, String> fields) {
+        return new RequestParams(TYPE_FORM, fields, null, null, null, null);
+    }
+
+    public static RequestParams json(String json) {
+        if (json == null) throw new NullPointerException("json == null");
+        return new RequestParams(TYPE_JSON, null, null, json, null, null);
+    }
+
+    /**
+     * @param files key为表单字段名，文件名取File.getName()
+     **/
+    public static RequestParams multipart(Map<String, String> fields, Map<String, File> files) {
+        return new RequestParams(TYPE_MULTIPART, fields, files, null, null, null);
+    }
+
+    /**
+     * @param contentType 为null时使用application/octet-stream
+     **/
+    public static RequestParams file(File file, String contentType) {
+        if (file == null) throw new NullPointerException("file == null");
+        return new RequestParams(TYPE_FILE, null, null, null, file, contentType);
+    }
+
+    public int type() {
+        return type;
+    }
+
+    public Map<String, String> fields() {
+        return fields;
+    }
+
+    public Map<String, File> files() {
+        return files;
+    }
+
+    public String json() {
+        return json;
+    }
+
+    public File file() {
+        return file;
+    }
+
+    public String contentType() {
+        return contentType;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import okhttp3.internal.Util;
+import okio.Buffer;
+import okio.ByteString;
+
+/**
+ * Publishes a response body as a stream of {@link ByteString} chunks, reading from the network only
+ * as fast as its subscriber requests chunks. Obtain one with {@link ResponseBody#publisher}.
+ * <p>
+ * <p>The {@link Subscriber} and {@link Subscription} interfaces mirror those of Reactive Streams
+ * and {@code java.util.concurrent.Flow}, so adapting to either takes a few lines. They follow the
+ * same rules: signals to the subscriber are serial, {@link Subscription#request} may be called from
+ * any thread including from within {@link Subscriber#onNext}, and a request for {@code n <= 0}
+ * chunks fails the subscription.
+ * <p>
+ * <p>Chunks are read on the executor given to {@link ResponseBody#publisher}, and only while the
+ * subscriber has outstanding demand. A subscriber that stops requesting holds no thread, so a small
+ * executor can serve many slow consumers. Reading a chunk still blocks an executor thread until the
+ * server sends it.
+ * <p>
+ * <p>A publisher accepts only one subscriber, since the body can be consumed only once. The body is
+ * closed when the stream completes, fails or is canceled.
+ */
+public final class BodyPublisher {
+    /** Each chunk is at most one okio segment. */
+    static final long CHUNK_SIZE = 8192;
+
+    private final ResponseBody body;
+    private final Executor executor;
+
+    // 以下字段由this保护
+    private boolean subscribed;
+    private Subscriber subscriber;
+    private long demand;
+    /** True while a thread is signaling the subscriber; it owns the body until it stops. */
+    private boolean draining;
+    /** An error to signal once it's this publisher's turn to signal. */
+    private Throwable pendingError;
+    private boolean canceled;
+    /** True once the stream has terminated or been canceled and the body closed or closing. */
+    private boolean done;
+
+    BodyPublisher(ResponseBody body, Executor executor) {
+        this.body = body;
+        this.executor = executor;
+    }
+
+    public interface Subscriber {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(ByteString chunk);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /** Adds {@code n} chunks to the demand. */
+        void request(long n);
+
+        /** Stops the stream and closes the body. No further signals are sent, except ones in flight. */
+        void cancel();
+    }
+
+    public void subscribe(Subscriber subscriber) {
+        if (subscriber == null) throw new NullPointerException("subscriber == null");
+        boolean rejected;
+        synchronized (this) {
+            rejected = subscribed;
+            if (!rejected) {
+                subscribed = true;
+                this.subscriber = subscriber;
+            }
+        }
+        if (rejected) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Only one subscriber is allowed"));
+            return;
+        }
+
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                BodyPublisher.this.request(n);
+            }
+
+            @Override
+            public void cancel() {
+                BodyPublisher.this.cancel();
+            }
+        });
+    }
+
+    private void request(long n) {
+        synchronized (this) {
+            if (done || canceled) return;
+            if (n <= 0) {
+                pendingError = new IllegalArgumentException("n <= 0: " + n);
+            } else {
+                demand += n;
+                if (demand < 0) demand = Long.MAX_VALUE; // 溢出时视为无限需求
+            }
+            if (draining) return; // 正在发送的线程会处理新的需求或错误
+            draining = true;
+            if (pendingError != null) {
+                // 不需要读取，直接在当前线程通知错误
+                n = 0;
+            }
+        }
+        if (n <= 0) {
+            drain();
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                pendingError = e;
+            }
+            drain();
+        }
+    }
+
+    private void cancel() {
+        synchronized (this) {
+            if (done || canceled) return;
+            canceled = true;
+            // 正在读取时由读取线程负责关闭，避免与读操作并发
+            if (draining) return;
+            done = true;
+        }
+        Util.closeQuietly(body);
+    }
+
+    /**
+     * Signals the subscriber until there's no demand left or the stream terminates. Only one thread
+     * drains at a time, which keeps signals serial.
+     */
+    private void drain() {
+        Subscriber subscriber;
+        synchronized (this) {
+            subscriber = this.subscriber;
+        }
+        Buffer buffer = new Buffer();
+        while (true) {
+            Throwable error;
+            synchronized (this) {
+                if (canceled) {
+                    done = true;
+                    draining = false;
+                    break;
+                }
+                error = pendingError;
+                if (error == null && demand == 0) {
+                    draining = false;
+                    return;
+                }
+                if (error != null) {
+                    done = true;
+                    draining = false;
+                } else if (demand != Long.MAX_VALUE) {
+                    demand--;
+                }
+            }
+
+            if (error != null) {
+                Util.closeQuietly(body);
+                subscriber.onError(error);
+                return;
+            }
+
+            long read;
+            try {
+                read = body.source().read(buffer, CHUNK_SIZE);
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    pendingError = e;
+                }
+                continue;
+            }
+
+            if (read == -1L) {
+                synchronized (this) {
+                    if (canceled) continue;
+                    done = true;
+                    draining = false;
+                }
+                Util.closeQuietly(body);
+                subscriber.onComplete();
+                return;
+            }
+            subscriber.onNext(buffer.readByteString());
+        }
+        // 已被取消
+        Util.closeQuietly(body);
+    }
+}
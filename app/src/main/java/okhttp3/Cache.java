@@ -28,6 +28,7 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import okhttp3.internal.Util;
 import okhttp3.internal.cache.CacheRequest;
@@ -69,6 +70,7 @@ import okio.Source;
  * the response, the client will issue a conditional {@code GET}. The server will then send either
  * the updated response if it has changed, or a short 'not modified' response if the client's copy
  * is still valid. Such responses increment both the network count and hit count.
+ * {@link #conditionalCount()} and {@link #conditionalHitCount()} break those validations out.
  *
  * <p>The best way to improve the cache hit rate is by configuring the web server to return
  * cacheable responses. Although this client honors all <a
@@ -174,12 +176,17 @@ public final class Cache implements Closeable, Flushable {
 
     final DiskLruCache cache;
 
-    /* read and write statistics, all guarded by 'this' */
+    /* write statistics, guarded by 'this' */
     int writeSuccessCount;
     int writeAbortCount;
-    private int networkCount;
-    private int hitCount;
-    private int requestCount;
+
+    /* read statistics, atomic so tracking a response never contends on the cache's lock */
+    private final AtomicInteger networkCount = new AtomicInteger();
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private final AtomicInteger conditionalCount = new AtomicInteger();
+    private final AtomicInteger conditionalHitCount = new AtomicInteger();
+    private final AtomicInteger unsatisfiableCount = new AtomicInteger();
 
     public Cache(File directory, long maxSize) {
         this(directory, maxSize, FileSystem.SYSTEM);
@@ -415,32 +422,58 @@ public final class Cache implements Closeable, Flushable {
         return cache.isClosed();
     }
 
-    synchronized void trackResponse(CacheStrategy cacheStrategy) {
-        requestCount++;
+    void trackResponse(CacheStrategy cacheStrategy) {
+        requestCount.incrementAndGet();
 
         if (cacheStrategy.networkRequest != null) {
             // If this is a conditional request, we'll increment hitCount if/when it hits.
-            networkCount++;
+            networkCount.incrementAndGet();
+            if (cacheStrategy.cacheResponse != null) {
+                conditionalCount.incrementAndGet();
+            }
         } else if (cacheStrategy.cacheResponse != null) {
             // This response uses the cache and not the network. That's a cache hit.
-            hitCount++;
+            hitCount.incrementAndGet();
+        } else {
+            // only-if-cached with nothing usable in the cache: the call gets a 504.
+            unsatisfiableCount.incrementAndGet();
         }
     }
 
-    synchronized void trackConditionalCacheHit() {
-        hitCount++;
+    void trackConditionalCacheHit() {
+        hitCount.incrementAndGet();
+        conditionalHitCount.incrementAndGet();
+    }
+
+    public int networkCount() {
+        return networkCount.get();
+    }
+
+    public int hitCount() {
+        return hitCount.get();
     }
 
-    public synchronized int networkCount() {
-        return networkCount;
+    public int requestCount() {
+        return requestCount.get();
     }
 
-    public synchronized int hitCount() {
-        return hitCount;
+    /**
+     * Returns the number of requests that were sent to the network to validate a cached response.
+     * Those that came back unmodified are also counted by {@link #conditionalHitCount()}.
+     */
+    public int conditionalCount() {
+        return conditionalCount.get();
+    }
+
+    public int conditionalHitCount() {
+        return conditionalHitCount.get();
     }
 
-    public synchronized int requestCount() {
-        return requestCount;
+    /**
+     * Returns the number of {@code only-if-cached} requests that could not be satisfied by the cache.
+     */
+    public int unsatisfiableCount() {
+        return unsatisfiableCount.get();
     }
 
     private final class CacheRequestImpl implements CacheRequest {
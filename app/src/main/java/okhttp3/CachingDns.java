@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.internal.Util;
+
+/**
+ * A {@link Dns} that remembers the results of another, by default {@link Dns#SYSTEM}. Each result
+ * is kept for a fixed time to live, and failed lookups for a shorter one, so a host that doesn't
+ * resolve isn't asked about on every call. Concurrent lookups of a host that isn't cached share a
+ * single request to the delegate.
+ * <p>
+ * <p>A hostname that is looked up again after most of its time to live has passed is refreshed in
+ * the background, so popular hosts stay cached without a call ever waiting for the resolver. If the
+ * refresh fails the cached addresses are kept until they expire.
+ * <p>
+ * <p>Neither the JDK nor Android exposes the TTL of a DNS record, so the time to live is the same
+ * for every host. Call {@link #evictAll()} when the network changes.
+ * <p>
+ * <pre>   {@code
+ *
+ *   OkHttpClient client = new OkHttpClient.Builder()
+ *       .dns(new CachingDns.Builder()
+ *           .ttl(1, TimeUnit.MINUTES)
+ *           .build())
+ *       .build();
+ * }</pre>
+ */
+public final class CachingDns implements Dns {
+    /** Refresh once this fraction of an entry's time to live has passed. */
+    private static final double REFRESH_AFTER = 0.75;
+
+    private static Executor defaultRefreshExecutor;
+
+    private final Dns delegate;
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final Executor refreshExecutor;
+
+    /** Cached results by hostname, least recently used first. Guarded by this. */
+    private final Map<String, CachedLookup> entries;
+    /** Lookups of uncached hostnames in progress. Guarded by this. */
+    private final Map<String, Lookup> inFlight = new HashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong negativeHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong sharedLookupCount = new AtomicLong();
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    CachingDns(Builder builder) {
+        this.delegate = builder.delegate;
+        this.maxEntries = builder.maxEntries;
+        this.ttlNanos = builder.ttlNanos;
+        this.negativeTtlNanos = builder.negativeTtlNanos;
+        this.refreshExecutor = builder.refreshExecutor != null
+                ? builder.refreshExecutor
+                : defaultRefreshExecutor();
+        this.entries = new LinkedHashMap<String, CachedLookup>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedLookup> eldest) {
+                return size() > CachingDns.this.maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+        if (hostname == null) throw new UnknownHostException("hostname == null");
+
+        Lookup lookup;
+        boolean owner = false;
+        synchronized (this) {
+            CachedLookup entry = entries.get(hostname);
+            long now = System.nanoTime();
+            if (entry != null && now - entry.expiresAtNanos < 0) {
+                if (entry.failure != null) {
+                    negativeHitCount.incrementAndGet();
+                    throw copyOf(entry.failure);
+                }
+                hitCount.incrementAndGet();
+                if (!entry.refreshing && now - entry.refreshAtNanos >= 0) {
+                    entry.refreshing = true;
+                    refreshLater(hostname, entry);
+                }
+                return entry.addresses;
+            }
+
+            // 同一个hostname只向delegate发起一次查询，其他线程等待它的结果
+            lookup = inFlight.get(hostname);
+            if (lookup == null) {
+                lookup = new Lookup();
+                inFlight.put(hostname, lookup);
+                owner = true;
+                missCount.incrementAndGet();
+            } else {
+                sharedLookupCount.incrementAndGet();
+            }
+        }
+
+        if (owner) resolve(hostname, lookup);
+        return lookup.await();
+    }
+
+    /** Looks up {@code hostname} with the delegate, caches the result and completes {@code lookup}. */
+    private void resolve(String hostname, Lookup lookup) {
+        List<InetAddress> addresses = null;
+        UnknownHostException failure = null;
+        try {
+            addresses = Collections.unmodifiableList(new ArrayList<>(delegate.lookup(hostname)));
+        } catch (UnknownHostException e) {
+            failure = e;
+        } finally {
+            if (addresses == null && failure == null) {
+                // delegate抛出了非预期的异常，不缓存，等待的线程也按查询失败处理
+                failure = new UnknownHostException("Lookup of " + hostname + " failed");
+                synchronized (this) {
+                    inFlight.remove(hostname);
+                }
+            } else {
+                long now = System.nanoTime();
+                synchronized (this) {
+                    entries.put(hostname, addresses != null
+                            ? new CachedLookup(addresses, null, now, ttlNanos)
+                            : new CachedLookup(null, failure, now, negativeTtlNanos));
+                    inFlight.remove(hostname);
+                }
+            }
+            lookup.complete(addresses, failure);
+        }
+    }
+
+    private void refreshLater(final String hostname, final CachedLookup entry) {
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    refresh(hostname, entry);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.refreshing = false;
+        }
+    }
+
+    private void refresh(String hostname, CachedLookup entry) {
+        List<InetAddress> addresses = null;
+        try {
+            addresses = Collections.unmodifiableList(new ArrayList<>(delegate.lookup(hostname)));
+        } catch (UnknownHostException | RuntimeException ignored) {
+            // 刷新失败时保留旧结果直到过期
+        }
+        long now = System.nanoTime();
+        synchronized (this) {
+            entry.refreshing = false;
+            if (addresses == null) return;
+            refreshCount.incrementAndGet();
+            // 刷新期间条目可能已被驱逐或替换，只更新仍在缓存中的那个
+            if (entries.get(hostname) == entry) {
+                entries.put(hostname, new CachedLookup(addresses, null, now, ttlNanos));
+            }
+        }
+    }
+
+    /** Forgets every cached result, for example after the device switched networks. */
+    public synchronized void evictAll() {
+        entries.clear();
+    }
+
+    /** Returns the number of hostnames cached, including expired ones not yet evicted. */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Returns the number of lookups answered with cached addresses. */
+    public long hitCount() {
+        return hitCount.get();
+    }
+
+    /** Returns the number of lookups answered with a cached failure. */
+    public long negativeHitCount() {
+        return negativeHitCount.get();
+    }
+
+    /** Returns the number of lookups that asked the delegate. */
+    public long missCount() {
+        return missCount.get();
+    }
+
+    /** Returns the number of lookups that waited for another thread's lookup of the same host. */
+    public long sharedLookupCount() {
+        return sharedLookupCount.get();
+    }
+
+    /** Returns the number of background refreshes that updated an entry. */
+    public long refreshCount() {
+        return refreshCount.get();
+    }
+
+    /** An {@link UnknownHostException} can't be shared: each thrower fills in its own stack. */
+    private static UnknownHostException copyOf(UnknownHostException failure) {
+        UnknownHostException result = new UnknownHostException(failure.getMessage());
+        result.initCause(failure);
+        return result;
+    }
+
+    private static synchronized Executor defaultRefreshExecutor() {
+        if (defaultRefreshExecutor == null) {
+            // 刷新会阻塞在系统解析器上，不占用共享时间轮的工作线程
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), Util.threadFactory("OkHttp Dns Refresh", true));
+            executor.allowCoreThreadTimeOut(true);
+            defaultRefreshExecutor = executor;
+        }
+        return defaultRefreshExecutor;
+    }
+
+    static final class CachedLookup {
+        final List<InetAddress> addresses;
+        final UnknownHostException failure;
+        final long refreshAtNanos;
+        final long expiresAtNanos;
+        boolean refreshing; // 由CachingDns.this保护
+
+        CachedLookup(List<InetAddress> addresses, UnknownHostException failure, long now,
+                     long ttlNanos) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.refreshAtNanos = now + (long) (ttlNanos * REFRESH_AFTER);
+            this.expiresAtNanos = now + ttlNanos;
+        }
+    }
+
+    /** A lookup in progress, which threads asking for the same hostname wait on. */
+    static final class Lookup {
+        private boolean done;
+        private List<InetAddress> addresses;
+        private UnknownHostException failure;
+
+        synchronized void complete(List<InetAddress> addresses, UnknownHostException failure) {
+            this.addresses = addresses;
+            this.failure = failure;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized List<InetAddress> await() throws UnknownHostException {
+            boolean interrupted = false;
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            if (failure != null) throw copyOf(failure);
+            return addresses;
+        }
+    }
+
+    public static final class Builder {
+        Dns delegate = Dns.SYSTEM;
+        int maxEntries = 256;
+        long ttlNanos = TimeUnit.MINUTES.toNanos(1);
+        long negativeTtlNanos = TimeUnit.SECONDS.toNanos(10);
+        Executor refreshExecutor;
+
+        /** Sets the DNS whose results are cached. Defaults to {@link Dns#SYSTEM}. */
+        public Builder delegate(Dns delegate) {
+            if (delegate == null) throw new NullPointerException("delegate == null");
+            this.delegate = delegate;
+            return this;
+        }
+
+        /** Sets how many hostnames are cached; the least recently used are evicted first. */
+        public Builder maxEntries(int maxEntries) {
+            if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries <= 0: " + maxEntries);
+            this.maxEntries = maxEntries;
+            return this;
+        }
+
+        /** Sets how long resolved addresses are used. Defaults to 1 minute. */
+        public Builder ttl(long ttl, TimeUnit unit) {
+            if (ttl <= 0) throw new IllegalArgumentException("ttl <= 0: " + ttl);
+            if (unit == null) throw new NullPointerException("unit == null");
+            this.ttlNanos = unit.toNanos(ttl);
+            return this;
+        }
+
+        /**
+         * Sets how long a failed lookup is remembered. Defaults to 10 seconds. Use 0 to not cache
+         * failures.
+         */
+        public Builder negativeTtl(long negativeTtl, TimeUnit unit) {
+            if (negativeTtl < 0) throw new IllegalArgumentException("negativeTtl < 0: " + negativeTtl);
+            if (unit == null) throw new NullPointerException("unit == null");
+            this.negativeTtlNanos = unit.toNanos(negativeTtl);
+            return this;
+        }
+
+        /**
+         * Sets the executor for background refreshes. Refreshes block on the delegate. Defaults to
+         * two daemon threads shared by every caching DNS.
+         */
+        public Builder refreshExecutor(Executor refreshExecutor) {
+            if (refreshExecutor == null) throw new NullPointerException("refreshExecutor == null");
+            this.refreshExecutor = refreshExecutor;
+            return this;
+        }
+
+        public CachingDns build() {
+            return new CachingDns(this);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The pending responses of calls {@linkplain OkHttpClient#submitAll submitted together}. The calls
+ * run concurrently within the dispatcher's limits; {@link #get()} waits for all of them and returns
+ * their responses in submission order.
+ * <p>
+ * <p>The batch succeeds only if every call does. If any call fails, {@link #get()} closes the
+ * responses of the others and throws that call's failure. Use {@link #futures()} to handle calls
+ * individually instead.
+ * <p>
+ * <p>A timed-out or interrupted {@code get} leaves the calls running; call it again to keep
+ * waiting, or {@link #cancel} the batch to abandon it.
+ */
+public final class CallBatch implements Future<List<Response>> {
+    private final List<CallFuture> futures;
+
+    CallBatch(List<CallFuture> futures) {
+        this.futures = Collections.unmodifiableList(new ArrayList<>(futures));
+    }
+
+    /** Returns the future of each call, in submission order. */
+    public List<CallFuture> futures() {
+        return futures;
+    }
+
+    /** Cancels every call in the batch. Returns true if at least one call was canceled. */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean result = false;
+        for (CallFuture future : futures) {
+            result |= future.cancel(mayInterruptIfRunning);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        for (CallFuture future : futures) {
+            if (future.isCancelled()) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        for (CallFuture future : futures) {
+            if (!future.isDone()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public List<Response> get() throws InterruptedException, ExecutionException {
+        List<Response> result = new ArrayList<>(futures.size());
+        try {
+            for (CallFuture future : futures) {
+                result.add(future.get());
+            }
+        } catch (ExecutionException | CancellationException e) {
+            fail();
+            throw e;
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public List<Response> get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<Response> result = new ArrayList<>(futures.size());
+        try {
+            for (CallFuture future : futures) {
+                result.add(future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+            }
+        } catch (ExecutionException | CancellationException e) {
+            fail();
+            throw e;
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Cancels the calls that haven't completed and closes the responses of those that have, since the
+     * caller won't receive them. Calls after the failed one may have completed too.
+     */
+    private void fail() {
+        for (CallFuture future : futures) {
+            future.discard();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import okhttp3.internal.platform.Platform;
+
+import static okhttp3.internal.Util.closeQuietly;
+import static okhttp3.internal.platform.Platform.INFO;
+
+/**
+ * The pending response of a call {@linkplain #submit submitted} to the dispatcher. The call
+ * runs like an {@linkplain Call#enqueue enqueued} call: it waits for the dispatcher's limits and
+ * completes on a dispatcher thread.
+ * <p>
+ * <p>{@linkplain #cancel Canceling} the future cancels the call. A response that arrives after that
+ * is closed. Callers that {@linkplain #get() get} a response must close its body.
+ * <p>
+ * <p>Use {@link #addCallback} to react to completion without blocking, and {@link CallBatch} to wait
+ * for several calls at once.
+ */
+public final class CallFuture implements Future<Response> {
+    private final Call call;
+
+    // 以下字段由this保护
+    private boolean done;
+    private boolean cancelled;
+    private Response response;
+    private IOException failure;
+    private List<Callback> callbacks;
+
+    CallFuture(Call call) {
+        this.call = call;
+    }
+
+    /**
+     * Schedules {@code call} like {@link Call#enqueue} and returns a future for its response.
+     * Canceling the future cancels the call.
+     *
+     * @throws IllegalStateException when the call has already been executed.
+     */
+    public static CallFuture submit(Call call) {
+        if (call == null) throw new NullPointerException("call == null");
+        CallFuture future = new CallFuture(call);
+        call.enqueue(future.completer());
+        return future;
+    }
+
+    /** Returns the call whose response this future holds. */
+    public Call call() {
+        return call;
+    }
+
+    /** Returns the callback to {@linkplain Call#enqueue enqueue} the call with. */
+    Callback completer() {
+        return new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                complete(null, e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                complete(response, null);
+            }
+        };
+    }
+
+    /**
+     * Registers {@code callback} to receive the outcome. If the future is already done it's invoked
+     * immediately on this thread; otherwise it's invoked on the dispatcher thread that completes the
+     * call. A canceled future reports an {@link IOException} to {@link Callback#onFailure}.
+     * <p>
+     * <p>Callbacks share the future's response, so at most one of them should consume and close its
+     * body, and not while another thread calls {@link #get()}.
+     */
+    public void addCallback(Callback callback) {
+        if (callback == null) throw new NullPointerException("callback == null");
+        synchronized (this) {
+            if (!done) {
+                if (callbacks == null) callbacks = new ArrayList<>(2);
+                callbacks.add(callback);
+                return;
+            }
+        }
+        deliver(callback);
+    }
+
+    /** Cancels the call. Returns false if the call had already completed. */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) return false;
+            done = true;
+            cancelled = true;
+            notifyAll();
+        }
+        call.cancel();
+        runCallbacks();
+        return true;
+    }
+
+    /** Cancels the call, or closes its response if it already completed: nobody will read it. */
+    void discard() {
+        if (cancel(false)) return;
+        Response toClose;
+        synchronized (this) {
+            toClose = response;
+        }
+        if (toClose != null) closeQuietly(toClose);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized Response get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized Response get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long remainingNanos = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remainingNanos;
+        while (!done) {
+            if (remainingNanos <= 0) throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+            remainingNanos = deadline - System.nanoTime();
+        }
+        return result();
+    }
+
+    private Response result() throws ExecutionException {
+        if (cancelled) throw new CancellationException();
+        if (failure != null) throw new ExecutionException(failure);
+        return response;
+    }
+
+    private void complete(Response response, IOException failure) {
+        synchronized (this) {
+            if (done) {
+                // 已被取消，这个响应没有人接收，关闭它避免泄漏连接
+                if (response != null) closeQuietly(response);
+                return;
+            }
+            this.done = true;
+            this.response = response;
+            this.failure = failure;
+            notifyAll();
+        }
+        runCallbacks();
+    }
+
+    private void runCallbacks() {
+        List<Callback> toNotify;
+        synchronized (this) {
+            toNotify = callbacks;
+            callbacks = null;
+        }
+        if (toNotify == null) return;
+        for (Callback callback : toNotify) {
+            deliver(callback);
+        }
+    }
+
+    private void deliver(Callback callback) {
+        Response response;
+        IOException failure;
+        synchronized (this) {
+            response = this.response;
+            failure = cancelled ? new IOException("Canceled") : this.failure;
+        }
+        try {
+            if (failure != null) {
+                callback.onFailure(call, failure);
+            } else {
+                callback.onResponse(call, response);
+            }
+        } catch (IOException | RuntimeException e) {
+            // 回调自身的异常只记录，不影响其他回调
+            Platform.get().log(INFO, "Callback failure for " + call.request().url().redact(), e);
+        }
+    }
+}
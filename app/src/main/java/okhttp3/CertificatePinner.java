@@ -25,6 +25,7 @@ import java.util.List;
 import java.util.Set;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import okhttp3.internal.tls.CertificateChainCleaner;
+import okhttp3.internal.tls.VerifiedChainCache;
 import okio.ByteString;
 
 import static okhttp3.internal.Util.equal;
@@ -129,6 +130,8 @@ public final class CertificatePinner {
 
   private final Set<Pin> pins;
   private final CertificateChainCleaner certificateChainCleaner;
+  /** Hosts each peer chain satisfied the pins for. */
+  private final VerifiedChainCache<Boolean> verifiedChains = new VerifiedChainCache<>();
 
   CertificatePinner(Set<Pin> pins, CertificateChainCleaner certificateChainCleaner) {
     this.pins = pins;
@@ -161,6 +164,10 @@ public final class CertificatePinner {
     List<Pin> pins = findMatchingPins(hostname);
     if (pins.isEmpty()) return;
 
+    // 同一条证书链已经通过过校验，跳过清理和哈希
+    List<Certificate> handshakeCertificates = peerCertificates;
+    if (verifiedChains.get(hostname, handshakeCertificates) != null) return;
+
     if (certificateChainCleaner != null) {
       peerCertificates = certificateChainCleaner.clean(peerCertificates, hostname);
     }
@@ -176,10 +183,16 @@ public final class CertificatePinner {
         Pin pin = pins.get(p);
         if (pin.hashAlgorithm.equals("sha256/")) {
           if (sha256 == null) sha256 = sha256(x509Certificate);
-          if (pin.hash.equals(sha256)) return; // Success!
+          if (pin.hash.equals(sha256)) {
+            verifiedChains.put(hostname, handshakeCertificates, Boolean.TRUE);
+            return; // Success!
+          }
         } else if (pin.hashAlgorithm.equals("sha1/")) {
           if (sha1 == null) sha1 = sha1(x509Certificate);
-          if (pin.hash.equals(sha1)) return; // Success!
+          if (pin.hash.equals(sha1)) {
+            verifiedChains.put(hostname, handshakeCertificates, Boolean.TRUE);
+            return; // Success!
+          }
         } else {
           throw new AssertionError();
         }
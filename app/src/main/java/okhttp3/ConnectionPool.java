@@ -16,18 +16,21 @@
  */
 package okhttp3;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.ref.Reference;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.Executor;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import okhttp3.internal.Util;
+import okhttp3.internal.TimerWheel;
+import okhttp3.internal.connection.AddressConnections;
+import okhttp3.internal.connection.ConnectionStats;
 import okhttp3.internal.connection.RealConnection;
 import okhttp3.internal.connection.RouteDatabase;
 import okhttp3.internal.connection.StreamAllocation;
@@ -43,17 +46,16 @@ import static okhttp3.internal.Util.closeQuietly;
  */
 public final class ConnectionPool {
     /**
-     * Background threads are used to cleanup expired connections. There will be at most a single
-     * thread running per connection pool. The thread pool executor permits the pool itself to be
-     * garbage collected.
-     * 一个用于清除过期链接的线程池，每个线程池最多只能运行一个线程，并且这个线程池允许被垃圾回收
+     * Cleanup runs on the shared {@link TimerWheel}: a pool waiting for its next eviction holds a
+     * timeout rather than a sleeping thread, and there is at most one cleanup task per pool.
+     * 清理任务在共享的时间轮上调度，等待下一次清理时不占用线程
      */
-    private static final Executor executor = new ThreadPoolExecutor(0 /* corePoolSize */,
-            Integer.MAX_VALUE /* maximumPoolSize */, 60L /* keepAliveTime */, TimeUnit.SECONDS,
-            new SynchronousQueue<Runnable>(), Util.threadFactory("OkHttp ConnectionPool", true));
+    private static final TimerWheel timerWheel = TimerWheel.shared();
 
     // 路由的数据库，用来记录不可用的route，代码中并未使用
     final RouteDatabase routeDatabase = new RouteDatabase();
+    // 连接层面的统计（复用、驱逐、流量），原子计数，不占用池锁
+    final ConnectionStats stats = new ConnectionStats();
 
     /**
      * maxIdleConnections：The maximum number of idle connections for each address.每个address的最大空闲连接数，OkHttp只是限制与同一个远程服务器的空闲连接数量，对整体的空闲连接并没有限制。
@@ -61,24 +63,44 @@ public final class ConnectionPool {
      */
     private final int maxIdleConnections;
     private final long keepAliveDurationNs;
-    private final Deque<RealConnection> connections = new ArrayDeque<>();   // 链接的双向队列
-    boolean cleanupRunning; // 清理任务正在执行的标志
+    /**
+     * The most connections, active plus idle, that may be open or opening at once across all
+     * addresses. {@link Integer#MAX_VALUE} if unbounded.
+     * 全局连接预算，包括使用中和空闲的链接
+     */
+    private final int maxConnections;
+    private int pendingConnectionCount; // 已预留预算、还没放入池中的链接，由this保护
+    /**
+     * Connections grouped by address. Each group is guarded by its own monitor, so reuse lookups only
+     * scan connections to the same address and calls to different addresses don't contend.
+     * 按address分组的链接，每组使用自己的锁
+     */
+    private final ConcurrentHashMap<Address, AddressConnections> addressConnections =
+            new ConcurrentHashMap<>();
+    /**
+     * Every group in {@link #addressConnections}, for cleanup.
+     */
+    private final Set<AddressConnections> groups =
+            Collections.newSetFromMap(new ConcurrentHashMap<AddressConnections, Boolean>());
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    boolean cleanupRunning; // 清理任务正在执行或已调度的标志，由this保护
+    private TimerWheel.Timeout scheduledCleanup; // 已调度、尚未执行的清理任务，由this保护
     // 清理任务
     private final Runnable cleanupRunnable = new Runnable() {
         @Override
         public void run() {
+            synchronized (ConnectionPool.this) {
+                scheduledCleanup = null;
+            }
             while (true) {
                 long waitNanos = cleanup(System.nanoTime());
                 if (waitNanos == -1) return;
                 if (waitNanos > 0) {
-                    long waitMillis = waitNanos / 1000000L;
-                    waitNanos -= (waitMillis * 1000000L);
+                    // 不再阻塞等待，到期后在时间轮上重新执行
                     synchronized (ConnectionPool.this) {
-                        try {
-                            ConnectionPool.this.wait(waitMillis, (int) waitNanos);
-                        } catch (InterruptedException ignored) {
-                        }
+                        scheduledCleanup = timerWheel.schedule(this, waitNanos, TimeUnit.NANOSECONDS);
                     }
+                    return;
                 }
             }
         }
@@ -95,22 +117,49 @@ public final class ConnectionPool {
     }
 
     public ConnectionPool(int maxIdleConnections, long keepAliveDuration, TimeUnit timeUnit) {
+        this(maxIdleConnections, keepAliveDuration, timeUnit, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Create a pool that holds at most {@code maxConnections} connections across all addresses,
+     * whether in use or idle. When the budget is spent, a call that needs a new connection evicts
+     * the least recently used idle connection to any address; if every connection is in use it
+     * waits for one to be released, for up to the client's connect timeout.
+     */
+    public ConnectionPool(int maxIdleConnections, long keepAliveDuration, TimeUnit timeUnit,
+                          int maxConnections) {
         this.maxIdleConnections = maxIdleConnections;
         this.keepAliveDurationNs = timeUnit.toNanos(keepAliveDuration);
+        this.maxConnections = maxConnections;
 
         // Put a floor on the keep alive duration, otherwise cleanup will spin loop.
         if (keepAliveDuration <= 0) {
             throw new IllegalArgumentException("keepAliveDuration <= 0: " + keepAliveDuration);
         }
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("maxConnections <= 0: " + maxConnections);
+        }
+    }
+
+    /**
+     * Returns the most connections this pool allows at once, or {@link Integer#MAX_VALUE} if the
+     * number is unbounded.
+     */
+    public int maxConnections() {
+        return maxConnections;
     }
 
     /**
      * 返回池中空闲connection的个数
      */
-    public synchronized int idleConnectionCount() {
+    public int idleConnectionCount() {
         int total = 0;
-        for (RealConnection connection : connections) {
-            if (connection.allocations.isEmpty()) total++;
+        for (AddressConnections group : groups) {
+            synchronized (group) {
+                for (RealConnection connection : group.connections) {
+                    if (connection.allocations.isEmpty()) total++;
+                }
+            }
         }
         return total;
     }
@@ -121,15 +170,60 @@ public final class ConnectionPool {
      * both active and inactive. Use {@link #idleConnectionCount()} to count connections not currently
      * in use.
      */
-    public synchronized int connectionCount() {
-        return connections.size();
+    public int connectionCount() {
+        return connectionCount.get();
     }
 
     /**
-     * Returns a recycled connection to {@code address}, or null if no such connection exists.
+     * Returns the number of HTTP/2 streams currently open across the pooled connections.
+     */
+    public int http2StreamCount() {
+        List<RealConnection> multiplexed = new ArrayList<>();
+        for (AddressConnections group : groups) {
+            synchronized (group) {
+                for (RealConnection connection : group.connections) {
+                    if (connection.http2Connection != null) multiplexed.add(connection);
+                }
+            }
+        }
+        // 在池锁外查询，避免与Http2Connection的锁嵌套
+        int total = 0;
+        for (RealConnection connection : multiplexed) {
+            total += connection.http2Connection.openStreamCount();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the group of connections to {@code address}, held by the calling stream allocation until
+     * it is released. Its monitor guards the state of every stream allocation to that address.
+     */
+    AddressConnections addressConnections(Address address) {
+        while (true) {
+            AddressConnections result = addressConnections.get(address);
+            if (result == null) {
+                AddressConnections created = new AddressConnections(address);
+                result = addressConnections.putIfAbsent(address, created);
+                if (result == null) {
+                    result = created;
+                    groups.add(created);
+                }
+            }
+            synchronized (result) {
+                if (!result.removed) {
+                    result.allocationCount++;
+                    return result;
+                }
+            }
+            // 分组刚被清理任务移除，重新查找或创建
+        }
+    }
+
+    /**
+     * Returns a recycled connection to {@code group}'s address, or null if no such connection exists.
      * 返回一个复用address的connection对象
      */
-    RealConnection get(Address address, StreamAllocation streamAllocation) {
+    RealConnection get(AddressConnections group, StreamAllocation streamAllocation) {
         /**
          * assert 断言，jdk1.4引入
          * 默认关闭。可以局部开启，如：父类禁止断言，而子类开启断言，一般说“断言不具有继承性”。
@@ -137,18 +231,20 @@ public final class ConnectionPool {
          *
          * java -ea 打开所有用户类的assertion，类似这种方式开启断言，在IDE的run configuration中配置vm arguments来配置断言
          *
-         * 断言执行此处的线程持有此对象的锁，如果Thread.holdsLock(this)返回false，会抛出AssertException
-         * 也就是说，执行这个方法时，线程需要在此对象上保持着监视器锁，外层已经使用了 "synchronized (connectionPool) {"来加锁。
+         * 断言执行此处的线程持有此对象的锁，如果Thread.holdsLock(group)返回false，会抛出AssertException
+         * 也就是说，执行这个方法时，线程需要在此对象上保持着监视器锁，外层已经使用了 "synchronized (group) {"来加锁。
          */
-        assert (Thread.holdsLock(this));
-        for (RealConnection connection : connections) {
+        assert (Thread.holdsLock(group));
+        // 同一组里的链接address都相同，不再需要逐个比较address
+        for (RealConnection connection : group.connections) {
             if (connection.allocations.size() < connection.allocationLimit
-                    && address.equals(connection.route().address)
                     && !connection.noNewStreams) {
                 streamAllocation.acquire(connection);
+                stats.poolLookup(true);
                 return connection;
             }
         }
+        stats.poolLookup(false);
         return null;
     }
 
@@ -156,42 +252,180 @@ public final class ConnectionPool {
      * 放入连接池
      * @param connection 连接对象
      */
-    void put(RealConnection connection) {
-        assert (Thread.holdsLock(this));
-        if (!cleanupRunning) {
-            cleanupRunning = true;
-            executor.execute(cleanupRunnable);
+    void put(AddressConnections group, RealConnection connection) {
+        assert (Thread.holdsLock(group));
+        // 持有分组的StreamAllocation未释放前分组不会被移除
+        assert (!group.removed);
+        group.connections.add(connection);
+        connectionCount.incrementAndGet();
+        stats.connectionOpened();
+        synchronized (this) {
+            if (maxConnections != Integer.MAX_VALUE) pendingConnectionCount--; // 预留的预算转为池中的链接
+            if (!cleanupRunning) {
+                cleanupRunning = true;
+                timerWheel.execute(cleanupRunnable);
+            }
         }
-        connections.add(connection);
     }
 
     /**
      * Notify this pool that {@code connection} has become idle. Returns true if the connection has
      * been removed from the pool and should be closed.
      */
-    boolean connectionBecameIdle(RealConnection connection) {
-        assert (Thread.holdsLock(this));        // 断言这段代码是否被加锁ConnectionPool执行，如果不是会报错！
+    boolean connectionBecameIdle(AddressConnections group, RealConnection connection) {
+        assert (Thread.holdsLock(group));        // 断言这段代码是否被加锁group执行，如果不是会报错！
         if (connection.noNewStreams || maxIdleConnections == 0) {
-            connections.remove(connection);
+            if (group.connections.remove(connection)) connectionRemoved();
+            stats.connectionEvicted(connection.noNewStreams
+                    ? ConnectionStats.EVICT_NO_NEW_STREAMS
+                    : ConnectionStats.EVICT_IDLE_LIMIT);
             return true;
         } else {
-            notifyAll(); // Awake the cleanup thread: we may have exceeded the idle connection limit.
+            // 锁顺序始终是 分组锁 -> 池锁，清理线程持有池锁时不会再去获取分组锁
+            synchronized (this) {
+                // We may have exceeded the idle connection limit: run the scheduled cleanup now.
+                if (scheduledCleanup != null && scheduledCleanup.cancel()) {
+                    scheduledCleanup = null;
+                    timerWheel.execute(cleanupRunnable);
+                }
+                // 等待预算的调用可以驱逐这个空闲链接
+                if (maxConnections != Integer.MAX_VALUE) notifyAll();
+            }
             return false;
         }
     }
 
+    /**
+     * Reserves room in the connection budget for a new connection, which the caller must then either
+     * {@linkplain #put put} in the pool or give back with {@link #releaseReservation}. If the budget
+     * is spent this evicts the least recently used idle connection to any address, or if there is
+     * none waits up to {@code timeoutNanos} for a connection to be released. A timeout of 0 waits
+     * indefinitely.
+     */
+    void reserve(long timeoutNanos) throws IOException {
+        if (maxConnections == Integer.MAX_VALUE) return;
+        long waitStartNanos = -1L;
+        while (true) {
+            synchronized (this) {
+                if (connectionCount.get() + pendingConnectionCount < maxConnections) {
+                    pendingConnectionCount++;
+                    break;
+                }
+            }
+
+            if (evictLeastRecentlyUsed()) continue;
+
+            synchronized (this) {
+                if (connectionCount.get() + pendingConnectionCount < maxConnections) continue;
+                long now = System.nanoTime();
+                if (waitStartNanos == -1L) waitStartNanos = now;
+                long remainingNanos = timeoutNanos - (now - waitStartNanos);
+                if (timeoutNanos != 0 && remainingNanos <= 0) {
+                    stats.budgetWait(now - waitStartNanos, true);
+                    // 不是SocketTimeoutException，重试拦截器不会换路由再等一次
+                    throw new InterruptedIOException("connection budget exhausted: "
+                            + maxConnections + " connections in use");
+                }
+                try {
+                    if (timeoutNanos == 0) {
+                        wait();
+                    } else {
+                        TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+                    }
+                } catch (InterruptedException e) {
+                    stats.budgetWait(System.nanoTime() - waitStartNanos, true);
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for the connection budget");
+                }
+            }
+        }
+        if (waitStartNanos != -1L) stats.budgetWait(System.nanoTime() - waitStartNanos, false);
+    }
+
+    /**
+     * Reserves room in the connection budget without evicting or waiting. Returns false if the
+     * budget is spent.
+     */
+    boolean tryReserve() {
+        if (maxConnections == Integer.MAX_VALUE) return true;
+        synchronized (this) {
+            if (connectionCount.get() + pendingConnectionCount >= maxConnections) return false;
+            pendingConnectionCount++;
+            return true;
+        }
+    }
+
+    /** Gives back a reservation whose connection was never put in the pool. */
+    void releaseReservation() {
+        if (maxConnections == Integer.MAX_VALUE) return;
+        synchronized (this) {
+            pendingConnectionCount--;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Closes the idle connection, to any address, that has been idle the longest. Returns false if
+     * no connection is idle.
+     */
+    private boolean evictLeastRecentlyUsed() {
+        while (true) {
+            RealConnection lruConnection = null;
+            AddressConnections lruGroup = null;
+            // 与cleanup相同，逐个分组加锁扫描
+            for (AddressConnections group : groups) {
+                synchronized (group) {
+                    for (RealConnection connection : group.connections) {
+                        if (!connection.allocations.isEmpty()) continue;
+                        if (lruConnection == null || connection.idleAtNanos < lruConnection.idleAtNanos) {
+                            lruConnection = connection;
+                            lruGroup = group;
+                        }
+                    }
+                }
+            }
+            if (lruConnection == null) return false;
+
+            synchronized (lruGroup) {
+                if (!lruConnection.allocations.isEmpty()
+                        || !lruGroup.connections.remove(lruConnection)) {
+                    continue; // 扫描之后又被复用或移除了，重新扫描
+                }
+                lruConnection.noNewStreams = true;
+                connectionRemoved();
+                stats.connectionEvicted(ConnectionStats.EVICT_BUDGET);
+            }
+            closeQuietly(lruConnection.socket());
+            return true;
+        }
+    }
+
+    /** Accounts for a connection removed from a group, waking calls waiting for the budget. */
+    private void connectionRemoved() {
+        connectionCount.decrementAndGet();
+        if (maxConnections != Integer.MAX_VALUE) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
     /**
      * Close and remove all idle connections in the pool.关闭移除池中所有的空闲链接
      */
     public void evictAll() {
         List<RealConnection> evictedConnections = new ArrayList<>();
-        synchronized (this) {
-            for (Iterator<RealConnection> i = connections.iterator(); i.hasNext(); ) {
-                RealConnection connection = i.next();
-                if (connection.allocations.isEmpty()) {
-                    connection.noNewStreams = true;
-                    evictedConnections.add(connection);
-                    i.remove();
+        for (AddressConnections group : groups) {
+            synchronized (group) {
+                for (Iterator<RealConnection> i = group.connections.iterator(); i.hasNext(); ) {
+                    RealConnection connection = i.next();
+                    if (connection.allocations.isEmpty()) {
+                        connection.noNewStreams = true;
+                        evictedConnections.add(connection);
+                        i.remove();
+                        connectionRemoved();
+                        stats.connectionEvicted(ConnectionStats.EVICT_ALL);
+                    }
                 }
             }
         }
@@ -212,42 +446,67 @@ public final class ConnectionPool {
         int inUseConnectionCount = 0;   // 使用中的链接的计数
         int idleConnectionCount = 0;    // 空闲链接的计数
         RealConnection longestIdleConnection = null;        // 最长空闲链接
+        AddressConnections longestIdleGroup = null;         // 最长空闲链接所在的分组
         long longestIdleDurationNs = Long.MIN_VALUE;        // 最长空闲链接的空闲时长
 
         // Find either a connection to evict, or the time that the next eviction is due. 查找出一个可以被清理的链接并清理或者返回一个下次执行的间隔时长
-        synchronized (this) {
-            // 遍历队列中的连接对象，并标记不活跃、空闲的连接（泄露连接）
-            for (Iterator<RealConnection> i = connections.iterator(); i.hasNext(); ) {
-                RealConnection connection = i.next();
-
-                // If the connection is in use, keep searching.
-                // 迭代connection的StreamAllocation集合，如果链接正在被使用，continue，并计数
-                if (pruneAndGetAllocationCount(connection, now) > 0) {
-                    inUseConnectionCount++;
+        // 逐个分组加锁扫描，不会同时持有两个分组的锁
+        for (AddressConnections group : groups) {
+            synchronized (group) {
+                if (group.connections.isEmpty()) {
+                    // 仍被StreamAllocation持有的空分组保留，它之后放入的链接要能被其他调用找到
+                    if (group.allocationCount > 0) continue;
+                    group.removed = true;
+                    groups.remove(group);
+                    addressConnections.remove(group.address, group);
                     continue;
                 }
 
-                idleConnectionCount++;
+                // 遍历分组中的连接对象，并标记不活跃、空闲的连接（泄露连接）
+                for (RealConnection connection : group.connections) {
+                    // If the connection is in use, keep searching.
+                    // 迭代connection的StreamAllocation集合，如果链接正在被使用，continue，并计数
+                    if (pruneAndGetAllocationCount(connection, now) > 0) {
+                        inUseConnectionCount++;
+                        continue;
+                    }
+
+                    idleConnectionCount++;
 
-                // 为最长空闲链接和空闲时长赋值，找出空闲最长的链接
-                long idleDurationNs = now - connection.idleAtNanos;
-                if (idleDurationNs > longestIdleDurationNs) {
-                    longestIdleDurationNs = idleDurationNs;
-                    longestIdleConnection = connection;
+                    // 为最长空闲链接和空闲时长赋值，找出空闲最长的链接
+                    long idleDurationNs = now - connection.idleAtNanos;
+                    if (idleDurationNs > longestIdleDurationNs) {
+                        longestIdleDurationNs = idleDurationNs;
+                        longestIdleConnection = connection;
+                        longestIdleGroup = group;
+                    }
                 }
             }
+        }
 
-            if (longestIdleDurationNs >= this.keepAliveDurationNs
-                    || idleConnectionCount > this.maxIdleConnections) {
-                // 找到一个可以被清理的链接。从列表中移除它，然后在下边的同步块以外关闭它。
-                connections.remove(longestIdleConnection);
-            } else if (idleConnectionCount > 0) {
-                // 有空闲链接、返回到期可以被清理的时长
-                return keepAliveDurationNs - longestIdleDurationNs;
-            } else if (inUseConnectionCount > 0) {
-                // 所有链接都在使用，返回一个keepAliveDurationNs
-                return keepAliveDurationNs;
-            } else {
+        if (longestIdleDurationNs >= this.keepAliveDurationNs
+                || idleConnectionCount > this.maxIdleConnections) {
+            // 找到一个可以被清理的链接。在它的分组锁内确认它仍然空闲后移除，然后在同步块以外关闭它。
+            synchronized (longestIdleGroup) {
+                if (!longestIdleConnection.allocations.isEmpty()
+                        || !longestIdleGroup.connections.remove(longestIdleConnection)) {
+                    return 0; // 扫描之后又被复用或移除了，重新扫描
+                }
+                connectionRemoved();
+                stats.connectionEvicted(longestIdleDurationNs >= this.keepAliveDurationNs
+                        ? ConnectionStats.EVICT_IDLE_TIMEOUT
+                        : ConnectionStats.EVICT_IDLE_LIMIT);
+            }
+        } else if (idleConnectionCount > 0) {
+            // 有空闲链接、返回到期可以被清理的时长
+            return keepAliveDurationNs - longestIdleDurationNs;
+        } else if (inUseConnectionCount > 0) {
+            // 所有链接都在使用，返回一个keepAliveDurationNs
+            return keepAliveDurationNs;
+        } else {
+            synchronized (this) {
+                // 扫描期间可能有新链接放入，它们看到cleanupRunning为true不会再启动清理任务
+                if (connectionCount.get() > 0) return 0;
                 // 没有链接，退出清理，标记位置空
                 cleanupRunning = false;
                 return -1;
@@ -285,6 +544,7 @@ public final class ConnectionPool {
             String message = "A connection to " + connection.route().address().url()
                     + " was leaked. Did you forget to close a response body?";
             Platform.get().logCloseableLeak(message, streamAllocRef.callStackTrace);
+            stats.allocationLeaked();
 
             references.remove(i);
             connection.noNewStreams = true;
@@ -19,12 +19,17 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Deque;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import okhttp3.RealCall.AsyncCall;
 import okhttp3.internal.Util;
@@ -35,12 +40,36 @@ import okhttp3.internal.Util;
  * <p>Each dispatcher uses an {@link ExecutorService} to run calls internally. If you supply your
  * own executor, it should be able to run {@linkplain #getMaxRequests the configured maximum} number
  * of calls concurrently.
+ * <p>
+ * <p>Calls that can't run immediately wait in one queue per {@linkplain Request#priority()
+ * priority}. Each freed slot goes to a priority class chosen by smooth weighted round-robin over
+ * the classes with runnable calls, and within that class to the next host in round-robin order.
+ * <p>
+ * <p>By default each host may run up to {@linkplain #getMaxRequestsPerHost a fixed number} of calls
+ * at once. With {@linkplain #setAdaptiveRequestsPerHost adaptive limits} each host's limit is
+ * instead raised and lowered from the latency and failures of its recent calls.
  */
 public final class Dispatcher {
+    private static final Priority[] PRIORITIES = Priority.values();
+    /** The number of hosts whose adaptive limits are remembered. */
+    private static final int MAX_ADAPTIVE_LIMITS = 64;
+
+    /**
+     * Async calls grouped by host, for O(1) per-host running counts. A host is present while it has
+     * calls running or waiting.
+     */
+    private final Map<String, HostCalls> hosts = new HashMap<>();
+    /**
+     * For each priority, the hosts that have a waiting call of that priority, in the order they'll be
+     * served. Hosts that reach {@link #maxRequestsPerHost} stay here until their turn comes up, then
+     * are dropped until one of their calls finishes.
+     */
+    private final List<Deque<HostCalls>> readyHosts = new ArrayList<>(PRIORITIES.length);
     /**
-     * Ready async calls in the order they'll be run.
+     * Smooth weighted round-robin state, one per priority.
      */
-    private final Deque<AsyncCall> readyAsyncCalls = new ArrayDeque<>();
+    private final int[] currentWeights = new int[PRIORITIES.length];
+    private int queuedCallsCount;
     /**
      * Running asynchronous calls. Includes canceled calls that haven't finished yet.
      */
@@ -49,19 +78,48 @@ public final class Dispatcher {
      * Running synchronous calls. Includes canceled calls that haven't finished yet.
      */
     private final Deque<RealCall> runningSyncCalls = new ArrayDeque<>();
+    /**
+     * Running hedged attempts of calls. Each takes a slot of {@link #maxRequests} and of its host's
+     * limit, like an async call.
+     */
+    private int runningHedgesCount;
     private int maxRequests = 64;
     private int maxRequestsPerHost = 5;
+    private boolean adaptiveRequestsPerHost;
+    /**
+     * Adaptive limits by host, least recently used first. Kept after a host goes idle so a returning
+     * host resumes from its learned limit.
+     */
+    private final Map<String, AdaptiveLimit> adaptiveLimits =
+            new LinkedHashMap<String, AdaptiveLimit>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, AdaptiveLimit> eldest) {
+                    return size() > MAX_ADAPTIVE_LIMITS;
+                }
+            };
     private Runnable idleCallback;
     /**
      * Executes calls. Created lazily.
      */
     private ExecutorService executorService;
 
+    // 统计数据，原子计数，Metrics读取快照时不需要持有dispatcher的锁
+    final AtomicLong enqueuedCallCount = new AtomicLong();
+    /** Async calls that had to wait in a ready queue before running. */
+    final AtomicLong deferredCallCount = new AtomicLong();
+    final AtomicLong queueWaitNanos = new AtomicLong();
+    final AtomicLong maxQueueWaitNanos = new AtomicLong();
+    final AtomicInteger maxRunningCallsPerHost = new AtomicInteger();
+
     public Dispatcher(ExecutorService executorService) {
+        this();
         this.executorService = executorService;
     }
 
     public Dispatcher() {
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            readyHosts.add(new ArrayDeque<HostCalls>());
+        }
     }
 
     public synchronized ExecutorService executorService() {
@@ -103,15 +161,61 @@ public final class Dispatcher {
      * <p>
      * <p>If more than {@code maxRequestsPerHost} requests are in flight when this is invoked, those
      * requests will remain in flight.
+     * <p>
+     * <p>With {@linkplain #setAdaptiveRequestsPerHost adaptive limits} this is the limit that hosts
+     * not yet measured start from.
      */
     public synchronized void setMaxRequestsPerHost(int maxRequestsPerHost) {
         if (maxRequestsPerHost < 1) {
             throw new IllegalArgumentException("max < 1: " + maxRequestsPerHost);
         }
         this.maxRequestsPerHost = maxRequestsPerHost;
+        adaptiveLimits.clear();
+        for (HostCalls hostCalls : hosts.values()) {
+            hostCalls.limit = null;
+        }
+        // 上限变大后，之前因达到上限被移出就绪队列的host可能又可以执行了
+        for (HostCalls hostCalls : hosts.values()) {
+            markReady(hostCalls);
+        }
         promoteCalls();
     }
 
+    public synchronized boolean getAdaptiveRequestsPerHost() {
+        return adaptiveRequestsPerHost;
+    }
+
+    /**
+     * Set whether each host's concurrency limit adapts to how the host is coping. An adaptive limit
+     * starts at {@link #getMaxRequestsPerHost}, grows by about one call per round of calls that
+     * completes at the host's usual latency, and shrinks by a quarter when a call is answered with
+     * 429 or 503, times out against a host that has answered before, or takes more than twice as long
+     * as the fastest recent call. Other failures, such as DNS or network errors, are not counted. It
+     * never drops below 1 or exceeds {@link #getMaxRequests}.
+     * <p>
+     * <p>Only asynchronous calls are limited or measured.
+     */
+    public synchronized void setAdaptiveRequestsPerHost(boolean adaptiveRequestsPerHost) {
+        this.adaptiveRequestsPerHost = adaptiveRequestsPerHost;
+        for (HostCalls hostCalls : hosts.values()) {
+            markReady(hostCalls);
+        }
+        promoteCalls();
+    }
+
+    /**
+     * Returns a snapshot of the current adaptive limit of each host that has one. Empty unless
+     * {@linkplain #setAdaptiveRequestsPerHost adaptive limits} are enabled.
+     */
+    public synchronized Map<String, Integer> adaptiveRequestsPerHostLimits() {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        if (!adaptiveRequestsPerHost) return Collections.unmodifiableMap(result);
+        for (Map.Entry<String, AdaptiveLimit> entry : adaptiveLimits.entrySet()) {
+            result.put(entry.getKey(), Math.min(entry.getValue().limit(), maxRequests));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
     /**
      * Set a callback to be invoked each time the dispatcher becomes idle (when the number of running
      * calls returns to zero).
@@ -129,11 +233,25 @@ public final class Dispatcher {
     }
 
     synchronized void enqueue(AsyncCall call) {
-        if (runningAsyncCalls.size() < maxRequests && runningCallsForHost(call) < maxRequestsPerHost) {
-            runningAsyncCalls.add(call);
-            executorService().execute(call);
+        enqueuedCallCount.incrementAndGet();
+        HostCalls hostCalls = hosts.get(call.host());
+        if (hostCalls == null) {
+            hostCalls = new HostCalls(call.host());
+            hosts.put(call.host(), hostCalls);
+        }
+
+        if (runningAsyncCount() < maxRequests && hostCalls.runningCount < limit(hostCalls)) {
+            start(call, hostCalls);
         } else {        // 如果当前队列中总共未执行的元素、或者同一个host的未执行的元素超出最大配额，等待
-            readyAsyncCalls.add(call);
+            call.enqueuedAtNanos = System.nanoTime();
+            deferredCallCount.incrementAndGet();
+            int priority = call.request().priority().ordinal();
+            hostCalls.queued(priority).add(call);
+            hostCalls.queuedCount++;
+            queuedCallsCount++;
+            if (hostCalls.runningCount < limit(hostCalls)) {
+                markReady(hostCalls, priority);
+            }
         }
     }
 
@@ -142,8 +260,13 @@ public final class Dispatcher {
      * Call#execute() synchronously} and {@linkplain Call#enqueue asynchronously}.
      */
     public synchronized void cancelAll() {
-        for (AsyncCall call : readyAsyncCalls) {
-            call.get().cancel();
+        for (HostCalls hostCalls : hosts.values()) {
+            for (Deque<AsyncCall> queued : hostCalls.queued) {
+                if (queued == null) continue;
+                for (AsyncCall call : queued) {
+                    call.get().cancel();
+                }
+            }
         }
 
         for (AsyncCall call : runningAsyncCalls) {
@@ -156,33 +279,116 @@ public final class Dispatcher {
     }
 
     private void promoteCalls() {
-        if (runningAsyncCalls.size() >= maxRequests) return; // Already running max capacity.
-        if (readyAsyncCalls.isEmpty()) return; // No ready calls to promote.
+        while (runningAsyncCount() < maxRequests && queuedCallsCount > 0) {
+            AsyncCall call = pollReadyCall();
+            if (call == null) return; // Every waiting call's host is at its limit.
 
-        for (Iterator<AsyncCall> i = readyAsyncCalls.iterator(); i.hasNext(); ) {
-            AsyncCall call = i.next();
+            recordQueueWait(System.nanoTime() - call.enqueuedAtNanos);
+            start(call, hosts.get(call.host()));
+        }
+    }
 
-            if (runningCallsForHost(call) < maxRequestsPerHost) {
-                i.remove();
-                runningAsyncCalls.add(call);
-                executorService().execute(call);
-            }
+    /**
+     * Removes and returns the next call to run, or null if every waiting call's host is at its
+     * limit.
+     */
+    private AsyncCall pollReadyCall() {
+        while (true) {
+            int priority = nextPriority();
+            if (priority == -1) return null;
 
-            if (runningAsyncCalls.size() >= maxRequests) return; // Reached max capacity.
+            HostCalls hostCalls = readyHosts.get(priority).removeFirst();
+            hostCalls.ready[priority] = false;
+            // 已达到上限的host在此处才被移出，等它有call结束时再放回就绪队列
+            if (hostCalls.runningCount >= limit(hostCalls)) continue;
+
+            Deque<AsyncCall> queued = hostCalls.queued.get(priority);
+            AsyncCall call = queued.removeFirst();
+            hostCalls.queuedCount--;
+            queuedCallsCount--;
+            if (!queued.isEmpty()) {
+                markReady(hostCalls, priority); // 排到队尾，同优先级的host轮流执行
+            }
+            return call;
         }
     }
 
     /**
-     * Returns the number of running calls that share a host with {@code call}.
+     * Picks the priority to serve next by smooth weighted round-robin over the priorities that have
+     * ready hosts. Returns -1 if none do.
      */
-    private int runningCallsForHost(AsyncCall call) {
-        int result = 0;
-        for (AsyncCall c : runningAsyncCalls) {
-            if (c.host().equals(call.host())) result++;
+    private int nextPriority() {
+        int totalWeight = 0;
+        int result = -1;
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            if (readyHosts.get(i).isEmpty()) {
+                currentWeights[i] = 0;
+                continue;
+            }
+            currentWeights[i] += PRIORITIES[i].weight;
+            totalWeight += PRIORITIES[i].weight;
+            if (result == -1 || currentWeights[i] > currentWeights[result]) result = i;
         }
+        if (result != -1) currentWeights[result] -= totalWeight;
         return result;
     }
 
+    private void start(AsyncCall call, HostCalls hostCalls) {
+        runningAsyncCalls.add(call);
+        call.startedAtNanos = System.nanoTime();
+        hostCalls.runningCount++;
+        recordHostConcurrency(hostCalls.runningCount);
+        executorService().execute(call);
+    }
+
+    /** Returns the number of async calls and hedges running, which {@link #maxRequests} limits. */
+    private int runningAsyncCount() {
+        return runningAsyncCalls.size() + runningHedgesCount;
+    }
+
+    /** Puts {@code hostCalls} back in the ready queues for each priority it has calls waiting. */
+    private void markReady(HostCalls hostCalls) {
+        if (hostCalls.queuedCount == 0 || hostCalls.runningCount >= limit(hostCalls)) return;
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            Deque<AsyncCall> queued = hostCalls.queued.get(i);
+            if (queued != null && !queued.isEmpty()) markReady(hostCalls, i);
+        }
+    }
+
+    /** Returns the number of calls {@code hostCalls} may run at once. */
+    private int limit(HostCalls hostCalls) {
+        if (!adaptiveRequestsPerHost) return maxRequestsPerHost;
+        if (hostCalls.limit == null) {
+            AdaptiveLimit limit = adaptiveLimits.get(hostCalls.host);
+            if (limit == null) {
+                limit = new AdaptiveLimit(maxRequestsPerHost);
+                adaptiveLimits.put(hostCalls.host, limit);
+            }
+            hostCalls.limit = limit;
+        }
+        return Math.min(hostCalls.limit.limit(), maxRequests);
+    }
+
+    private void markReady(HostCalls hostCalls, int priority) {
+        if (hostCalls.ready[priority]) return;
+        hostCalls.ready[priority] = true;
+        readyHosts.get(priority).addLast(hostCalls);
+    }
+
+    private void recordHostConcurrency(int hostCalls) {
+        if (hostCalls > maxRunningCallsPerHost.get()) {
+            // 只在持锁时写入，直接set即可
+            maxRunningCallsPerHost.set(hostCalls);
+        }
+    }
+
+    private void recordQueueWait(long waitNanos) {
+        queueWaitNanos.addAndGet(waitNanos);
+        if (waitNanos > maxQueueWaitNanos.get()) {
+            maxQueueWaitNanos.set(waitNanos);
+        }
+    }
+
     /**
      * Used by {@code Call#execute} to signal it is in-flight.
      * 登机成功
@@ -191,6 +397,62 @@ public final class Dispatcher {
         runningSyncCalls.add(call);
     }
 
+    /**
+     * Runs {@code hedge}, a hedged attempt at a call to {@code host}, if the limits have room for
+     * another call to that host. Hedges never wait: returns false if it can't run now. Each hedge
+     * that runs must signal completion with {@link #hedgeFinished}.
+     */
+    synchronized boolean executeHedge(Runnable hedge, String host) {
+        HostCalls hostCalls = hosts.get(host);
+        if (hostCalls == null) {
+            hostCalls = new HostCalls(host);
+            hosts.put(host, hostCalls);
+        }
+        if (runningAsyncCount() >= maxRequests || hostCalls.runningCount >= limit(hostCalls)) {
+            if (hostCalls.runningCount == 0 && hostCalls.queuedCount == 0) hosts.remove(host);
+            return false;
+        }
+        runningHedgesCount++;
+        hostCalls.runningCount++;
+        try {
+            executorService().execute(hedge);
+        } catch (RejectedExecutionException e) {
+            runningHedgesCount--;
+            release(hostCalls);
+            throw e;
+        }
+        recordHostConcurrency(hostCalls.runningCount);
+        return true;
+    }
+
+    /**
+     * Used by hedges started with {@link #executeHedge} to signal completion.
+     */
+    void hedgeFinished(String host) {
+        Runnable idleCallback;
+        boolean idle;
+        synchronized (this) {
+            runningHedgesCount--;
+            release(hosts.get(host));
+            promoteCalls();
+            idle = runningCallsCount() == 0 && runningHedgesCount == 0;
+            idleCallback = this.idleCallback;
+        }
+        if (idle && idleCallback != null) {
+            idleCallback.run();
+        }
+    }
+
+    /** Frees one of the running slots of {@code hostCalls}. */
+    private void release(HostCalls hostCalls) {
+        hostCalls.runningCount--;
+        if (hostCalls.runningCount == 0 && hostCalls.queuedCount == 0) {
+            hosts.remove(hostCalls.host);
+        } else {
+            markReady(hostCalls);
+        }
+    }
+
     /**
      * Used by {@code AsyncCall#run} to signal completion.
      */
@@ -222,9 +484,20 @@ public final class Dispatcher {
                 throw new AssertionError("Call wasn't in-flight!");
             }
             if (promoteCalls) {
+                // 只有异步call会走到这里，释放它占用的host配额
+                AsyncCall asyncCall = (AsyncCall) call;
+                String host = asyncCall.host();
+                HostCalls hostCalls = hosts.get(host);
+                if (adaptiveRequestsPerHost && asyncCall.latencyNanos != -1L) {
+                    limit(hostCalls);
+                    hostCalls.limit.onSample(asyncCall.startedAtNanos, asyncCall.latencyNanos,
+                            asyncCall.overloaded, asyncCall.timedOut, hostCalls.runningCount,
+                            maxRequests);
+                }
+                release(hostCalls);
                 promoteCalls();
             }
-            runningCallsCount = runningCallsCount();
+            runningCallsCount = runningCallsCount() + runningHedgesCount;
             idleCallback = this.idleCallback;
         }
 
@@ -235,12 +508,18 @@ public final class Dispatcher {
     }
 
     /**
-     * Returns a snapshot of the calls currently awaiting execution.
+     * Returns a snapshot of the calls currently awaiting execution, highest priority first.
      */
     public synchronized List<Call> queuedCalls() {
         List<Call> result = new ArrayList<>();
-        for (AsyncCall asyncCall : readyAsyncCalls) {
-            result.add(asyncCall.get());
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            for (HostCalls hostCalls : hosts.values()) {
+                Deque<AsyncCall> queued = hostCalls.queued.get(i);
+                if (queued == null) continue;
+                for (AsyncCall asyncCall : queued) {
+                    result.add(asyncCall.get());
+                }
+            }
         }
         return Collections.unmodifiableList(result);
     }
@@ -258,11 +537,119 @@ public final class Dispatcher {
     }
 
     public synchronized int queuedCallsCount() {
-        return readyAsyncCalls.size();
+        return queuedCallsCount;
+    }
+
+    /**
+     * Returns a snapshot of the number of running calls for each host, both synchronous and
+     * asynchronous.
+     */
+    public synchronized Map<String, Integer> runningCallsPerHost() {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (Map.Entry<String, HostCalls> entry : hosts.entrySet()) {
+            if (entry.getValue().runningCount > 0) {
+                result.put(entry.getKey(), entry.getValue().runningCount);
+            }
+        }
+        for (RealCall call : runningSyncCalls) {
+            String host = call.originalRequest.url().host();
+            Integer count = result.get(host);
+            result.put(host, count != null ? count + 1 : 1);
+        }
+        return Collections.unmodifiableMap(result);
     }
 
     public synchronized int runningCallsCount() {
         // 统计同步和异步队列中的总数
         return runningAsyncCalls.size() + runningSyncCalls.size();
     }
+
+    /**
+     * Running and waiting async calls for one host. Guarded by the dispatcher.
+     */
+    static final class HostCalls {
+        final String host;
+        int runningCount;
+        int queuedCount;
+        /** Waiting calls by priority, created on first use. */
+        final List<Deque<AsyncCall>> queued =
+                new ArrayList<>(Collections.<Deque<AsyncCall>>nCopies(PRIORITIES.length, null));
+        /** Whether this host is in {@code readyHosts} for each priority. */
+        final boolean[] ready = new boolean[PRIORITIES.length];
+        /** This host's adaptive limit, looked up on first use. */
+        AdaptiveLimit limit;
+
+        HostCalls(String host) {
+            this.host = host;
+        }
+
+        Deque<AsyncCall> queued(int priority) {
+            Deque<AsyncCall> result = queued.get(priority);
+            if (result == null) {
+                result = new ArrayDeque<>();
+                queued.set(priority, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * An additive-increase, multiplicative-decrease concurrency limit for one host. Guarded by the
+     * dispatcher.
+     */
+    static final class AdaptiveLimit {
+        /** The factor the limit is multiplied by when a call shows the host is overloaded. */
+        static final double BACKOFF_RATIO = 0.75;
+        /** Calls slower than this multiple of the baseline latency count as overloaded. */
+        static final long LATENCY_TOLERANCE = 2;
+        /** Each sample above the baseline moves it this fraction of the way, so it can recover. */
+        static final int BASELINE_DRIFT = 64;
+
+        double limit;
+        /** The lowest recent latency, or 0 before the first sample. */
+        long baselineNanos;
+        /** Calls started before this were in flight during the last decrease, and can't cause another. */
+        long lastDecreaseAtNanos;
+
+        AdaptiveLimit(int initialLimit) {
+            this.limit = initialLimit;
+            this.lastDecreaseAtNanos = System.nanoTime();
+        }
+
+        int limit() {
+            return (int) limit;
+        }
+
+        /**
+         * Records a completed call that started at {@code startedAtNanos} while {@code inFlight} calls to
+         * this host were running. The call was {@code overloaded} if it got a 429 or 503, and
+         * {@code timedOut} if connecting or reading timed out. A timeout counts as overload only once the
+         * host has answered before; until then it may just be unreachable.
+         */
+        void onSample(long startedAtNanos, long latencyNanos, boolean overloaded, boolean timedOut,
+                      int inFlight, int maxLimit) {
+            if (timedOut) {
+                if (baselineNanos == 0) return;
+                overloaded = true;
+            }
+
+            if (overloaded) {
+                // 失败请求的耗时不代表正常延迟，不参与基线
+            } else if (baselineNanos == 0 || latencyNanos < baselineNanos) {
+                baselineNanos = latencyNanos;
+            } else {
+                baselineNanos += (latencyNanos - baselineNanos) / BASELINE_DRIFT;
+            }
+
+            if (overloaded || latencyNanos > baselineNanos * LATENCY_TOLERANCE) {
+                // 同一批并发中的多个慢请求只下调一次，避免连续多次下调
+                if (startedAtNanos - lastDecreaseAtNanos < 0) return;
+                limit = Math.max(1, limit * BACKOFF_RATIO);
+                lastDecreaseAtNanos = System.nanoTime();
+            } else if (inFlight >= (int) limit) {
+                // 只有上限真正被用满时才探测更高的并发
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+    }
 }
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.internal.NamedRunnable;
+import okhttp3.internal.TimerWheel;
+import okhttp3.internal.http.RealInterceptorChain;
+import okhttp3.internal.http.RetryAndFollowUpInterceptor;
+
+import static okhttp3.internal.Util.closeQuietly;
+
+/**
+ * Runs a hedgeable call as up to two racing attempts, as configured by the client's {@link
+ * HedgingPolicy}. Each attempt has its own {@link RetryAndFollowUpInterceptor} and so its own
+ * stream allocation; the first attempt runs on the calling thread, and the hedge on the
+ * dispatcher's executor. The hedge counts against the dispatcher's limits like a call to the same
+ * host, and is skipped when they leave no room for it. It never joins a coalesced request: that
+ * would only wait on the exchange it's meant to race. One instance per call.
+ */
+final class HedgingInterceptor implements Interceptor {
+    private final OkHttpClient client;
+    private final RealCall call;
+    private final HedgingPolicy policy;
+    private volatile Object callStackTrace;
+
+    // 以下字段由this保护
+    private final List<Attempt> attempts = new ArrayList<>(2);
+    private boolean canceled;
+    private boolean primaryDone;
+    private Attempt hedge;
+    private Attempt winner;
+    private Response hedgeResponse;
+    private boolean hedgeDone;
+
+    HedgingInterceptor(OkHttpClient client, RealCall call, HedgingPolicy policy) {
+        this.client = client;
+        this.call = call;
+        this.policy = policy;
+    }
+
+    void setCallStackTrace(Object callStackTrace) {
+        this.callStackTrace = callStackTrace;
+    }
+
+    /** Cancels every attempt of the call, including ones not yet started. */
+    void cancel() {
+        List<Attempt> toCancel;
+        synchronized (this) {
+            canceled = true;
+            toCancel = new ArrayList<>(attempts);
+        }
+        for (Attempt attempt : toCancel) {
+            attempt.retryAndFollowUpInterceptor.cancel();
+        }
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final Request request = chain.request();
+        if (!policy.hedgeable(request)) return chain.proceed(request);
+
+        policy.hedgeableCallCount.incrementAndGet();
+        final long startNanos = System.nanoTime();
+        Attempt primary = newAttempt();
+        TimerWheel.Timeout hedgeTimer;
+        try {
+            hedgeTimer = TimerWheel.shared().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    startHedge(request, startNanos);
+                }
+            }, policy.delayNanos(request.url().host()), TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            hedgeTimer = null;
+        }
+
+        Response response = null;
+        IOException failure = null;
+        boolean completed = false;
+        try {
+            response = primary.execute(request);
+            completed = true;
+        } catch (IOException e) {
+            failure = e;
+            completed = true;
+        } finally {
+            if (hedgeTimer != null) hedgeTimer.cancel();
+            // 非IO异常直接抛出，取消可能已经开始的对冲请求
+            if (!completed) cancel();
+        }
+
+        Attempt won;
+        Attempt loser = null;
+        synchronized (this) {
+            primaryDone = true;
+            if (winner == null && response != null) {
+                winner = primary;
+                loser = hedge;
+            } else if (winner == null && hedge != null) {
+                // 第一次尝试失败，但对冲请求还在进行，等它的结果
+                boolean interrupted = false;
+                while (!hedgeDone) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+            won = winner;
+        }
+
+        if (won == primary) {
+            if (loser != null) loser.lose();
+            policy.recordLatency(request.url().host(), System.nanoTime() - startNanos);
+            return response;
+        }
+        if (response != null) {
+            // 对冲请求已经胜出，本次的响应作废
+            closeQuietly(response);
+        }
+        if (won != null) return hedgeResponse;
+        throw failure != null ? failure : new IOException("Canceled");
+    }
+
+    private synchronized Attempt newAttempt() throws IOException {
+        if (canceled) throw new IOException("Canceled");
+        Attempt attempt = new Attempt(true);
+        attempts.add(attempt);
+        return attempt;
+    }
+
+    /** Starts the hedged attempt, unless the first attempt has already finished. */
+    private void startHedge(final Request request, final long startNanos) {
+        final Attempt attempt;
+        synchronized (this) {
+            if (primaryDone || canceled) return;
+            attempt = new Attempt(false);
+            attempts.add(attempt);
+            hedge = attempt;
+        }
+        final Dispatcher dispatcher = client.dispatcher();
+        final String host = request.url().host();
+        boolean started;
+        try {
+            started = dispatcher.executeHedge(
+                    new NamedRunnable("OkHttp %s hedge", call.redactedUrl()) {
+                        @Override
+                        protected void execute() {
+                            policy.hedgeCount.incrementAndGet();
+                            try {
+                                runHedge(attempt, request, startNanos);
+                            } finally {
+                                dispatcher.hedgeFinished(host);
+                            }
+                        }
+                    }, host);
+        } catch (RejectedExecutionException e) {
+            started = false;
+        }
+        if (!started) {
+            // 没有空闲的并发配额，放弃对冲，由第一次尝试决定结果
+            hedgeFinished(attempt, null);
+        }
+    }
+
+    private void runHedge(Attempt attempt, Request request, long startNanos) {
+        Response response = null;
+        boolean won;
+        try {
+            response = attempt.execute(request);
+        } catch (IOException ignored) {
+            // 对冲失败不影响第一次尝试，由它决定call的结果
+        } finally {
+            won = hedgeFinished(attempt, response);
+        }
+        if (won) {
+            policy.recordLatency(request.url().host(), System.nanoTime() - startNanos);
+        }
+    }
+
+    /** Records the hedge's outcome and returns true if it won. */
+    private boolean hedgeFinished(Attempt attempt, Response response) {
+        Attempt loser = null;
+        synchronized (this) {
+            hedgeDone = true;
+            if (response != null && winner == null) {
+                winner = attempt;
+                hedgeResponse = response;
+                loser = attempts.get(0);
+                // 在唤醒第一次尝试之前计数，call返回时统计已经可见
+                policy.hedgeWinCount.incrementAndGet();
+            }
+            notifyAll();
+        }
+        if (loser != null) {
+            // 取消第一次尝试，它所在的调用线程会拿到对冲请求的响应
+            loser.lose();
+            return true;
+        }
+        if (response != null) closeQuietly(response);
+        return false;
+    }
+
+    /** One attempt at the call, with its own stream allocation. */
+    final class Attempt {
+        final AttemptListener listener;
+        final RetryAndFollowUpInterceptor retryAndFollowUpInterceptor;
+        final boolean coalesce;
+
+        Attempt(boolean coalesce) {
+            this.coalesce = coalesce;
+            EventListener eventListener = call.eventListener;
+            this.listener = eventListener != EventListener.NONE
+                    ? new AttemptListener(eventListener)
+                    : null;
+            this.retryAndFollowUpInterceptor = new RetryAndFollowUpInterceptor(client, call,
+                    listener != null ? listener : eventListener, false);
+            retryAndFollowUpInterceptor.setCallStackTrace(callStackTrace);
+        }
+
+        Response execute(Request request) throws IOException {
+            List<Interceptor> interceptors = new ArrayList<>();
+            interceptors.add(retryAndFollowUpInterceptor);
+            call.addInterceptorsAfterRetry(interceptors, coalesce);
+            Interceptor.Chain chain = new RealInterceptorChain(
+                    interceptors, null, null,
+                    null, 0, request);
+            return chain.proceed(request);
+        }
+
+        /** Silences this attempt's events and cancels it. */
+        void lose() {
+            if (listener != null) listener.muted = true;
+            retryAndFollowUpInterceptor.cancel();
+        }
+    }
+
+    /**
+     * Forwards an attempt's events to the call's listener until the attempt loses the race, so the
+     * listener sees one {@code callEnd} and nothing from a canceled attempt after it was canceled.
+     */
+    static final class AttemptListener extends EventListener {
+        final EventListener delegate;
+        volatile boolean muted;
+
+        AttemptListener(EventListener delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            if (!muted) delegate.dnsStart(call, domainName);
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+            if (!muted) delegate.dnsEnd(call, domainName, inetAddressList);
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            if (!muted) delegate.connectStart(call, inetSocketAddress, proxy);
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            if (!muted) delegate.secureConnectStart(call);
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            if (!muted) delegate.secureConnectEnd(call, handshake);
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                               Protocol protocol) {
+            if (!muted) delegate.connectEnd(call, inetSocketAddress, proxy, protocol);
+        }
+
+        @Override
+        public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                                  Protocol protocol, IOException ioe) {
+            if (!muted) delegate.connectFailed(call, inetSocketAddress, proxy, protocol, ioe);
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            if (!muted) delegate.connectionAcquired(call, connection);
+        }
+
+        @Override
+        public void connectionReleased(Call call, Connection connection) {
+            if (!muted) delegate.connectionReleased(call, connection);
+        }
+
+        @Override
+        public void requestHeadersStart(Call call) {
+            if (!muted) delegate.requestHeadersStart(call);
+        }
+
+        @Override
+        public void requestHeadersEnd(Call call, Request request) {
+            if (!muted) delegate.requestHeadersEnd(call, request);
+        }
+
+        @Override
+        public void requestBodyStart(Call call) {
+            if (!muted) delegate.requestBodyStart(call);
+        }
+
+        @Override
+        public void requestBodyEnd(Call call, long byteCount) {
+            if (!muted) delegate.requestBodyEnd(call, byteCount);
+        }
+
+        @Override
+        public void responseHeadersStart(Call call) {
+            if (!muted) delegate.responseHeadersStart(call);
+        }
+
+        @Override
+        public void responseHeadersEnd(Call call, Response response) {
+            if (!muted) delegate.responseHeadersEnd(call, response);
+        }
+
+        @Override
+        public void responseBodyStart(Call call) {
+            if (!muted) delegate.responseBodyStart(call);
+        }
+
+        @Override
+        public void responseBodyEnd(Call call, long byteCount) {
+            if (!muted) delegate.responseBodyEnd(call, byteCount);
+        }
+
+        @Override
+        public void callEnd(Call call) {
+            if (!muted) delegate.callEnd(call);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.internal.http.HttpMethod;
+
+/**
+ * When to send a second, hedged attempt of a call whose first attempt is slow. If the first attempt
+ * hasn't received response headers after the hedging delay, a second attempt is started on another
+ * connection or stream. Whichever attempt receives headers first is returned and the other is
+ * canceled.
+ * <p>
+ * <p>Only calls with an {@linkplain HttpMethod#isIdempotent idempotent} method and no request body
+ * are hedged, since the server may see both attempts.
+ * <p>
+ * <p>A policy keeps latency samples and counters, so share one instance between the clients that
+ * should learn from each other.
+ */
+public final class HedgingPolicy {
+    /** Latencies remembered per host. */
+    private static final int WINDOW_SIZE = 100;
+    /** Until a host has this many samples its delay is the maximum delay. */
+    private static final int MIN_SAMPLES = 20;
+    /** How many new samples a host needs before its percentile is recomputed. */
+    private static final int RECOMPUTE_INTERVAL = 10;
+    private static final int MAX_TRACKED_HOSTS = 64;
+
+    private final double percentile;
+    private final long minDelayNanos;
+    private final long maxDelayNanos;
+    /** Latency windows by host, least recently used first. Guarded by this. */
+    private final Map<String, LatencyWindow> windows =
+            new LinkedHashMap<String, LatencyWindow>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, LatencyWindow> eldest) {
+                    return size() > MAX_TRACKED_HOSTS;
+                }
+            };
+
+    final AtomicLong hedgeableCallCount = new AtomicLong();
+    final AtomicLong hedgeCount = new AtomicLong();
+    final AtomicLong hedgeWinCount = new AtomicLong();
+
+    private HedgingPolicy(double percentile, long minDelayNanos, long maxDelayNanos) {
+        this.percentile = percentile;
+        this.minDelayNanos = minDelayNanos;
+        this.maxDelayNanos = maxDelayNanos;
+    }
+
+    /** Returns a policy that hedges any call still waiting for headers after {@code delay}. */
+    public static HedgingPolicy fixedDelay(long delay, TimeUnit unit) {
+        if (delay <= 0) throw new IllegalArgumentException("delay <= 0: " + delay);
+        if (unit == null) throw new NullPointerException("unit == null");
+        long delayNanos = unit.toNanos(delay);
+        return new HedgingPolicy(0.0, delayNanos, delayNanos);
+    }
+
+    /**
+     * Returns a policy that hedges a call once it has waited for headers longer than {@code
+     * percentile} of recent calls to the same host. For example, with a percentile of 0.95 roughly
+     * one call in twenty is hedged. The delay is clamped to {@code [minDelay, maxDelay]}, and is
+     * {@code maxDelay} until the host has enough samples.
+     */
+    public static HedgingPolicy percentile(double percentile, long minDelay, long maxDelay,
+                                           TimeUnit unit) {
+        if (!(percentile > 0.0 && percentile < 1.0)) {
+            throw new IllegalArgumentException("percentile not in (0, 1): " + percentile);
+        }
+        if (minDelay <= 0) throw new IllegalArgumentException("minDelay <= 0: " + minDelay);
+        if (maxDelay < minDelay) {
+            throw new IllegalArgumentException("maxDelay < minDelay: " + maxDelay);
+        }
+        if (unit == null) throw new NullPointerException("unit == null");
+        return new HedgingPolicy(percentile, unit.toNanos(minDelay), unit.toNanos(maxDelay));
+    }
+
+    boolean hedgeable(Request request) {
+        return HttpMethod.isIdempotent(request.method()) && request.body() == null;
+    }
+
+    /** Returns how long a call to {@code host} may wait for headers before it is hedged. */
+    synchronized long delayNanos(String host) {
+        if (percentile == 0.0) return maxDelayNanos;
+        LatencyWindow window = windows.get(host);
+        // 样本不足时用最大延迟，避免冷启动时频繁对冲
+        return window != null && window.count >= MIN_SAMPLES ? window.delayNanos : maxDelayNanos;
+    }
+
+    /** Records how long a call to {@code host} took to receive its response headers. */
+    synchronized void recordLatency(String host, long latencyNanos) {
+        if (percentile == 0.0) return;
+        LatencyWindow window = windows.get(host);
+        if (window == null) {
+            window = new LatencyWindow();
+            windows.put(host, window);
+        }
+        window.add(latencyNanos);
+        if (window.count >= MIN_SAMPLES && window.sinceRecompute >= RECOMPUTE_INTERVAL) {
+            window.sinceRecompute = 0;
+            long[] sorted = Arrays.copyOf(window.samples, window.count);
+            Arrays.sort(sorted);
+            long delay = sorted[(int) Math.min(sorted.length - 1, (long) (percentile * sorted.length))];
+            window.delayNanos = Math.max(minDelayNanos, Math.min(maxDelayNanos, delay));
+        }
+    }
+
+    /** Returns the number of calls that were eligible for hedging. */
+    public long hedgeableCallCount() {
+        return hedgeableCallCount.get();
+    }
+
+    /** Returns the number of hedged attempts started. */
+    public long hedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /** Returns the number of hedged attempts that received headers before the first attempt. */
+    public long hedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    /** A ring of recent latencies for one host. Guarded by the policy. */
+    static final class LatencyWindow {
+        final long[] samples = new long[WINDOW_SIZE];
+        int count;
+        int next;
+        int sinceRecompute;
+        /** The clamped percentile, once there are {@code MIN_SAMPLES}. */
+        long delayNanos;
+
+        void add(long latencyNanos) {
+            samples[next] = latencyNanos;
+            next = (next + 1) % samples.length;
+            if (count < samples.length) count++;
+            sinceRecompute++;
+        }
+    }
+}
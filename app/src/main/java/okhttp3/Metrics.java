@@ -0,0 +1,475 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.io.Closeable;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.internal.TimerWheel;
+import okhttp3.internal.connection.ConnectionStats;
+import okhttp3.internal.platform.Platform;
+
+import static okhttp3.internal.platform.Platform.WARN;
+
+/**
+ * A point-in-time snapshot of a client's {@link ConnectionPool}, {@link Dispatcher}, {@link
+ * HedgingPolicy}, {@link CachingDns} and {@link Cache} statistics. Take one with {@link OkHttpClient#metrics()}, or have one pushed periodically
+ * to a {@link Reporter} with {@link OkHttpClient#reportMetrics}.
+ *
+ * <p>The counters behind a snapshot are atomics that only grow, so recording them never takes a
+ * lock on the hot path. Counters are cumulative since the component was created; subtract two
+ * snapshots to get a rate. Components may be shared between clients (for example via {@link
+ * OkHttpClient#newBuilder()}), in which case so are their counters.
+ *
+ * <p>Each counter is read individually, so a snapshot taken while calls are in flight may be off by
+ * a few events between related counters.
+ */
+public final class Metrics {
+    /**
+     * Receives snapshots pushed by {@link OkHttpClient#reportMetrics}. Invoked on a shared
+     * background thread; implementations should hand the snapshot off rather than block.
+     */
+    public interface Reporter {
+        void report(Metrics metrics);
+    }
+
+    /** Why a connection was removed from the pool. */
+    public enum EvictionReason {
+        /** Idle for longer than the pool's keep alive duration. */
+        IDLE_TIMEOUT(ConnectionStats.EVICT_IDLE_TIMEOUT),
+        /** Idle while the pool already held its maximum number of idle connections. */
+        IDLE_LIMIT(ConnectionStats.EVICT_IDLE_LIMIT),
+        /** Marked unusable for new streams, for example after {@code Connection: close}. */
+        NO_NEW_STREAMS(ConnectionStats.EVICT_NO_NEW_STREAMS),
+        /** Removed by {@link ConnectionPool#evictAll()}. */
+        EVICT_ALL(ConnectionStats.EVICT_ALL),
+        /** The least recently used idle connection, closed to make room in the connection budget. */
+        BUDGET(ConnectionStats.EVICT_BUDGET);
+
+        final int index;
+
+        EvictionReason(int index) {
+            this.index = index;
+        }
+    }
+
+    /** How the cache handled a request. */
+    public enum CacheStatus {
+        /** Served from the cache without touching the network. */
+        HIT,
+        /** Validated with the server, which answered 304 Not Modified. */
+        CONDITIONAL_HIT,
+        /** Validated with the server, which sent a full response. */
+        CONDITIONAL_MISS,
+        /** Nothing usable was cached; the network served the response. */
+        MISS,
+        /** {@code only-if-cached} with nothing usable in the cache; the call got a 504. */
+        UNSATISFIABLE
+    }
+
+    // Pool.
+    private final int connectionCount;
+    private final int idleConnectionCount;
+    private final long connectionsOpened;
+    private final long poolHits;
+    private final long poolMisses;
+    private final long leakedAllocations;
+    private final long[] evictions;
+    private final int http2StreamCount;
+    private final long http2StreamsOpened;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final int maxConnections;
+    private final long connectionBudgetWaits;
+    private final long connectionBudgetTimeouts;
+    private final long connectionBudgetWaitNanos;
+    private final long maxConnectionBudgetWaitNanos;
+
+    // Dispatcher.
+    private final int runningCallsCount;
+    private final int queuedCallsCount;
+    private final long enqueuedCallCount;
+    private final long deferredCallCount;
+    private final long queueWaitNanos;
+    private final long maxQueueWaitNanos;
+    private final int maxRunningCallsPerHost;
+    private final Map<String, Integer> runningCallsPerHost;
+
+    // Hedging. All zero if the client doesn't hedge.
+    private final long hedgeableCallCount;
+    private final long hedgeCount;
+    private final long hedgeWinCount;
+
+    // DNS. All zero unless the client's DNS is a CachingDns.
+    private final long dnsHitCount;
+    private final long dnsNegativeHitCount;
+    private final long dnsMissCount;
+    private final long dnsRefreshCount;
+
+    // Cache. All zero if the client has no cache.
+    private final int cacheRequestCount;
+    private final int[] cacheStatusCounts;
+
+    private Metrics(ConnectionPool pool, Dispatcher dispatcher, HedgingPolicy hedging, Dns dns,
+                    Cache cache) {
+        ConnectionStats stats = pool.stats;
+        this.connectionCount = pool.connectionCount();
+        this.idleConnectionCount = pool.idleConnectionCount();
+        this.connectionsOpened = stats.connectionsOpened();
+        this.poolHits = stats.poolHits();
+        this.poolMisses = stats.poolMisses();
+        this.leakedAllocations = stats.leakedAllocations();
+        EvictionReason[] reasons = EvictionReason.values();
+        this.evictions = new long[reasons.length];
+        for (EvictionReason reason : reasons) {
+            evictions[reason.ordinal()] = stats.evictions(reason.index);
+        }
+        this.http2StreamCount = pool.http2StreamCount();
+        this.http2StreamsOpened = stats.http2StreamsOpened();
+        this.bytesRead = stats.bytesRead();
+        this.bytesWritten = stats.bytesWritten();
+        this.maxConnections = pool.maxConnections();
+        this.connectionBudgetWaits = stats.budgetWaits();
+        this.connectionBudgetTimeouts = stats.budgetWaitTimeouts();
+        this.connectionBudgetWaitNanos = stats.budgetWaitNanos();
+        this.maxConnectionBudgetWaitNanos = stats.maxBudgetWaitNanos();
+
+        this.runningCallsCount = dispatcher.runningCallsCount();
+        this.queuedCallsCount = dispatcher.queuedCallsCount();
+        this.enqueuedCallCount = dispatcher.enqueuedCallCount.get();
+        this.deferredCallCount = dispatcher.deferredCallCount.get();
+        this.queueWaitNanos = dispatcher.queueWaitNanos.get();
+        this.maxQueueWaitNanos = dispatcher.maxQueueWaitNanos.get();
+        this.maxRunningCallsPerHost = dispatcher.maxRunningCallsPerHost.get();
+        this.runningCallsPerHost = dispatcher.runningCallsPerHost();
+
+        this.hedgeableCallCount = hedging != null ? hedging.hedgeableCallCount() : 0L;
+        this.hedgeCount = hedging != null ? hedging.hedgeCount() : 0L;
+        this.hedgeWinCount = hedging != null ? hedging.hedgeWinCount() : 0L;
+
+        CachingDns cachingDns = dns instanceof CachingDns ? (CachingDns) dns : null;
+        this.dnsHitCount = cachingDns != null ? cachingDns.hitCount() : 0L;
+        this.dnsNegativeHitCount = cachingDns != null ? cachingDns.negativeHitCount() : 0L;
+        this.dnsMissCount = cachingDns != null ? cachingDns.missCount() : 0L;
+        this.dnsRefreshCount = cachingDns != null ? cachingDns.refreshCount() : 0L;
+
+        this.cacheStatusCounts = new int[CacheStatus.values().length];
+        if (cache != null) {
+            int conditional = cache.conditionalCount();
+            int conditionalHits = cache.conditionalHitCount();
+            this.cacheRequestCount = cache.requestCount();
+            cacheStatusCounts[CacheStatus.HIT.ordinal()] = cache.hitCount() - conditionalHits;
+            cacheStatusCounts[CacheStatus.CONDITIONAL_HIT.ordinal()] = conditionalHits;
+            cacheStatusCounts[CacheStatus.CONDITIONAL_MISS.ordinal()] =
+                    Math.max(0, conditional - conditionalHits);
+            cacheStatusCounts[CacheStatus.MISS.ordinal()] = cache.networkCount() - conditional;
+            cacheStatusCounts[CacheStatus.UNSATISFIABLE.ordinal()] = cache.unsatisfiableCount();
+        } else {
+            this.cacheRequestCount = 0;
+        }
+    }
+
+    static Metrics snapshot(OkHttpClient client) {
+        return new Metrics(client.connectionPool(), client.dispatcher(), client.hedgingPolicy(),
+                client.dns(), client.cache());
+    }
+
+    /**
+     * Pushes a snapshot of {@code client} to {@code reporter} every {@code period}. Close the
+     * returned handle to stop reporting.
+     */
+    static Closeable schedule(final OkHttpClient client, final Reporter reporter, long period,
+                              TimeUnit unit) {
+        if (reporter == null) throw new NullPointerException("reporter == null");
+        if (period <= 0) throw new IllegalArgumentException("period <= 0: " + period);
+        final long periodNanos = unit.toNanos(period);
+        final ReportTask task = new ReportTask(client, reporter, periodNanos);
+        task.start(System.nanoTime() + periodNanos);
+        return new Closeable() {
+            @Override
+            public void close() {
+                task.cancel();
+            }
+        };
+    }
+
+    /**
+     * Reports at a fixed rate on the shared {@link TimerWheel}, rescheduling itself after each run.
+     */
+    private static final class ReportTask implements Runnable {
+        private final OkHttpClient client;
+        private final Reporter reporter;
+        private final long periodNanos;
+
+        // 以下字段由this保护
+        private long nextRunAtNanos;
+        private TimerWheel.Timeout timeout;
+        private boolean canceled;
+
+        ReportTask(OkHttpClient client, Reporter reporter, long periodNanos) {
+            this.client = client;
+            this.reporter = reporter;
+            this.periodNanos = periodNanos;
+        }
+
+        synchronized void start(long runAtNanos) {
+            if (canceled) return;
+            nextRunAtNanos = runAtNanos;
+            timeout = TimerWheel.shared().schedule(
+                    this, runAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        synchronized void cancel() {
+            canceled = true;
+            if (timeout != null) timeout.cancel();
+        }
+
+        @Override
+        public void run() {
+            try {
+                reporter.report(snapshot(client));
+            } catch (RuntimeException e) {
+                // 上报失败不能取消后续的周期任务
+                Platform.get().log(WARN, "Metrics reporter failed", e);
+            }
+            long nextRunAt;
+            synchronized (this) {
+                // 按固定频率计算下次执行时间，上报耗时过长时不补发错过的次数
+                nextRunAt = nextRunAtNanos + periodNanos;
+                long now = System.nanoTime();
+                if (nextRunAt - now < 0) nextRunAt = now;
+            }
+            start(nextRunAt);
+        }
+    }
+
+    public int connectionCount() {
+        return connectionCount;
+    }
+
+    public int idleConnectionCount() {
+        return idleConnectionCount;
+    }
+
+    /** Returns the number of connections the pool has opened. */
+    public long connectionsOpened() {
+        return connectionsOpened;
+    }
+
+    /** Returns the number of times a call found a pooled connection to reuse. */
+    public long poolHits() {
+        return poolHits;
+    }
+
+    /** Returns the number of times a call found no pooled connection and had to open one. */
+    public long poolMisses() {
+        return poolMisses;
+    }
+
+    /** Returns the fraction of pool lookups that reused a connection, or 0 if there were none. */
+    public double poolReuseRate() {
+        long lookups = poolHits + poolMisses;
+        return lookups == 0 ? 0.0 : (double) poolHits / lookups;
+    }
+
+    /** Returns the number of response bodies that were never closed. */
+    public long leakedAllocations() {
+        return leakedAllocations;
+    }
+
+    public long evictions(EvictionReason reason) {
+        return evictions[reason.ordinal()];
+    }
+
+    /** Returns the number of HTTP/2 streams open at the time of the snapshot. */
+    public int http2StreamCount() {
+        return http2StreamCount;
+    }
+
+    public long http2StreamsOpened() {
+        return http2StreamsOpened;
+    }
+
+    /** Returns the number of response body bytes read, excluding headers. */
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    /** Returns the number of request body bytes written, excluding headers. */
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    /** Returns the pool's connection budget, or {@link Integer#MAX_VALUE} if it has none. */
+    public int maxConnections() {
+        return maxConnections;
+    }
+
+    /** Returns the number of times a new connection had to wait for room in the budget. */
+    public long connectionBudgetWaits() {
+        return connectionBudgetWaits;
+    }
+
+    /** Returns the number of budget waits that failed the call because no connection was freed. */
+    public long connectionBudgetTimeouts() {
+        return connectionBudgetTimeouts;
+    }
+
+    /** Returns the total time spent waiting for room in the budget, in nanoseconds. */
+    public long connectionBudgetWaitNanos() {
+        return connectionBudgetWaitNanos;
+    }
+
+    public long maxConnectionBudgetWaitNanos() {
+        return maxConnectionBudgetWaitNanos;
+    }
+
+    public int runningCallsCount() {
+        return runningCallsCount;
+    }
+
+    public int queuedCallsCount() {
+        return queuedCallsCount;
+    }
+
+    /** Returns the number of asynchronous calls enqueued on the dispatcher. */
+    public long enqueuedCallCount() {
+        return enqueuedCallCount;
+    }
+
+    /** Returns the number of asynchronous calls that had to wait for a free slot before running. */
+    public long deferredCallCount() {
+        return deferredCallCount;
+    }
+
+    /** Returns the total time deferred calls spent waiting, in nanoseconds. */
+    public long queueWaitNanos() {
+        return queueWaitNanos;
+    }
+
+    public long maxQueueWaitNanos() {
+        return maxQueueWaitNanos;
+    }
+
+    /**
+     * Returns the average wait of the deferred calls that have started, in nanoseconds. Calls still
+     * waiting aren't included.
+     */
+    public long averageQueueWaitNanos() {
+        long started = deferredCallCount - queuedCallsCount;
+        return started <= 0 ? 0L : queueWaitNanos / started;
+    }
+
+    /** Returns the most calls ever running concurrently against a single host. */
+    public int maxRunningCallsPerHost() {
+        return maxRunningCallsPerHost;
+    }
+
+    /** Returns the number of running calls for each host at the time of the snapshot. */
+    public Map<String, Integer> runningCallsPerHost() {
+        return runningCallsPerHost;
+    }
+
+    /** Returns the number of calls that were eligible for hedging. */
+    public long hedgeableCallCount() {
+        return hedgeableCallCount;
+    }
+
+    /** Returns the number of hedged attempts started. */
+    public long hedgeCount() {
+        return hedgeCount;
+    }
+
+    /** Returns the number of hedged attempts that received headers before the first attempt. */
+    public long hedgeWinCount() {
+        return hedgeWinCount;
+    }
+
+    /** Returns the number of DNS lookups answered from the cache. */
+    public long dnsHitCount() {
+        return dnsHitCount;
+    }
+
+    /** Returns the number of DNS lookups answered with a cached failure. */
+    public long dnsNegativeHitCount() {
+        return dnsNegativeHitCount;
+    }
+
+    /** Returns the number of DNS lookups that had to ask the resolver. */
+    public long dnsMissCount() {
+        return dnsMissCount;
+    }
+
+    public long dnsRefreshCount() {
+        return dnsRefreshCount;
+    }
+
+    public int cacheRequestCount() {
+        return cacheRequestCount;
+    }
+
+    public int cacheCount(CacheStatus status) {
+        return cacheStatusCounts[status.ordinal()];
+    }
+
+    /**
+     * Returns the fraction of cache-eligible requests served from the cache, with or without
+     * validation, or 0 if there were none.
+     */
+    public double cacheHitRatio() {
+        if (cacheRequestCount == 0) return 0.0;
+        int hits = cacheCount(CacheStatus.HIT) + cacheCount(CacheStatus.CONDITIONAL_HIT);
+        return (double) hits / cacheRequestCount;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder()
+                .append("Metrics{connections=").append(connectionCount)
+                .append(", idle=").append(idleConnectionCount)
+                .append(", opened=").append(connectionsOpened)
+                .append(", reuseRate=").append(String.format(Locale.US, "%.3f", poolReuseRate()))
+                .append(", evictions={");
+        for (EvictionReason reason : EvictionReason.values()) {
+            if (reason.ordinal() > 0) result.append(", ");
+            result.append(reason).append('=').append(evictions(reason));
+        }
+        return result.append("}, leaked=").append(leakedAllocations)
+                .append(", h2Streams=").append(http2StreamCount)
+                .append(", h2StreamsOpened=").append(http2StreamsOpened)
+                .append(", bytesRead=").append(bytesRead)
+                .append(", bytesWritten=").append(bytesWritten)
+                .append(", budgetWaits=").append(connectionBudgetWaits)
+                .append(", budgetTimeouts=").append(connectionBudgetTimeouts)
+                .append(", maxBudgetWaitNs=").append(maxConnectionBudgetWaitNanos)
+                .append(", running=").append(runningCallsCount)
+                .append(", queued=").append(queuedCallsCount)
+                .append(", deferred=").append(deferredCallCount)
+                .append(", avgQueueWaitNs=").append(averageQueueWaitNanos())
+                .append(", maxQueueWaitNs=").append(maxQueueWaitNanos)
+                .append(", maxPerHost=").append(maxRunningCallsPerHost)
+                .append(", hedged=").append(hedgeCount)
+                .append(", hedgesWon=").append(hedgeWinCount)
+                .append(", dnsHits=").append(dnsHitCount)
+                .append(", dnsMisses=").append(dnsMissCount)
+                .append(", cacheRequests=").append(cacheRequestCount)
+                .append(", cacheHitRatio=").append(String.format(Locale.US, "%.3f", cacheHitRatio()))
+                .append('}')
+                .toString();
+    }
+}
@@ -15,6 +15,9 @@
  */
 package okhttp3;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.net.ProxySelector;
@@ -25,8 +28,11 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.SocketFactory;
@@ -39,16 +45,23 @@ import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 
 import okhttp3.internal.Internal;
+import okhttp3.internal.NamedRunnable;
 import okhttp3.internal.Util;
 import okhttp3.internal.cache.InternalCache;
+import okhttp3.internal.cache2.CoalescingInterceptor;
+import okhttp3.internal.connection.AddressConnections;
+import okhttp3.internal.connection.ConnectionStats;
 import okhttp3.internal.connection.RealConnection;
 import okhttp3.internal.connection.RouteDatabase;
 import okhttp3.internal.connection.StreamAllocation;
+import okhttp3.internal.http.RetryAndFollowUpInterceptor;
 import okhttp3.internal.platform.Platform;
 import okhttp3.internal.tls.CertificateChainCleaner;
 import okhttp3.internal.tls.OkHostnameVerifier;
 import okhttp3.internal.ws.RealWebSocket;
 
+import static okhttp3.internal.platform.Platform.INFO;
+
 /**
  * Factory for {@linkplain Call calls}, which can be used to send HTTP requests and read their
  * responses.
@@ -144,20 +157,42 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
             }
 
             @Override
-            public boolean connectionBecameIdle(
-                    ConnectionPool pool, RealConnection connection) {
-                return pool.connectionBecameIdle(connection);
+            public AddressConnections addressConnections(ConnectionPool pool, Address address) {
+                return pool.addressConnections(address);
+            }
+
+            @Override
+            public void reserveConnection(ConnectionPool pool, long timeoutNanos)
+                    throws IOException {
+                pool.reserve(timeoutNanos);
             }
 
             @Override
-            public RealConnection get(
-                    ConnectionPool pool, Address address, StreamAllocation streamAllocation) {
-                return pool.get(address, streamAllocation);
+            public boolean tryReserveConnection(ConnectionPool pool) {
+                return pool.tryReserve();
             }
 
             @Override
-            public void put(ConnectionPool pool, RealConnection connection) {
-                pool.put(connection);
+            public void releaseConnectionReservation(ConnectionPool pool) {
+                pool.releaseReservation();
+            }
+
+            @Override
+            public boolean connectionBecameIdle(ConnectionPool pool, AddressConnections group,
+                                                RealConnection connection) {
+                return pool.connectionBecameIdle(group, connection);
+            }
+
+            @Override
+            public RealConnection get(ConnectionPool pool, AddressConnections group,
+                                      StreamAllocation streamAllocation) {
+                return pool.get(group, streamAllocation);
+            }
+
+            @Override
+            public void put(ConnectionPool pool, AddressConnections group,
+                            RealConnection connection) {
+                pool.put(group, connection);
             }
 
             @Override
@@ -165,6 +200,11 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
                 return connectionPool.routeDatabase;
             }
 
+            @Override
+            public ConnectionStats connectionStats(ConnectionPool connectionPool) {
+                return connectionPool.stats;
+            }
+
             @Override
             public void apply(ConnectionSpec tlsConfiguration, SSLSocket sslSocket, boolean isFallback) {
                 tlsConfiguration.apply(sslSocket, isFallback);
@@ -200,6 +240,7 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     final InternalCache internalCache;
     final SocketFactory socketFactory;
     final SSLSocketFactory sslSocketFactory;
+    final TlsSessionCache tlsSessionCache;
     final CertificateChainCleaner certificateChainCleaner;
     final HostnameVerifier hostnameVerifier;
     final CertificatePinner certificatePinner;
@@ -210,10 +251,14 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
     final boolean followSslRedirects;
     final boolean followRedirects;
     final boolean retryOnConnectionFailure;
+    final boolean fastFallback;
     final int connectTimeout;
     final int readTimeout;
     final int writeTimeout;
     final int pingInterval;
+    final EventListener.Factory eventListenerFactory;
+    final CoalescingInterceptor coalescingInterceptor;
+    final HedgingPolicy hedgingPolicy;
 
     public OkHttpClient() {
         this(new Builder());
@@ -231,6 +276,7 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
         this.cache = builder.cache;
         this.internalCache = builder.internalCache;
         this.socketFactory = builder.socketFactory;
+        this.tlsSessionCache = builder.tlsSessionCache;
 
         boolean isTLS = false;
         for (ConnectionSpec spec : connectionSpecs) {
@@ -242,7 +288,10 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
             this.certificateChainCleaner = builder.certificateChainCleaner;
         } else {
             X509TrustManager trustManager = systemDefaultTrustManager();
-            this.sslSocketFactory = systemDefaultSslSocketFactory(trustManager);
+            // 使用同一个会话缓存的客户端共享同一个SSLSocketFactory，从而共享TLS会话
+            this.sslSocketFactory = tlsSessionCache != null
+                    ? tlsSessionCache.sslSocketFactory(trustManager)
+                    : systemDefaultSslSocketFactory(trustManager);
             this.certificateChainCleaner = CertificateChainCleaner.get(trustManager);
         }
 
@@ -256,10 +305,14 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
         this.followSslRedirects = builder.followSslRedirects;
         this.followRedirects = builder.followRedirects;
         this.retryOnConnectionFailure = builder.retryOnConnectionFailure;
+        this.fastFallback = builder.fastFallback;
         this.connectTimeout = builder.connectTimeout;
         this.readTimeout = builder.readTimeout;
         this.writeTimeout = builder.writeTimeout;
         this.pingInterval = builder.pingInterval;
+        this.eventListenerFactory = builder.eventListenerFactory;
+        this.coalescingInterceptor = builder.coalescingInterceptor;
+        this.hedgingPolicy = builder.hedgingPolicy;
     }
 
     private X509TrustManager systemDefaultTrustManager() {
@@ -332,6 +385,11 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
         return cache;
     }
 
+    /** Returns the cache that TLS sessions are resumed from, or null if there's none. */
+    public TlsSessionCache tlsSessionCache() {
+        return tlsSessionCache;
+    }
+
     InternalCache internalCache() {
         return cache != null ? cache.internalCache : internalCache;
     }
@@ -380,6 +438,10 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
         return retryOnConnectionFailure;
     }
 
+    public boolean fastFallback() {
+        return fastFallback;
+    }
+
     public Dispatcher dispatcher() {
         return dispatcher;
     }
@@ -410,6 +472,90 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
         return networkInterceptors;
     }
 
+    public EventListener.Factory eventListenerFactory() {
+        return eventListenerFactory;
+    }
+
+    /**
+     * Returns the policy for hedging slow idempotent calls, or null if calls aren't hedged.
+     */
+    public HedgingPolicy hedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    /**
+     * Returns a snapshot of this client's connection pool, dispatcher and cache statistics.
+     */
+    public Metrics metrics() {
+        return Metrics.snapshot(this);
+    }
+
+    /**
+     * Pushes a {@linkplain #metrics() snapshot} to {@code reporter} every {@code period} on a shared
+     * daemon thread. Close the returned handle to stop reporting.
+     */
+    public Closeable reportMetrics(Metrics.Reporter reporter, long period, TimeUnit unit) {
+        return Metrics.schedule(this, reporter, period, unit);
+    }
+
+    /**
+     * Submits each of {@code requests} to the dispatcher and returns a batch that completes when all
+     * of them have. The calls run concurrently, subject to the dispatcher's limits, which favor no
+     * call of the batch over another beyond its {@linkplain Request#priority() priority}.
+     */
+    public CallBatch submitAll(List<Request> requests) {
+        List<CallFuture> futures = new ArrayList<>(requests.size());
+        for (Request request : requests) {
+            futures.add(CallFuture.submit(newCall(request)));
+        }
+        return new CallBatch(futures);
+    }
+
+    /**
+     * Opens connections to the hosts of {@code urls} ahead of time, so that the first calls to them
+     * skip DNS, TCP and TLS setup. Connections are opened on the dispatcher's executor until the pool
+     * holds {@code connectionsPerHost} connections to each host, or one HTTP/2 connection.
+     * <p>
+     * <p>Warm connections are ordinary idle connections: the pool evicts them once they outlive its
+     * keep-alive duration or exceed its idle connection limit. Failures are logged and otherwise
+     * ignored; a call to a host that couldn't be warmed connects as usual.
+     */
+    public void prewarm(List<HttpUrl> urls, final int connectionsPerHost) {
+        if (connectionsPerHost <= 0) {
+            throw new IllegalArgumentException("connectionsPerHost <= 0: " + connectionsPerHost);
+        }
+        // 同一地址只预热一次，多个url可能指向同一个host
+        Set<Address> addresses = new LinkedHashSet<>();
+        for (HttpUrl url : urls) {
+            addresses.add(RetryAndFollowUpInterceptor.createAddress(this, url));
+        }
+        for (final Address address : addresses) {
+            try {
+                dispatcher.executorService().execute(
+                        new NamedRunnable("OkHttp prewarm %s", address.url().host()) {
+                            @Override
+                            protected void execute() {
+                                StreamAllocation streamAllocation = new StreamAllocation(
+                                        connectionPool, address, null, EventListener.NONE, null);
+                                try {
+                                    streamAllocation.prewarm(OkHttpClient.this, connectionsPerHost);
+                                } catch (IOException | RuntimeException e) {
+                                    Platform.get().log(INFO, "Failed to prewarm connections to "
+                                            + address.url().redact(), e);
+                                } finally {
+                                    streamAllocation.release();
+                                }
+                            }
+                        });
+            } catch (RejectedExecutionException e) {
+                // 线程池已经关闭，后面的地址同样无法预热
+                Platform.get().log(INFO, "Failed to prewarm connections to "
+                        + address.url().redact(), e);
+                return;
+            }
+        }
+    }
+
     /**
      * Prepares the {@code request} to be executed at some point in the future.
      */
@@ -445,6 +591,7 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
         InternalCache internalCache;
         SocketFactory socketFactory;
         SSLSocketFactory sslSocketFactory;
+        TlsSessionCache tlsSessionCache;
         CertificateChainCleaner certificateChainCleaner;
         HostnameVerifier hostnameVerifier;
         CertificatePinner certificatePinner;
@@ -455,10 +602,14 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
         boolean followSslRedirects;
         boolean followRedirects;
         boolean retryOnConnectionFailure;
+        boolean fastFallback;
         int connectTimeout;
         int readTimeout;
         int writeTimeout;
         int pingInterval;
+        EventListener.Factory eventListenerFactory;
+        CoalescingInterceptor coalescingInterceptor;
+        HedgingPolicy hedgingPolicy;
 
         public Builder() {
             dispatcher = new Dispatcher();
@@ -476,10 +627,12 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
             followSslRedirects = true;
             followRedirects = true;
             retryOnConnectionFailure = true;
+            fastFallback = false;
             connectTimeout = 10_000;
             readTimeout = 10_000;
             writeTimeout = 10_000;
             pingInterval = 0;
+            eventListenerFactory = EventListener.factory(EventListener.NONE);
         }
 
         Builder(OkHttpClient okHttpClient) {
@@ -495,6 +648,7 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
             this.cache = okHttpClient.cache;
             this.socketFactory = okHttpClient.socketFactory;
             this.sslSocketFactory = okHttpClient.sslSocketFactory;
+            this.tlsSessionCache = okHttpClient.tlsSessionCache;
             this.certificateChainCleaner = okHttpClient.certificateChainCleaner;
             this.hostnameVerifier = okHttpClient.hostnameVerifier;
             this.certificatePinner = okHttpClient.certificatePinner;
@@ -505,10 +659,14 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
             this.followSslRedirects = okHttpClient.followSslRedirects;
             this.followRedirects = okHttpClient.followRedirects;
             this.retryOnConnectionFailure = okHttpClient.retryOnConnectionFailure;
+            this.fastFallback = okHttpClient.fastFallback;
             this.connectTimeout = okHttpClient.connectTimeout;
             this.readTimeout = okHttpClient.readTimeout;
             this.writeTimeout = okHttpClient.writeTimeout;
             this.pingInterval = okHttpClient.pingInterval;
+            this.eventListenerFactory = okHttpClient.eventListenerFactory;
+            this.coalescingInterceptor = okHttpClient.coalescingInterceptor;
+            this.hedgingPolicy = okHttpClient.hedgingPolicy;
         }
 
         /**
@@ -615,6 +773,20 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
             return this;
         }
 
+        /**
+         * Sets the cache that TLS sessions are kept in, so connections to hosts that were connected
+         * to before, possibly by an earlier run of the process, can resume a session rather than
+         * perform a full handshake.
+         *
+         * <p>Clients that use the same cache and the default {@linkplain #sslSocketFactory SSL socket
+         * factory} share one factory. If you set an SSL socket factory, {@linkplain
+         * TlsSessionCache#install install} the cache in its {@link SSLContext} instead.
+         */
+        public Builder tlsSessionCache(TlsSessionCache tlsSessionCache) {
+            this.tlsSessionCache = tlsSessionCache;
+            return this;
+        }
+
         /**
          * Sets the DNS service used to lookup IP addresses for hostnames.
          *
@@ -805,6 +977,20 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
             return this;
         }
 
+        /**
+         * Configure this client to race connections to a host's IP addresses, as described by RFC
+         * 8305 "Happy Eyeballs". Attempts start 250 ms apart, alternating between IPv6 and IPv4, and
+         * the first to complete its handshake is used. This avoids waiting out the connect timeout
+         * on an address that silently drops packets. Each attempt takes a slot of the {@linkplain
+         * ConnectionPool#maxConnections connection budget}; attempts that don't fit wait for one to
+         * fail. Disabled by default; it has no effect unless {@linkplain #retryOnConnectionFailure
+         * retries on connection failure} are enabled too.
+         */
+        public Builder fastFallback(boolean fastFallback) {
+            this.fastFallback = fastFallback;
+            return this;
+        }
+
         /**
          * Sets the dispatcher used to set policy and execute asynchronous requests. Must not be null.
          */
@@ -899,6 +1085,63 @@ public class OkHttpClient implements Cloneable, Call.Factory, WebSocket.Factory
             return this;
         }
 
+        /**
+         * Configure a single client scoped listener that will receive all analytic events
+         * for this client.
+         *
+         * @see EventListener for semantics and restrictions on listener implementations.
+         */
+        public Builder eventListener(EventListener eventListener) {
+            if (eventListener == null) throw new NullPointerException("eventListener == null");
+            this.eventListenerFactory = EventListener.factory(eventListener);
+            return this;
+        }
+
+        /**
+         * Configure a factory to provide per-call scoped listeners that will receive analytic events
+         * for this client.
+         *
+         * @see EventListener for semantics and restrictions on listener implementations.
+         */
+        public Builder eventListenerFactory(EventListener.Factory eventListenerFactory) {
+            if (eventListenerFactory == null) {
+                throw new NullPointerException("eventListenerFactory == null");
+            }
+            this.eventListenerFactory = eventListenerFactory;
+            return this;
+        }
+
+        /**
+         * Configure this client to coalesce concurrent identical {@code GET} requests. When a request
+         * is already in flight, identical requests wait for its response headers and then share its
+         * body instead of making their own exchange. Requests are identical when their URLs and all
+         * their headers match. The shared body is relayed through a temporary file.
+         *
+         * <p>Clients derived with {@link OkHttpClient#newBuilder()} share in-flight requests with
+         * this client. Disabled by default.
+         */
+        public Builder coalesceRequests(boolean coalesceRequests) {
+            if (!coalesceRequests) {
+                this.coalescingInterceptor = null;
+            } else if (this.coalescingInterceptor == null) {
+                this.coalescingInterceptor = new CoalescingInterceptor(
+                        new File(System.getProperty("java.io.tmpdir")));
+            }
+            return this;
+        }
+
+        /**
+         * Configure this client to hedge slow idempotent calls: when a call hasn't received response
+         * headers within the policy's delay, a second attempt is raced against it and the slower one
+         * is canceled. Pass null to disable hedging, which is the default.
+         *
+         * @see HedgingPolicy for which calls are hedged and how the delay is chosen.
+         */
+        public Builder hedgingPolicy(HedgingPolicy hedgingPolicy) {
+            this.hedgingPolicy = hedgingPolicy;
+            return this;
+        }
+
         public OkHttpClient build() {
             return new OkHttpClient(this);
         }
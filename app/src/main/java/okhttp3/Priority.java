@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+/**
+ * Scheduling classes for asynchronous calls. When the {@link Dispatcher} is at its limits, calls
+ * wait in one queue per class and freed slots are shared between the classes in proportion to
+ * their weights, so a backlog of {@link #LOW} traffic delays {@link #HIGH} calls by at most a
+ * slot or two. Within a class, slots rotate across hosts so one busy host can't starve the rest.
+ *
+ * <p>Priorities only order calls that are waiting; they never preempt calls already running, and
+ * synchronous calls aren't queued at all.
+ */
+public enum Priority {
+  /** Calls a user is waiting on. */
+  HIGH(16),
+  NORMAL(4),
+  /** Background work such as prefetches, uploads and downloads. */
+  LOW(1);
+
+  final int weight;
+
+  Priority(int weight) {
+    this.weight = weight;
+  }
+}
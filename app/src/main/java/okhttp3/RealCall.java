@@ -16,6 +16,7 @@
 package okhttp3;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -34,6 +35,9 @@ import static okhttp3.internal.platform.Platform.INFO;
 final class RealCall implements Call {
     final OkHttpClient client;
     final RetryAndFollowUpInterceptor retryAndFollowUpInterceptor;
+    /** Null unless the client has a hedging policy. */
+    final HedgingInterceptor hedgingInterceptor;
+    final EventListener eventListener;
 
     /**
      * The application's original request unadulterated by redirects or auth headers.
@@ -52,8 +56,14 @@ final class RealCall implements Call {
         this.client = client;
         this.originalRequest = originalRequest;
         this.forWebSocket = forWebSocket;
+        // 每个call一个监听器，默认的NONE是共享单例，不产生额外分配
+        this.eventListener = client.eventListenerFactory().create(this);
         // 实例化call对象的“重试和跟踪拦截器”
-        this.retryAndFollowUpInterceptor = new RetryAndFollowUpInterceptor(client, forWebSocket);
+        this.retryAndFollowUpInterceptor = new RetryAndFollowUpInterceptor(
+                client, this, eventListener, forWebSocket);
+        this.hedgingInterceptor = client.hedgingPolicy() != null && !forWebSocket
+                ? new HedgingInterceptor(client, this, client.hedgingPolicy())
+                : null;
     }
 
     @Override
@@ -71,6 +81,7 @@ final class RealCall implements Call {
             executed = true;
         }
         captureCallStackTrace();
+        eventListener.callStart(this);
         try {
             client.dispatcher().executed(this);
             Response result = getResponseWithInterceptorChain();
@@ -78,6 +89,9 @@ final class RealCall implements Call {
                 throw new IOException("Canceled");
             }
             return result;
+        } catch (IOException e) {
+            eventListener.callFailed(this, e);
+            throw e;
         } finally {
             // 执行结束 无论发生什么 一定调用此方法
             client.dispatcher().finished(this);
@@ -87,6 +101,7 @@ final class RealCall implements Call {
     private void captureCallStackTrace() {
         Object callStackTrace = Platform.get().getStackTraceForCloseable("response.body().close()");
         retryAndFollowUpInterceptor.setCallStackTrace(callStackTrace);
+        if (hedgingInterceptor != null) hedgingInterceptor.setCallStackTrace(callStackTrace);
     }
 
     @Override
@@ -96,12 +111,14 @@ final class RealCall implements Call {
             executed = true;
         }
         captureCallStackTrace();
+        eventListener.callStart(this);
         client.dispatcher().enqueue(new AsyncCall(responseCallback));
     }
 
     @Override
     public void cancel() {
         retryAndFollowUpInterceptor.cancel();
+        if (hedgingInterceptor != null) hedgingInterceptor.cancel();
     }
 
     @Override
@@ -148,7 +165,29 @@ final class RealCall implements Call {
 
         List<Interceptor> interceptors = new ArrayList<>();
         interceptors.addAll(client.interceptors());
+        if (hedgingInterceptor != null) {
+            // 可对冲的请求不再经过下面的retryAndFollowUpInterceptor，由每次尝试各自的实例处理
+            interceptors.add(hedgingInterceptor);
+        }
         interceptors.add(retryAndFollowUpInterceptor);
+        addInterceptorsAfterRetry(interceptors, true);
+
+        // 使用拦截器链依次有序地执行每一个拦截器，完成整个请求过程
+        Interceptor.Chain chain = new RealInterceptorChain(
+                interceptors, null, null,
+                null, 0, originalRequest);
+        return chain.proceed(originalRequest);
+    }
+
+    /**
+     * Adds the interceptors that run below retry and follow-up, from coalescing down to the server.
+     * Pass false for {@code coalesce} to always make a request of its own.
+     */
+    void addInterceptorsAfterRetry(List<Interceptor> interceptors, boolean coalesce) {
+        if (coalesce && client.coalescingInterceptor != null && !forWebSocket) {
+            // 放在重试拦截器之后：合并的call也各自跟随重定向，并正常收到callEnd
+            interceptors.add(client.coalescingInterceptor);
+        }
         interceptors.add(new BridgeInterceptor(client.cookieJar()));
         interceptors.add(new CacheInterceptor(client.internalCache()));
         interceptors.add(new ConnectInterceptor(client));
@@ -156,16 +195,18 @@ final class RealCall implements Call {
             interceptors.addAll(client.networkInterceptors());
         }
         interceptors.add(new CallServerInterceptor(forWebSocket));
-
-        // 使用拦截器链依次有序地执行每一个拦截器，完成整个请求过程
-        Interceptor.Chain chain = new RealInterceptorChain(
-                interceptors, null, null,
-                null, 0, originalRequest);
-        return chain.proceed(originalRequest);
     }
 
     final class AsyncCall extends NamedRunnable {
         private final Callback responseCallback;
+        // 进入等待队列的时刻，用于统计排队耗时，由Dispatcher在持锁时读写
+        long enqueuedAtNanos;
+        // 以下用于自适应的host并发上限：开始执行的时刻、拿到响应头的耗时（-1表示不计入）、
+        // 是否收到429/503、是否连接或读取超时
+        long startedAtNanos;
+        long latencyNanos = -1L;
+        boolean overloaded;
+        boolean timedOut;
 
         AsyncCall(Callback responseCallback) {
             super("OkHttp %s", redactedUrl());
@@ -189,6 +230,8 @@ final class RealCall implements Call {
             boolean signalledCallback = false;
             try {
                 Response response = getResponseWithInterceptorChain();
+                latencyNanos = System.nanoTime() - startedAtNanos;
+                overloaded = response.code() == 429 || response.code() == 503;
                 if (retryAndFollowUpInterceptor.isCanceled()) {
                     signalledCallback = true;
                     responseCallback.onFailure(RealCall.this, new IOException("Canceled"));
@@ -201,6 +244,13 @@ final class RealCall implements Call {
                     // Do not signal the callback twice!
                     Platform.get().log(INFO, "Callback failure for " + toLoggableString(), e);
                 } else {
+                    // 域名解析失败、没有网络等与服务端负载无关，只有超时才计入
+                    if (!retryAndFollowUpInterceptor.isCanceled()
+                            && e instanceof SocketTimeoutException) {
+                        latencyNanos = System.nanoTime() - startedAtNanos;
+                        timedOut = true;
+                    }
+                    eventListener.callFailed(RealCall.this, e);
                     responseCallback.onFailure(RealCall.this, e);
                 }
             } finally {
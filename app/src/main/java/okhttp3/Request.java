@@ -31,6 +31,7 @@ public final class Request {
     final Headers headers;
     final RequestBody body;
     final Object tag;
+    final Priority priority;
 
     private volatile CacheControl cacheControl; // Lazily initialized.
 
@@ -40,6 +41,7 @@ public final class Request {
         this.headers = builder.headers.build();
         this.body = builder.body;
         this.tag = builder.tag != null ? builder.tag : this;
+        this.priority = builder.priority;
     }
 
     public HttpUrl url() {
@@ -70,6 +72,10 @@ public final class Request {
         return tag;
     }
 
+    public Priority priority() {
+        return priority;
+    }
+
     public Builder newBuilder() {
         return new Builder(this);
     }
@@ -104,10 +110,12 @@ public final class Request {
         Headers.Builder headers;
         RequestBody body;
         Object tag;
+        Priority priority;
 
         public Builder() {
             this.method = "GET";
             this.headers = new Headers.Builder();
+            this.priority = Priority.NORMAL;
         }
 
         Builder(Request request) {
@@ -115,6 +123,7 @@ public final class Request {
             this.method = request.method;
             this.body = request.body;
             this.tag = request.tag;
+            this.priority = request.priority;
             this.headers = request.headers.newBuilder();
         }
 
@@ -266,6 +275,16 @@ public final class Request {
             return this;
         }
 
+        /**
+         * Sets the scheduling class used when this request is {@linkplain Call#enqueue enqueued} and
+         * the dispatcher is at its limits. Defaults to {@link Priority#NORMAL}.
+         */
+        public Builder priority(Priority priority) {
+            if (priority == null) throw new NullPointerException("priority == null");
+            this.priority = priority;
+            return this;
+        }
+
         public Request build() {
             if (url == null) throw new IllegalStateException("url == null");
             return new Request(this);
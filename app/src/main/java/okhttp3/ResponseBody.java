@@ -21,6 +21,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
 
 import okhttp3.internal.Util;
 import okio.Buffer;
@@ -97,7 +98,8 @@ import static okhttp3.internal.Util.UTF_8;
  * <p>Because this class does not buffer the full response in memory, the application may not
  * re-read the bytes of the response. Use this one shot to read the entire response into memory with
  * {@link #bytes()} or {@link #string()}. Or stream the response with either {@link #source()},
- * {@link #byteStream()}, or {@link #charStream()}.
+ * {@link #byteStream()}, or {@link #charStream()}. To stream it without dedicating a thread to a
+ * slow consumer, subscribe to its {@link #publisher publisher}.
  */
 public abstract class ResponseBody implements Closeable {
     /**
@@ -168,6 +170,16 @@ public abstract class ResponseBody implements Closeable {
 
     public abstract BufferedSource source();
 
+    /**
+     * Returns a publisher that streams this body in chunks as its subscriber requests them, reading
+     * on {@code executor}. Like {@link #source()}, this consumes the body; the publisher closes it
+     * when the stream ends.
+     */
+    public final BodyPublisher publisher(Executor executor) {
+        if (executor == null) throw new NullPointerException("executor == null");
+        return new BodyPublisher(this, executor);
+    }
+
     /**
      * Returns the response as a byte array.
      * <p>
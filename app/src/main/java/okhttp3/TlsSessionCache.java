@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.internal.TimerWheel;
+import okhttp3.internal.Util;
+import okhttp3.internal.io.FileSystem;
+import okhttp3.internal.platform.Platform;
+import okhttp3.internal.tls.SessionStore;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+
+/**
+ * Keeps TLS client sessions, including session tickets, so connections to a host that was
+ * connected to before can resume the session with an abbreviated handshake. Sessions are kept by
+ * host and port, are shared by every {@link SSLContext} the cache is {@link #install installed} in,
+ * and are optionally saved to a directory so they survive restarts of the process.
+ * <p>
+ * <p>Clients built with the same cache and no {@linkplain OkHttpClient.Builder#sslSocketFactory
+ * SSL socket factory} of their own share a single one, so they share sessions on any platform.
+ * Restoring sessions saved by other contexts or processes requires a TLS provider that can
+ * serialize sessions: Android, and Conscrypt elsewhere. Other providers, like OpenJDK's, keep only
+ * their in-memory sessions, bounded to {@link #maxSessions}.
+ * <p>
+ * <pre>   {@code
+ *
+ *   OkHttpClient client = new OkHttpClient.Builder()
+ *       .tlsSessionCache(new TlsSessionCache(new File(cacheDir, "tls-sessions"), 64))
+ *       .build();
+ * }</pre>
+ */
+public final class TlsSessionCache {
+    static final String SNAPSHOT = "sessions";
+    static final String SNAPSHOT_TMP = "sessions.tmp";
+    static final String MAGIC = "okhttp3.TlsSessionCache";
+    static final String VERSION = "1";
+
+    /** Sessions older than this aren't offered. TLS 1.3 caps ticket lifetimes at 7 days. */
+    static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    /** New sessions are saved together after this delay. */
+    static final long WRITE_DELAY_MILLIS = 1000;
+
+    private final File directory;
+    private final FileSystem fileSystem;
+    private final int maxSessions;
+    private final SessionStore store = new Store();
+
+    /** Serialized sessions by host and port, least recently used first. Guarded by this. */
+    private final Map<String, SavedSession> entries;
+    private boolean loaded;
+    private boolean writeScheduled;
+    private SSLSocketFactory sslSocketFactory;
+
+    /** Serializes writes of the snapshot file. */
+    private final Object writeLock = new Object();
+
+    /**
+     * Writes the snapshot file. The timer wheel's workers must not block on disk I/O, so the timer
+     * only hands the write off to this single thread.
+     */
+    private final Executor writeExecutor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), Util.threadFactory("OkHttp TlsSessionCache", true));
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (IOException e) {
+                Platform.get().log(Platform.INFO, "Failed to save TLS sessions to " + directory, e);
+            }
+        }
+    };
+
+    private final Runnable scheduleWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            writeExecutor.execute(writeTask);
+        }
+    };
+
+    /** Creates a cache of up to {@code maxSessions} sessions that is kept in memory only. */
+    public TlsSessionCache(int maxSessions) {
+        this(null, maxSessions, FileSystem.SYSTEM);
+    }
+
+    /** Creates a cache of up to {@code maxSessions} sessions that is saved in {@code directory}. */
+    public TlsSessionCache(File directory, int maxSessions) {
+        this(directory, maxSessions, FileSystem.SYSTEM);
+    }
+
+    TlsSessionCache(File directory, int maxSessions, FileSystem fileSystem) {
+        if (maxSessions <= 0) throw new IllegalArgumentException("maxSessions <= 0: " + maxSessions);
+        this.directory = directory;
+        this.maxSessions = maxSessions;
+        this.fileSystem = fileSystem;
+        this.entries = new LinkedHashMap<String, SavedSession>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SavedSession> eldest) {
+                return size() > TlsSessionCache.this.maxSessions;
+            }
+        };
+    }
+
+    /**
+     * Makes {@code sslContext} keep up to {@link #maxSessions} client sessions in memory, and resume
+     * sessions from this cache where its TLS provider supports it. Use this for SSL socket factories
+     * that are passed to {@link OkHttpClient.Builder#sslSocketFactory}.
+     */
+    public void install(SSLContext sslContext) {
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        if (sessionContext == null) return;
+        sessionContext.setSessionCacheSize(maxSessions);
+        Platform.get().setPersistentSessionCache(sessionContext, store);
+    }
+
+    /**
+     * Returns the SSL socket factory shared by clients that use this cache and the system's trust
+     * manager. The trust manager of the first such client is used for all of them: they're
+     * equivalent.
+     */
+    synchronized SSLSocketFactory sslSocketFactory(X509TrustManager trustManager) {
+        if (sslSocketFactory == null) {
+            try {
+                SSLContext sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, new TrustManager[]{trustManager}, null);
+                install(sslContext);
+                sslSocketFactory = sslContext.getSocketFactory();
+            } catch (GeneralSecurityException e) {
+                throw new AssertionError(); // The system has no TLS. Just give up.
+            }
+        }
+        return sslSocketFactory;
+    }
+
+    /** Returns the directory sessions are saved in, or null if they're kept in memory only. */
+    public File directory() {
+        return directory;
+    }
+
+    public int maxSessions() {
+        return maxSessions;
+    }
+
+    /** Returns the number of sessions in this cache, loading saved ones if necessary. */
+    public synchronized int size() {
+        loadIfNecessary();
+        return entries.size();
+    }
+
+    /** Returns the number of times a TLS provider was given a session from this cache. */
+    public long hitCount() {
+        return hitCount.get();
+    }
+
+    /** Returns the number of times a TLS provider asked for a session this cache didn't have. */
+    public long missCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Removes every session from this cache and its directory. Sessions already in an SSL context's
+     * memory are still resumed.
+     */
+    public void evictAll() throws IOException {
+        synchronized (this) {
+            entries.clear();
+            loaded = true;
+        }
+        if (directory == null) return;
+        synchronized (writeLock) {
+            fileSystem.delete(new File(directory, SNAPSHOT));
+        }
+    }
+
+    /** Saves the sessions in this cache to its directory now rather than after a short delay. */
+    public void flush() throws IOException {
+        if (directory == null) return;
+        List<Map.Entry<String, SavedSession>> snapshot;
+        synchronized (this) {
+            writeScheduled = false;
+            if (!loaded) return; // 还没读过磁盘，没有需要写的内容
+            snapshot = new ArrayList<>(entries.entrySet());
+        }
+
+        synchronized (writeLock) {
+            File tmp = new File(directory, SNAPSHOT_TMP);
+            BufferedSink sink = Okio.buffer(fileSystem.sink(tmp));
+            try {
+                sink.writeUtf8(MAGIC).writeByte('\n');
+                sink.writeUtf8(VERSION).writeByte('\n');
+                // 按最近最少使用的顺序写入，读回时保持LRU顺序
+                for (Map.Entry<String, SavedSession> entry : snapshot) {
+                    sink.writeUtf8(entry.getKey()).writeByte(' ');
+                    sink.writeDecimalLong(entry.getValue().savedAtMillis).writeByte(' ');
+                    sink.writeUtf8(entry.getValue().sessionData.base64()).writeByte('\n');
+                }
+            } finally {
+                sink.close();
+            }
+            fileSystem.rename(tmp, new File(directory, SNAPSHOT));
+        }
+    }
+
+    /** Reads saved sessions on first use, so creating a cache doesn't touch the disk. */
+    private void loadIfNecessary() {
+        assert (Thread.holdsLock(this));
+        if (loaded) return;
+        loaded = true;
+        if (directory == null) return;
+
+        File file = new File(directory, SNAPSHOT);
+        try {
+            BufferedSource source = Okio.buffer(fileSystem.source(file));
+            try {
+                String magic = source.readUtf8LineStrict();
+                String version = source.readUtf8LineStrict();
+                if (!MAGIC.equals(magic) || !VERSION.equals(version)) {
+                    throw new IOException("unexpected header: [" + magic + ", " + version + "]");
+                }
+                long now = System.currentTimeMillis();
+                for (String line; (line = source.readUtf8Line()) != null; ) {
+                    String[] parts = line.split(" ");
+                    if (parts.length != 3) throw new IOException("unexpected line: " + line);
+                    long savedAtMillis = Long.parseLong(parts[1]);
+                    ByteString sessionData = ByteString.decodeBase64(parts[2]);
+                    if (sessionData == null) throw new IOException("unexpected line: " + line);
+                    if (now - savedAtMillis > MAX_AGE_MILLIS) continue;
+                    entries.put(parts[0], new SavedSession(sessionData, savedAtMillis));
+                }
+            } finally {
+                source.close();
+            }
+        } catch (FileNotFoundException ignored) {
+            // 还没有保存过会话
+        } catch (IOException | NumberFormatException e) {
+            // 文件损坏，丢弃它重新开始
+            entries.clear();
+            try {
+                fileSystem.delete(file);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void scheduleWrite() {
+        assert (Thread.holdsLock(this));
+        if (directory == null || writeScheduled) return;
+        writeScheduled = true;
+        TimerWheel.shared().schedule(scheduleWriteTask, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static String key(String host, int port) {
+        return host + ":" + port;
+    }
+
+    static final class SavedSession {
+        final ByteString sessionData;
+        final long savedAtMillis;
+
+        SavedSession(ByteString sessionData, long savedAtMillis) {
+            this.sessionData = sessionData;
+            this.savedAtMillis = savedAtMillis;
+        }
+    }
+
+    /** The view of this cache that TLS providers see. */
+    final class Store implements SessionStore {
+        @Override
+        public byte[] get(String host, int port) {
+            if (host == null) return null;
+            synchronized (TlsSessionCache.this) {
+                loadIfNecessary();
+                String key = key(host, port);
+                SavedSession entry = entries.get(key);
+                long now = System.currentTimeMillis();
+                if (entry != null && now - entry.savedAtMillis > MAX_AGE_MILLIS) {
+                    entries.remove(key);
+                    entry = null;
+                }
+                if (entry == null) {
+                    missCount.incrementAndGet();
+                    return null;
+                }
+                hitCount.incrementAndGet();
+                return entry.sessionData.toByteArray();
+            }
+        }
+
+        @Override
+        public void put(String host, int port, byte[] sessionData) {
+            if (host == null || sessionData == null) return;
+            synchronized (TlsSessionCache.this) {
+                loadIfNecessary();
+                entries.put(key(host, port),
+                        new SavedSession(ByteString.of(sessionData), System.currentTimeMillis()));
+                scheduleWrite();
+            }
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package okhttp3.internal;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
 import javax.net.ssl.SSLSocket;
@@ -27,6 +28,8 @@ import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.internal.cache.InternalCache;
+import okhttp3.internal.connection.AddressConnections;
+import okhttp3.internal.connection.ConnectionStats;
 import okhttp3.internal.connection.RealConnection;
 import okhttp3.internal.connection.RouteDatabase;
 import okhttp3.internal.connection.StreamAllocation;
@@ -50,15 +53,28 @@ public abstract class Internal {
 
   public abstract void setCache(OkHttpClient.Builder builder, InternalCache internalCache);
 
-  public abstract RealConnection get(
-      ConnectionPool pool, Address address, StreamAllocation streamAllocation);
+  public abstract AddressConnections addressConnections(ConnectionPool pool, Address address);
 
-  public abstract void put(ConnectionPool pool, RealConnection connection);
+  public abstract RealConnection get(ConnectionPool pool, AddressConnections group,
+      StreamAllocation streamAllocation);
 
-  public abstract boolean connectionBecameIdle(ConnectionPool pool, RealConnection connection);
+  public abstract void put(ConnectionPool pool, AddressConnections group,
+      RealConnection connection);
+
+  public abstract void reserveConnection(ConnectionPool pool, long timeoutNanos)
+      throws IOException;
+
+  public abstract boolean tryReserveConnection(ConnectionPool pool);
+
+  public abstract void releaseConnectionReservation(ConnectionPool pool);
+
+  public abstract boolean connectionBecameIdle(ConnectionPool pool, AddressConnections group,
+      RealConnection connection);
 
   public abstract RouteDatabase routeDatabase(ConnectionPool connectionPool);
 
+  public abstract ConnectionStats connectionStats(ConnectionPool connectionPool);
+
   public abstract void apply(ConnectionSpec tlsConfiguration, SSLSocket sslSocket,
       boolean isFallback);
 
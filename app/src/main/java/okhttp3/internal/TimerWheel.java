@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel that runs background maintenance for every client in the process: connection
+ * pool cleanup, disk cache trimming, metrics reporting and hedge timers. Scheduling and canceling
+ * are O(1), and a single daemon thread keeps time for all timeouts, sleeping until the earliest one
+ * could be due rather than on every tick.
+ *
+ * <p>Due tasks run on a small, bounded pool of daemon worker threads, so they must not block for
+ * long. Every thread exits after a minute without work; none of them keep the process alive.
+ */
+public final class TimerWheel {
+  /** The wheel's resolution. Tasks run up to one tick late, never early. */
+  static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  /** Buckets in the wheel, a power of two. One rotation spans a little over 5 seconds. */
+  static final int WHEEL_SIZE = 512;
+
+  static final int MAX_WORKERS = 4;
+
+  private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+  private static TimerWheel shared;
+
+  private final String name;
+  private final ThreadPoolExecutor workers;
+  private final long originNanos = System.nanoTime();
+
+  /** Doubly-linked lists of pending timeouts, indexed by deadline tick. Guarded by this. */
+  private final Timeout[] buckets = new Timeout[WHEEL_SIZE];
+  private int pendingCount;
+  /** The last tick whose bucket has been processed. Guarded by this. */
+  private long processedTick;
+  /** No pending timeout is due before this tick, so the ticker sleeps until then. */
+  private long earliestTick = Long.MAX_VALUE;
+  private boolean tickerRunning;
+
+  private final Runnable ticker = new Runnable() {
+    @Override public void run() {
+      while (true) {
+        List<Timeout> expired = awaitExpired();
+        if (expired == null) return;
+        for (int i = 0, size = expired.size(); i < size; i++) {
+          workers.execute(expired.get(i).task);
+        }
+      }
+    }
+  };
+
+  public TimerWheel(String name, int maxWorkers) {
+    this.name = name;
+    this.workers = new ThreadPoolExecutor(maxWorkers, maxWorkers, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), Util.threadFactory(name + " Worker", true));
+    this.workers.allowCoreThreadTimeOut(true);
+  }
+
+  /** Returns the timer wheel shared by all clients in this process. */
+  public static synchronized TimerWheel shared() {
+    if (shared == null) shared = new TimerWheel("OkHttp TimerWheel", MAX_WORKERS);
+    return shared;
+  }
+
+  /** Returns an executor that runs tasks on this wheel's workers immediately. */
+  public Executor executor() {
+    return workers;
+  }
+
+  /** Runs {@code task} on a worker as soon as one is free. */
+  public void execute(Runnable task) {
+    workers.execute(task);
+  }
+
+  /**
+   * Runs {@code task} on a worker once {@code delay} has elapsed. A non-positive delay runs it
+   * immediately. Returns a handle that can cancel the task until it starts.
+   */
+  public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+    if (task == null) throw new NullPointerException("task == null");
+    long delayNanos = unit.toNanos(delay);
+    Timeout timeout = new Timeout(this, task);
+    if (delayNanos <= 0) {
+      workers.execute(task);
+      return timeout;
+    }
+
+    long now = System.nanoTime();
+    // 向上取整，保证任务不会提前执行
+    long deadlineTick = (now - originNanos + delayNanos + TICK_NANOS - 1) / TICK_NANOS;
+    synchronized (this) {
+      if (deadlineTick <= processedTick) deadlineTick = processedTick + 1;
+      timeout.deadlineTick = deadlineTick;
+      int index = (int) (deadlineTick & (WHEEL_SIZE - 1));
+      timeout.next = buckets[index];
+      if (timeout.next != null) timeout.next.prev = timeout;
+      buckets[index] = timeout;
+      timeout.scheduled = true;
+      pendingCount++;
+
+      if (!tickerRunning) {
+        tickerRunning = true;
+        earliestTick = deadlineTick;
+        Thread thread = Util.threadFactory(name, true).newThread(ticker);
+        thread.start();
+      } else if (deadlineTick < earliestTick) {
+        earliestTick = deadlineTick;
+        notify(); // 新任务比ticker等待的时间更早到期，唤醒它重新计算
+      }
+    }
+    return timeout;
+  }
+
+  private synchronized boolean cancel(Timeout timeout) {
+    if (!timeout.scheduled) return false;
+    unlink(timeout);
+    // earliestTick只是下限，被取消的任务让ticker多醒一次，届时重新计算
+    return true;
+  }
+
+  private void unlink(Timeout timeout) {
+    assert (Thread.holdsLock(this));
+    int index = (int) (timeout.deadlineTick & (WHEEL_SIZE - 1));
+    if (timeout.prev != null) {
+      timeout.prev.next = timeout.next;
+    } else {
+      buckets[index] = timeout.next;
+    }
+    if (timeout.next != null) timeout.next.prev = timeout.prev;
+    timeout.prev = null;
+    timeout.next = null;
+    timeout.scheduled = false;
+    pendingCount--;
+  }
+
+  /**
+   * Sleeps until at least one timeout is due and returns the due timeouts, removed from the wheel.
+   * Returns null once the wheel has been empty for {@link #IDLE_TIMEOUT_NANOS}, after which the
+   * ticker thread exits.
+   */
+  private synchronized List<Timeout> awaitExpired() {
+    long idleSince = -1L;
+    while (true) {
+      long now = System.nanoTime();
+      long tick = currentTick(now);
+
+      if (tick >= earliestTick && tick > processedTick) {
+        List<Timeout> expired = new ArrayList<>();
+        // 睡眠超过一圈时每个桶只需要扫描一次
+        long ticks = Math.min(tick - processedTick, WHEEL_SIZE);
+        for (long t = tick - ticks + 1; t <= tick; t++) {
+          Timeout timeout = buckets[(int) (t & (WHEEL_SIZE - 1))];
+          while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.deadlineTick <= tick) {
+              unlink(timeout);
+              expired.add(timeout);
+            }
+            timeout = next;
+          }
+        }
+        processedTick = tick;
+        earliestTick = findEarliestTick();
+        if (!expired.isEmpty()) return expired;
+      }
+
+      try {
+        if (pendingCount == 0) {
+          earliestTick = Long.MAX_VALUE; // 可能还是被取消任务的到期时间
+          if (idleSince == -1L) idleSince = now;
+          long idleNanos = IDLE_TIMEOUT_NANOS - (now - idleSince);
+          if (idleNanos <= 0) {
+            tickerRunning = false;
+            return null;
+          }
+          TimeUnit.NANOSECONDS.timedWait(this, idleNanos);
+        } else {
+          idleSince = -1L;
+          long wakeNanos = originNanos + earliestTick * TICK_NANOS;
+          TimeUnit.NANOSECONDS.timedWait(this, Math.max(wakeNanos - now, 1L));
+        }
+      } catch (InterruptedException ignored) {
+      }
+    }
+  }
+
+  /**
+   * Returns the deadline of the earliest pending timeout. Buckets are visited in deadline order, so
+   * this usually stops at the first non-empty one; only timeouts more than a rotation away cost a
+   * full scan.
+   */
+  private long findEarliestTick() {
+    if (pendingCount == 0) return Long.MAX_VALUE;
+    long result = Long.MAX_VALUE;
+    for (long t = processedTick + 1; t <= processedTick + WHEEL_SIZE; t++) {
+      for (Timeout timeout = buckets[(int) (t & (WHEEL_SIZE - 1))]; timeout != null;
+          timeout = timeout.next) {
+        if (timeout.deadlineTick == t) return t;
+        if (timeout.deadlineTick < result) result = timeout.deadlineTick;
+      }
+    }
+    return result;
+  }
+
+  private long currentTick(long nanoTime) {
+    return (nanoTime - originNanos) / TICK_NANOS;
+  }
+
+  /** A task scheduled on a {@link TimerWheel}. */
+  public static final class Timeout {
+    final TimerWheel wheel;
+    final Runnable task;
+
+    // 以下字段由wheel保护
+    long deadlineTick;
+    boolean scheduled;
+    Timeout prev;
+    Timeout next;
+
+    Timeout(TimerWheel wheel, Runnable task) {
+      this.wheel = wheel;
+      this.task = task;
+    }
+
+    /**
+     * Prevents the task from running. Returns true if it was canceled, or false if it has already
+     * been handed to a worker.
+     */
+    public boolean cancel() {
+      return wheel.cancel(this);
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.cache2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import okhttp3.Cache;
+import okhttp3.Headers;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.ByteString;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+import static okhttp3.internal.Util.closeQuietly;
+
+/**
+ * Coalesces concurrent identical GET requests into a single exchange. The first request for a key
+ * proceeds; requests for the same key that arrive before its response headers do wait, and then
+ * each receive a copy of that response whose body is replicated by a {@link Relay}.
+ *
+ * <p>Requests are identical if they have the same {@linkplain Cache#key cache key} and the same
+ * headers. Matching every header means the shared response satisfies any {@code Vary} it might
+ * carry.
+ *
+ * <p>If the first request fails, the waiting requests proceed on their own. Waiting requests can't
+ * be canceled until the first request completes.
+ */
+public final class CoalescingInterceptor implements Interceptor {
+  /** Bytes of recent upstream data each relay keeps in memory before falling back to its file. */
+  private static final long RELAY_BUFFER_SIZE = 64 * 1024;
+
+  private final File directory;
+  private final Map<Key, Exchange> inFlight = new HashMap<>(); // Guarded by this.
+
+  public CoalescingInterceptor(File directory) {
+    if (directory == null) throw new NullPointerException("directory == null");
+    this.directory = directory;
+  }
+
+  @Override public Response intercept(Chain chain) throws IOException {
+    Request request = chain.request();
+    if (!coalescable(request)) return chain.proceed(request);
+
+    Key key = new Key(request);
+    Exchange exchange;
+    boolean leader = false;
+    synchronized (this) {
+      exchange = inFlight.get(key);
+      if (exchange == null) {
+        exchange = new Exchange();
+        inFlight.put(key, exchange);
+        leader = true;
+      } else {
+        exchange.waiterCount++;
+      }
+    }
+
+    if (!leader) {
+      Response shared = exchange.await();
+      return shared != null
+          ? shared.newBuilder().request(request).build()
+          : chain.proceed(request);
+    }
+
+    Response response = null;
+    try {
+      response = chain.proceed(request);
+    } finally {
+      if (response == null) publish(key, exchange, null);
+    }
+    return publish(key, exchange, response);
+  }
+
+  /** Only idempotent, body-less requests that don't ask to bypass storage are coalesced. */
+  private static boolean coalescable(Request request) {
+    return request.method().equals("GET")
+        && request.header("Range") == null
+        && !request.cacheControl().noStore();
+  }
+
+  /**
+   * Closes the exchange to new waiters and hands a copy of {@code response} to each waiter. Returns
+   * the response for the leader, whose body may now be backed by a relay.
+   */
+  private Response publish(Key key, Exchange exchange, Response response) {
+    int waiterCount;
+    synchronized (this) {
+      inFlight.remove(key);
+      waiterCount = exchange.waiterCount;
+    }
+
+    if (response == null || waiterCount == 0) {
+      exchange.complete(null);
+      return response;
+    }
+
+    ResponseBody body = response.body();
+    Relay relay;
+    File file = null;
+    try {
+      file = File.createTempFile("okhttp", ".relay", directory);
+      relay = Relay.edit(file, body.source(), ByteString.EMPTY, RELAY_BUFFER_SIZE);
+    } catch (IOException e) {
+      // Can't share the body. The waiters will make their own requests.
+      if (file != null) file.delete();
+      exchange.complete(null);
+      return response;
+    }
+
+    SharedBody sharedBody = new SharedBody(body, file, waiterCount + 1);
+    Deque<Response> responses = new ArrayDeque<>(waiterCount);
+    for (int i = 0; i < waiterCount; i++) {
+      responses.add(sharedBody.newResponse(response, relay));
+    }
+    exchange.complete(responses);
+    return sharedBody.newResponse(response, relay);
+  }
+
+  static final class Key {
+    final String url;
+    final Headers headers;
+
+    Key(Request request) {
+      this.url = Cache.key(request.url());
+      this.headers = request.headers();
+    }
+
+    @Override public boolean equals(Object other) {
+      return other instanceof Key
+          && ((Key) other).url.equals(url)
+          && ((Key) other).headers.equals(headers);
+    }
+
+    @Override public int hashCode() {
+      return 31 * url.hashCode() + headers.hashCode();
+    }
+  }
+
+  /** One in-flight request and the requests waiting on it. */
+  static final class Exchange {
+    /** Guarded by the interceptor, so no waiter can join once the exchange is published. */
+    int waiterCount;
+    /** These are guarded by this exchange. */
+    boolean complete;
+    /** One response per waiter, or null if the waiters should proceed on their own. */
+    Deque<Response> responses;
+
+    synchronized void complete(Deque<Response> responses) {
+      this.responses = responses;
+      this.complete = true;
+      notifyAll();
+    }
+
+    synchronized Response await() {
+      // A share of the relay is reserved for every waiter, so we must take ours even if interrupted.
+      boolean interrupted = false;
+      while (!complete) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) Thread.currentThread().interrupt();
+      return responses != null ? responses.removeFirst() : null;
+    }
+  }
+
+  /**
+   * Tracks the readers of a relayed body. When the last one closes, the upstream body is released
+   * and the relay's file deleted.
+   */
+  static final class SharedBody {
+    final ResponseBody upstream;
+    final File file;
+    final AtomicInteger openCount;
+
+    SharedBody(ResponseBody upstream, File file, int openCount) {
+      this.upstream = upstream;
+      this.file = file;
+      this.openCount = new AtomicInteger(openCount);
+    }
+
+    Response newResponse(Response template, Relay relay) {
+      Source source = new ForwardingSource(relay.newSource()) {
+        boolean closed;
+
+        @Override public void close() throws IOException {
+          if (closed) return;
+          closed = true;
+          super.close();
+          if (openCount.decrementAndGet() == 0) {
+            closeQuietly(upstream);
+            file.delete();
+          }
+        }
+      };
+      ResponseBody body = ResponseBody.create(upstream.contentType(), upstream.contentLength(),
+          Okio.buffer(source));
+      return template.newBuilder().body(body).build();
+    }
+  }
+}
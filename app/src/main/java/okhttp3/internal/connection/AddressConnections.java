@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.connection;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import okhttp3.Address;
+
+/**
+ * A connection pool's connections to one {@link Address}. The monitor of this object guards the
+ * connections, their allocations, and the state of every {@link StreamAllocation} for the address,
+ * so calls to different addresses never contend for a lock.
+ */
+public final class AddressConnections {
+  public final Address address;
+
+  /** Guarded by this. */
+  public final Deque<RealConnection> connections = new ArrayDeque<>();
+
+  /**
+   * The stream allocations holding this group that haven't been released. The pool keeps the group
+   * while there are any, so connections they put in stay visible to other allocations. Guarded by
+   * this.
+   */
+  public int allocationCount;
+
+  /**
+   * True once the pool has dropped this group for being empty and unheld. Nothing may acquire it
+   * after that. Guarded by this.
+   */
+  public boolean removed;
+
+  public AddressConnections(Address address) {
+    this.address = address;
+  }
+}
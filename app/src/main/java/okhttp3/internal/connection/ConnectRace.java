@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.connection;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.ConnectionSpec;
+import okhttp3.EventListener;
+import okhttp3.Route;
+import okhttp3.internal.Internal;
+import okhttp3.internal.NamedRunnable;
+import okhttp3.internal.Util;
+
+import static okhttp3.internal.Util.closeQuietly;
+
+/**
+ * Connects to several routes of the same address in a staggered race, as described by RFC 8305
+ * "Happy Eyeballs". The first route is attempted immediately and each following one after {@link
+ * #ATTEMPT_DELAY_MILLIS}, or as soon as every running attempt has failed. The first attempt to
+ * complete its handshake, including TLS and ALPN, wins; the others are canceled and closed.
+ * <p>
+ * <p>Failed routes are reported to the {@link RouteSelector}, so they are postponed by the route
+ * database. Canceled attempts aren't failures: losing a race only says that the route is slower
+ * than the winner, and that is what the route database is told.
+ * <p>
+ * <p>Each attempt holds a slot of the pool's connection budget. The caller reserves the first one
+ * and hands it to the race; later attempts only start if the budget has room, and otherwise wait
+ * for a running attempt to fail and pass its slot on. The winner's slot becomes its place in the
+ * pool; every other slot is given back.
+ */
+final class ConnectRace {
+    /** The delay between starting attempts, as recommended by RFC 8305. */
+    static final long ATTEMPT_DELAY_MILLIS = 250;
+
+    /** The most routes raced at once. Routes beyond these are tried if they all fail. */
+    static final int MAX_ROUTES = 4;
+
+    /**
+     * Attempts block on connects and handshakes, so they get their own threads rather than the
+     * shared timer wheel's workers. Idle threads exit after a minute.
+     */
+    private static final ExecutorService executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            Util.threadFactory("OkHttp ConnectRace", true));
+
+    private final List<Route> routes;
+    private final ConnectionPool connectionPool;
+    private final RouteSelector routeSelector;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final int writeTimeout;
+    private final List<ConnectionSpec> connectionSpecs;
+    private final RouteDatabase routeDatabase;
+    private final boolean connectionRetryEnabled;
+    private final Call call;
+    private final EventListener eventListener;
+
+    // 以下字段由this保护
+    private final List<RealConnection> attempts = new ArrayList<>();
+    /** Attempts still connecting, with the time each started. */
+    private final Map<RealConnection, Long> running = new LinkedHashMap<>();
+    private RealConnection winner;
+    private IOException firstFailure;
+    private boolean canceled;
+    /** Budget slots held by the race but by no running attempt. */
+    private int spareReservations = 1;
+
+    ConnectRace(List<Route> routes, ConnectionPool connectionPool, RouteSelector routeSelector,
+                int connectTimeout,
+                int readTimeout, int writeTimeout, List<ConnectionSpec> connectionSpecs,
+                RouteDatabase routeDatabase, boolean connectionRetryEnabled, Call call,
+                EventListener eventListener) {
+        this.routes = routes;
+        this.connectionPool = connectionPool;
+        this.routeSelector = routeSelector;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.writeTimeout = writeTimeout;
+        this.connectionSpecs = connectionSpecs;
+        this.routeDatabase = routeDatabase;
+        this.connectionRetryEnabled = connectionRetryEnabled;
+        this.call = call;
+        this.eventListener = eventListener;
+    }
+
+    /**
+     * Runs the race and returns the connected winner. Throws the first attempt's failure if every
+     * attempt fails. The race owns the caller's budget reservation from the start, and gives it back
+     * unless the winner uses it.
+     */
+    RealConnection run() throws IOException {
+        int nextRoute = 0;
+        long nextAttemptAtNanos = System.nanoTime();
+        synchronized (this) {
+            try {
+                while (true) {
+                    // 胜者已经占用预算，即使随后被取消也交给调用方放入连接池
+                    if (winner != null) return winner;
+                    if (canceled) throw new IOException("Canceled");
+
+                    long now = System.nanoTime();
+                    boolean allFailed = running.isEmpty() && nextRoute > 0;
+                    boolean due = allFailed || now - nextAttemptAtNanos >= 0;
+                    if (nextRoute < routes.size() && due && reserve()) {
+                        // 上一个尝试已失败或已到错开的时间，开始下一个
+                        startAttempt(routes.get(nextRoute++));
+                        nextAttemptAtNanos = now + TimeUnit.MILLISECONDS.toNanos(ATTEMPT_DELAY_MILLIS);
+                        continue;
+                    }
+                    // 失败的尝试会把预算留给下一个，所以全部失败时一定能继续
+                    if (allFailed) throw firstFailure;
+
+                    try {
+                        if (nextRoute < routes.size() && !due) {
+                            TimeUnit.NANOSECONDS.timedWait(this, nextAttemptAtNanos - now);
+                        } else {
+                            // 没有更多路由，或预算已满，等某个尝试结束
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        cancel();
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted while connecting");
+                    }
+                }
+            } finally {
+                for (; spareReservations > 0; spareReservations--) {
+                    Internal.instance.releaseConnectionReservation(connectionPool);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a budget slot for the next attempt, from the race's spare slots or the pool. Returns false
+     * if the pool's budget is spent; the attempt then waits rather than evicting anything.
+     */
+    private boolean reserve() {
+        assert (Thread.holdsLock(this));
+        if (spareReservations > 0) {
+            spareReservations--;
+            return true;
+        }
+        return Internal.instance.tryReserveConnection(connectionPool);
+    }
+
+    /** Cancels every attempt, including a winner. The thread running the race throws. */
+    void cancel() {
+        List<RealConnection> toCancel;
+        synchronized (this) {
+            if (canceled) return;
+            canceled = true;
+            toCancel = new ArrayList<>(attempts);
+            notifyAll();
+        }
+        for (RealConnection connection : toCancel) {
+            connection.cancel();
+        }
+    }
+
+    private void startAttempt(Route route) {
+        assert (Thread.holdsLock(this));
+        final RealConnection connection = new RealConnection(route);
+        attempts.add(connection);
+        running.put(connection, System.nanoTime());
+        try {
+            executor.execute(new NamedRunnable("OkHttp connect %s", route.socketAddress()) {
+                @Override
+                protected void execute() {
+                    attempt(connection);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            running.remove(connection);
+            spareReservations++;
+            if (firstFailure == null) firstFailure = new IOException("executor rejected", e);
+        }
+    }
+
+    private void attempt(RealConnection connection) {
+        IOException failure = null;
+        try {
+            connection.connect(connectTimeout, readTimeout, writeTimeout, connectionSpecs,
+                    routeDatabase, connectionRetryEnabled, call, eventListener);
+        } catch (RouteException e) {
+            failure = e.getLastConnectException();
+        } catch (RuntimeException e) {
+            failure = new IOException(e);
+        }
+
+        List<RealConnection> losers = null;
+        Map<RealConnection, Long> outpaced = null;
+        boolean lost;
+        boolean raceOver;
+        boolean releaseReservation = false;
+        synchronized (this) {
+            raceOver = canceled || winner != null;
+            running.remove(connection);
+            if (failure != null) {
+                lost = true;
+                if (firstFailure == null) firstFailure = failure;
+                // 比赛还在进行时把预算留给下一个尝试，否则还给连接池
+                if (raceOver) {
+                    releaseReservation = true;
+                } else {
+                    spareReservations++;
+                }
+            } else if (winner == null && !canceled) {
+                lost = false;
+                winner = connection;
+                losers = new ArrayList<>(attempts);
+                losers.remove(connection);
+                outpaced = new LinkedHashMap<>(running);
+            } else {
+                lost = true;
+                releaseReservation = true;
+            }
+            notifyAll();
+        }
+        if (releaseReservation) Internal.instance.releaseConnectionReservation(connectionPool);
+
+        if (failure != null) {
+            // 被取消的尝试不计入路由数据库
+            if (!raceOver) routeSelector.connectFailed(connection.route(), failure);
+        } else if (lost) {
+            // 比赛已经结束，连上了也不再需要
+            closeQuietly(connection.socket());
+        }
+        if (losers != null) {
+            for (RealConnection loser : losers) {
+                loser.cancel();
+            }
+            // 还没连上的路由至少比胜者慢这么久
+            long now = System.nanoTime();
+            for (Map.Entry<RealConnection, Long> entry : outpaced.entrySet()) {
+                routeSelector.connectOutpaced(entry.getKey().route(), now - entry.getValue());
+            }
+        }
+    }
+}
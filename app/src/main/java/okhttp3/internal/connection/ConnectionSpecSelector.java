@@ -27,23 +27,55 @@ import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLProtocolException;
 import javax.net.ssl.SSLSocket;
 import okhttp3.ConnectionSpec;
+import okhttp3.HttpUrl;
 import okhttp3.internal.Internal;
 
 /**
  * Handles the connection spec fallback strategy: When a secure socket connection fails due to a
  * handshake / protocol problem the connection may be retried with different protocols. Instances
  * are stateful and should be created and used for a single connection attempt.
+ *
+ * <p>When the route database remembers that the host only accepted a fallback spec, the first
+ * attempt uses that spec, still signaling that it is a fallback. If that fails the selector starts
+ * over with the preferred spec.
  */
 public final class ConnectionSpecSelector {
 
   private final List<ConnectionSpec> connectionSpecs;
+  private final RouteDatabase routeDatabase;
+  private final HttpUrl url;
   private int nextModeIndex;
   private boolean isFallbackPossible;
   private boolean isFallback;
+  /** True while the attempt uses the fallback spec remembered for the host. */
+  private boolean isRememberedFallback;
+  private ConnectionSpec lastConnectionSpec;
 
   public ConnectionSpecSelector(List<ConnectionSpec> connectionSpecs) {
+    this(connectionSpecs, null, null);
+  }
+
+  /**
+   * Creates a selector that starts with the spec {@code routeDatabase} remembers for {@code url}'s
+   * host, and records the spec that a handshake completes with.
+   */
+  public ConnectionSpecSelector(List<ConnectionSpec> connectionSpecs, RouteDatabase routeDatabase,
+      HttpUrl url) {
     this.nextModeIndex = 0;
     this.connectionSpecs = connectionSpecs;
+    this.routeDatabase = routeDatabase;
+    this.url = url;
+
+    ConnectionSpec remembered = routeDatabase != null
+        ? routeDatabase.fallbackConnectionSpec(url)
+        : null;
+    int rememberedIndex = remembered != null ? connectionSpecs.indexOf(remembered) : -1;
+    if (rememberedIndex > 0) {
+      // 直接使用上次回退成功的配置，仍然作为回退发送TLS_FALLBACK_SCSV
+      this.nextModeIndex = rememberedIndex;
+      this.isFallback = true;
+      this.isRememberedFallback = true;
+    }
   }
 
   /**
@@ -77,9 +109,16 @@ public final class ConnectionSpecSelector {
 
     Internal.instance.apply(tlsConfiguration, sslSocket, isFallback);
 
+    lastConnectionSpec = tlsConfiguration;
     return tlsConfiguration;
   }
 
+  /** Reports that the connection was established with the last configured spec, if any. */
+  public void connectionSucceeded() {
+    if (routeDatabase == null || lastConnectionSpec == null) return;
+    routeDatabase.tlsConnected(url, lastConnectionSpec, isFallback);
+  }
+
   /**
    * Reports a failure to complete a connection. Determines the next {@link ConnectionSpec} to try,
    * if any.
@@ -88,6 +127,14 @@ public final class ConnectionSpecSelector {
    * #configureSecureSocket(SSLSocket)} or {@code false} if not
    */
   public boolean connectionFailed(IOException e) {
+    if (isRememberedFallback) {
+      // The host may have been upgraded and rejected the fallback. Negotiate from the start.
+      isRememberedFallback = false;
+      nextModeIndex = 0;
+      isFallback = false;
+      return isRecoverable(e);
+    }
+
     // Any future attempt to connect using this strategy will be a fallback attempt.
     isFallback = true;
 
@@ -95,6 +142,11 @@ public final class ConnectionSpecSelector {
       return false;
     }
 
+    return isRecoverable(e);
+  }
+
+  /** Returns true if {@code e} might not recur with a different connection spec. */
+  private boolean isRecoverable(IOException e) {
     // If there was a protocol problem, don't recover.
     if (e instanceof ProtocolException) {
       return false;
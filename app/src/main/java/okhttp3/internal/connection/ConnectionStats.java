@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.connection;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Connection-level counters for a connection pool. Every counter is an atomic that only grows, so
+ * recording never takes the pool's lock and readers see a consistent value per counter (but not
+ * across counters).
+ */
+public final class ConnectionStats {
+  /** Why a connection left the pool. */
+  public static final int EVICT_IDLE_TIMEOUT = 0;
+  public static final int EVICT_IDLE_LIMIT = 1;
+  public static final int EVICT_NO_NEW_STREAMS = 2;
+  public static final int EVICT_ALL = 3;
+  public static final int EVICT_BUDGET = 4;
+  static final int EVICT_REASON_COUNT = 5;
+
+  private final AtomicLong connectionsOpened = new AtomicLong();
+  private final AtomicLong poolHits = new AtomicLong();
+  private final AtomicLong poolMisses = new AtomicLong();
+  private final AtomicLong leakedAllocations = new AtomicLong();
+  private final AtomicLongArray evictions = new AtomicLongArray(EVICT_REASON_COUNT);
+  private final AtomicLong http2StreamsOpened = new AtomicLong();
+  private final AtomicLong bytesRead = new AtomicLong();
+  private final AtomicLong bytesWritten = new AtomicLong();
+  private final AtomicLong budgetWaits = new AtomicLong();
+  private final AtomicLong budgetWaitTimeouts = new AtomicLong();
+  private final AtomicLong budgetWaitNanos = new AtomicLong();
+  private final AtomicLong maxBudgetWaitNanos = new AtomicLong();
+
+  public void connectionOpened() {
+    connectionsOpened.incrementAndGet();
+  }
+
+  /** Records a lookup in the pool that did or didn't find a connection to reuse. */
+  public void poolLookup(boolean hit) {
+    (hit ? poolHits : poolMisses).incrementAndGet();
+  }
+
+  public void allocationLeaked() {
+    leakedAllocations.incrementAndGet();
+  }
+
+  public void connectionEvicted(int reason) {
+    evictions.incrementAndGet(reason);
+  }
+
+  public void http2StreamOpened() {
+    http2StreamsOpened.incrementAndGet();
+  }
+
+  public void bytesRead(long byteCount) {
+    if (byteCount > 0) bytesRead.addAndGet(byteCount);
+  }
+
+  public void bytesWritten(long byteCount) {
+    if (byteCount > 0) bytesWritten.addAndGet(byteCount);
+  }
+
+  /**
+   * Records a wait for room in the pool's connection budget, and whether it gave up before a
+   * connection was released.
+   */
+  public void budgetWait(long waitNanos, boolean timedOut) {
+    budgetWaits.incrementAndGet();
+    if (timedOut) budgetWaitTimeouts.incrementAndGet();
+    budgetWaitNanos.addAndGet(waitNanos);
+    for (long max = maxBudgetWaitNanos.get(); waitNanos > max; max = maxBudgetWaitNanos.get()) {
+      if (maxBudgetWaitNanos.compareAndSet(max, waitNanos)) break;
+    }
+  }
+
+  public long connectionsOpened() {
+    return connectionsOpened.get();
+  }
+
+  public long poolHits() {
+    return poolHits.get();
+  }
+
+  public long poolMisses() {
+    return poolMisses.get();
+  }
+
+  public long leakedAllocations() {
+    return leakedAllocations.get();
+  }
+
+  public long evictions(int reason) {
+    return evictions.get(reason);
+  }
+
+  public long http2StreamsOpened() {
+    return http2StreamsOpened.get();
+  }
+
+  public long bytesRead() {
+    return bytesRead.get();
+  }
+
+  public long bytesWritten() {
+    return bytesWritten.get();
+  }
+
+  public long budgetWaits() {
+    return budgetWaits.get();
+  }
+
+  public long budgetWaitTimeouts() {
+    return budgetWaitTimeouts.get();
+  }
+
+  public long budgetWaitNanos() {
+    return budgetWaitNanos.get();
+  }
+
+  public long maxBudgetWaitNanos() {
+    return maxBudgetWaitNanos.get();
+  }
+}
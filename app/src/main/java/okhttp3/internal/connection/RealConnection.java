@@ -34,9 +34,11 @@ import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 import okhttp3.Address;
+import okhttp3.Call;
 import okhttp3.CertificatePinner;
 import okhttp3.Connection;
 import okhttp3.ConnectionSpec;
+import okhttp3.EventListener;
 import okhttp3.Handshake;
 import okhttp3.HttpUrl;
 import okhttp3.Protocol;
@@ -89,6 +91,7 @@ public final class RealConnection extends Http2Connection.Listener implements Co
     private Socket rawSocket;
     private Handshake handshake;
     private Protocol protocol;
+    private long connectDurationNanos = -1L;
 
     public RealConnection(Route route) {
         this.route = route;
@@ -96,13 +99,15 @@ public final class RealConnection extends Http2Connection.Listener implements Co
 
     /** 完成三次握手  **/
     public void connect(int connectTimeout, int readTimeout, int writeTimeout,
-                        List<ConnectionSpec> connectionSpecs, boolean connectionRetryEnabled) {
+                        List<ConnectionSpec> connectionSpecs, RouteDatabase routeDatabase,
+                        boolean connectionRetryEnabled, Call call, EventListener eventListener) {
         // protocol不为空，说明这个connection已经connect过了，protocol在while循环中赋值
         if (protocol != null) throw new IllegalStateException("already connected");
 
         // 线路的选择
         RouteException routeException = null;
-        ConnectionSpecSelector connectionSpecSelector = new ConnectionSpecSelector(connectionSpecs);
+        ConnectionSpecSelector connectionSpecSelector = new ConnectionSpecSelector(
+                connectionSpecs, routeDatabase, route.address().url());
 
         if (route.address().sslSocketFactory() == null) {   // CLEARTEXT 明文传输
             if (!connectionSpecs.contains(ConnectionSpec.CLEARTEXT)) {
@@ -117,14 +122,20 @@ public final class RealConnection extends Http2Connection.Listener implements Co
         }
 
         // 连接开始
+        long connectStartNanos = System.nanoTime();
         while (protocol == null) {
+            eventListener.connectStart(call, route.socketAddress(), route.proxy());
             try {
                 if (route.requiresTunnel()) { // 如果要求隧道模式，建立隧道连接，通常不是这种
                     buildTunneledConnection(connectTimeout, readTimeout, writeTimeout,
-                            connectionSpecSelector);
+                            connectionSpecSelector, call, eventListener);
                 } else {  // 一般都走这条逻辑，建立socket连接
-                    buildConnection(connectTimeout, readTimeout, writeTimeout, connectionSpecSelector);
+                    buildConnection(connectTimeout, readTimeout, writeTimeout, connectionSpecSelector,
+                            call, eventListener);
                 }
+                connectDurationNanos = System.nanoTime() - connectStartNanos;
+                connectionSpecSelector.connectionSucceeded();
+                eventListener.connectEnd(call, route.socketAddress(), route.proxy(), protocol);
             } catch (IOException e) {
                 closeQuietly(socket);
                 closeQuietly(rawSocket);
@@ -135,6 +146,8 @@ public final class RealConnection extends Http2Connection.Listener implements Co
                 handshake = null;
                 protocol = null;
 
+                eventListener.connectFailed(call, route.socketAddress(), route.proxy(), null, e);
+
                 if (routeException == null) {
                     routeException = new RouteException(e);
                 } else {
@@ -156,7 +169,8 @@ public final class RealConnection extends Http2Connection.Listener implements Co
      * 1.使用HTTP代理的HTTPS链接
      */
     private void buildTunneledConnection(int connectTimeout, int readTimeout, int writeTimeout,
-                                         ConnectionSpecSelector connectionSpecSelector) throws IOException {
+                                         ConnectionSpecSelector connectionSpecSelector,
+                                         Call call, EventListener eventListener) throws IOException {
         Request tunnelRequest = createTunnelRequest();
         HttpUrl url = tunnelRequest.url();
         int attemptedConnections = 0;
@@ -179,7 +193,7 @@ public final class RealConnection extends Http2Connection.Listener implements Co
             source = null;
         }
 
-        establishProtocol(readTimeout, writeTimeout, connectionSpecSelector);
+        establishProtocol(readTimeout, writeTimeout, connectionSpecSelector, call, eventListener);
     }
 
     /**
@@ -191,9 +205,10 @@ public final class RealConnection extends Http2Connection.Listener implements Co
      * 3.SOCKS代理
      */
     private void buildConnection(int connectTimeout, int readTimeout, int writeTimeout,
-                                 ConnectionSpecSelector connectionSpecSelector) throws IOException {
+                                 ConnectionSpecSelector connectionSpecSelector,
+                                 Call call, EventListener eventListener) throws IOException {
         connectSocket(connectTimeout, readTimeout);
-        establishProtocol(readTimeout, writeTimeout, connectionSpecSelector);
+        establishProtocol(readTimeout, writeTimeout, connectionSpecSelector, call, eventListener);
     }
 
     private void connectSocket(int connectTimeout, int readTimeout) throws IOException {
@@ -220,9 +235,18 @@ public final class RealConnection extends Http2Connection.Listener implements Co
     }
 
     private void establishProtocol(int readTimeout, int writeTimeout,
-                                   ConnectionSpecSelector connectionSpecSelector) throws IOException {
+                                   ConnectionSpecSelector connectionSpecSelector,
+                                   Call call, EventListener eventListener) throws IOException {
         if (route.address().sslSocketFactory() != null) {
-            connectTls(readTimeout, writeTimeout, connectionSpecSelector);
+            eventListener.secureConnectStart(call);
+            try {
+                connectTls(readTimeout, writeTimeout, connectionSpecSelector);
+            } catch (IOException e) {
+                // 握手失败也要有配对的结束事件，handshake为null
+                eventListener.secureConnectEnd(call, null);
+                throw e;
+            }
+            eventListener.secureConnectEnd(call, handshake);
         } else {
             protocol = Protocol.HTTP_1_1;
             socket = rawSocket;
@@ -380,6 +404,14 @@ public final class RealConnection extends Http2Connection.Listener implements Co
         return route;
     }
 
+    /**
+     * Returns how long {@link #connect} took, including proxy tunnels, TLS handshakes and fallbacks
+     * to other connection specs. Returns -1 if this connection isn't connected.
+     */
+    public long connectDurationNanos() {
+        return connectDurationNanos;
+    }
+
     public void cancel() {
         // Close the raw socket so we don't end up doing synchronous I/O.
         closeQuietly(rawSocket);
@@ -15,8 +15,19 @@
  */
 package okhttp3.internal.connection;
 
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Address;
+import okhttp3.ConnectionSpec;
+import okhttp3.HttpUrl;
 import okhttp3.Route;
 
 /**
@@ -24,22 +35,270 @@ import okhttp3.Route;
  * used so that OkHttp can learn from its mistakes: if there was a failure attempting to connect to
  * a specific IP address or proxy server, that failure is remembered and alternate routes are
  * preferred.
+ *
+ * <p>The database also scores routes by how fast and how reliably they connect, as exponentially
+ * weighted moving averages of the connect time and the success rate. Routes are tried best first.
+ * What is known about a route fades with a half-life of {@link #HALF_LIFE_NANOS}, so a route that
+ * was slow or failing a while ago is ranked like an unknown one again and gets retried.
+ *
+ * <p>Finally it remembers which {@linkplain ConnectionSpec connection spec} a host accepted after a
+ * TLS fallback, so later connections don't repeat the failed handshakes.
  */
 public final class RouteDatabase {
+  /** The weight of a new observation when the previous ones are fresh. */
+  static final double ALPHA = 0.3;
+
+  static final long HALF_LIFE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+  /** The most routes scored; the least recently used are forgotten first. */
+  static final int MAX_SCORED_ROUTES = 256;
+
+  /** Floor for the success rate, so a failing route costs a lot rather than infinitely much. */
+  private static final double MIN_SUCCESS_RATE = 0.05;
+
+  /** How often a host that needed a fallback is offered the preferred connection spec again. */
+  static final long REPROBE_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+  /** The most hosts whose fallback connection spec is remembered. */
+  static final int MAX_FALLBACK_HOSTS = 256;
+
   private final Set<Route> failedRoutes = new LinkedHashSet<>();
+  private final Map<Route, Score> scores = new LinkedHashMap<Route, Score>(16, 0.75f, true) {
+    @Override protected boolean removeEldestEntry(Map.Entry<Route, Score> eldest) {
+      return size() > MAX_SCORED_ROUTES;
+    }
+  };
+
+  /** Connection specs that hosts accepted after a fallback, by host and port. */
+  private final Map<String, FallbackSpec> fallbackSpecs =
+      new LinkedHashMap<String, FallbackSpec>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, FallbackSpec> eldest) {
+          return size() > MAX_FALLBACK_HOSTS;
+        }
+      };
 
   /** Records a failure connecting to {@code failedRoute}. */
   public synchronized void failed(Route failedRoute) {
     failedRoutes.add(failedRoute);
+    score(failedRoute).update(false, -1L, System.nanoTime());
   }
 
-  /** Records success connecting to {@code failedRoute}. */
-  public synchronized void connected(Route route) {
+  /**
+   * Records success connecting to {@code route} in {@code connectNanos}, or -1 if the time isn't
+   * known.
+   */
+  public synchronized void connected(Route route, long connectNanos) {
     failedRoutes.remove(route);
+    score(route).update(true, connectNanos, System.nanoTime());
+  }
+
+  /**
+   * Records that a connect to {@code route} was abandoned after {@code elapsedNanos} because another
+   * route connected first. That isn't a failure, but the route takes at least that long.
+   */
+  public synchronized void outpaced(Route route, long elapsedNanos) {
+    Score score = score(route);
+    if (score.connectNanos < elapsedNanos) score.updateLatency(elapsedNanos, System.nanoTime());
   }
 
   /** Returns true if {@code route} has failed recently and should be avoided. */
   public synchronized boolean shouldPostpone(Route route) {
     return failedRoutes.contains(route);
   }
+
+  /**
+   * Returns the connection spec that {@code url}'s host last accepted after falling back from a
+   * preferred one, or null to start with the preferred spec. Once every {@link
+   * #REPROBE_INTERVAL_NANOS} this returns null for one connection, so a host that was upgraded is
+   * noticed.
+   */
+  public synchronized ConnectionSpec fallbackConnectionSpec(HttpUrl url) {
+    FallbackSpec fallbackSpec = fallbackSpecs.get(hostKey(url));
+    if (fallbackSpec == null) return null;
+    long now = System.nanoTime();
+    if (now - fallbackSpec.reprobeAtNanos >= 0) {
+      fallbackSpec.reprobeAtNanos = now + REPROBE_INTERVAL_NANOS;
+      return null;
+    }
+    return fallbackSpec.connectionSpec;
+  }
+
+  /**
+   * Records that {@code url}'s host completed a TLS handshake using {@code connectionSpec}, which
+   * is a fallback if {@code isFallback}.
+   */
+  public synchronized void tlsConnected(HttpUrl url, ConnectionSpec connectionSpec,
+      boolean isFallback) {
+    String key = hostKey(url);
+    if (!isFallback) {
+      fallbackSpecs.remove(key);
+      return;
+    }
+    FallbackSpec fallbackSpec = fallbackSpecs.get(key);
+    if (fallbackSpec == null || !fallbackSpec.connectionSpec.equals(connectionSpec)) {
+      fallbackSpecs.put(key, new FallbackSpec(connectionSpec,
+          System.nanoTime() + REPROBE_INTERVAL_NANOS));
+    }
+  }
+
+  private static String hostKey(HttpUrl url) {
+    return url.host() + ":" + url.port();
+  }
+
+  /**
+   * Sorts {@code routes} best first by their expected connect cost. The sort is stable, so routes
+   * that nothing is known about keep their order relative to each other. They rank like a route of
+   * average latency among those scored.
+   */
+  public void sort(List<Route> routes) {
+    if (routes.size() < 2) return;
+    final Map<Route, Double> costs;
+    synchronized (this) {
+      costs = costs(routes, System.nanoTime());
+    }
+    if (costs == null) return;
+    Collections.sort(routes, new Comparator<Route>() {
+      @Override public int compare(Route a, Route b) {
+        return Double.compare(costs.get(a), costs.get(b));
+      }
+    });
+  }
+
+  /**
+   * Sorts {@code proxies} best first, each ranked by its best scored route to {@code address}. The
+   * sort is stable, so proxies that nothing is known about keep the proxy selector's order.
+   */
+  public void sortProxies(Address address, List<Proxy> proxies) {
+    if (proxies.size() < 2) return;
+    final Map<Proxy, Double> bestCosts = new LinkedHashMap<>();
+    synchronized (this) {
+      List<Route> routes = new ArrayList<>();
+      for (Route route : scores.keySet()) {
+        if (route.address().equals(address) && proxies.contains(route.proxy())) routes.add(route);
+      }
+      Map<Route, Double> costs = costs(routes, System.nanoTime());
+      if (costs == null) return;
+      for (Map.Entry<Route, Double> entry : costs.entrySet()) {
+        Double best = bestCosts.get(entry.getKey().proxy());
+        if (best == null || entry.getValue() < best) {
+          bestCosts.put(entry.getKey().proxy(), entry.getValue());
+        }
+      }
+    }
+    // 没有数据的代理按平均水平对待
+    double sum = 0;
+    for (Double cost : bestCosts.values()) sum += cost;
+    final double unknownCost = sum / bestCosts.size();
+    Collections.sort(proxies, new Comparator<Proxy>() {
+      @Override public int compare(Proxy a, Proxy b) {
+        return Double.compare(cost(a), cost(b));
+      }
+
+      private double cost(Proxy proxy) {
+        Double cost = bestCosts.get(proxy);
+        return cost != null ? cost : unknownCost;
+      }
+    });
+  }
+
+  /**
+   * Returns the expected connect cost of each of {@code routes}, or null if none has a connect time
+   * to compare by.
+   */
+  private Map<Route, Double> costs(List<Route> routes, long now) {
+    assert (Thread.holdsLock(this));
+    // 未测量过的路由按已测量路由的平均耗时对待
+    double latencySum = 0;
+    int latencyCount = 0;
+    for (int i = 0, size = routes.size(); i < size; i++) {
+      Score score = scores.get(routes.get(i));
+      if (score != null && score.connectNanos >= 0) {
+        latencySum += score.connectNanos;
+        latencyCount++;
+      }
+    }
+    if (latencyCount == 0) return null;
+    double unknownNanos = latencySum / latencyCount;
+
+    Map<Route, Double> result = new LinkedHashMap<>();
+    for (int i = 0, size = routes.size(); i < size; i++) {
+      Route route = routes.get(i);
+      Score score = scores.get(route);
+      result.put(route, score != null ? score.cost(unknownNanos, now) : unknownNanos);
+    }
+    return result;
+  }
+
+  private Score score(Route route) {
+    Score score = scores.get(route);
+    if (score == null) {
+      score = new Score();
+      scores.put(route, score);
+    }
+    return score;
+  }
+
+  static final class FallbackSpec {
+    final ConnectionSpec connectionSpec;
+    long reprobeAtNanos;
+
+    FallbackSpec(ConnectionSpec connectionSpec, long reprobeAtNanos) {
+      this.connectionSpec = connectionSpec;
+      this.reprobeAtNanos = reprobeAtNanos;
+    }
+  }
+
+  /** Time-decayed moving averages of one route's connects. */
+  static final class Score {
+    /** The average connect time, or -1 before the first timed success. */
+    double connectNanos = -1;
+    double successRate = 1.0;
+    long updatedAtNanos;
+    boolean observed;
+
+    void update(boolean success, long connectNanos, long now) {
+      double alpha = alpha(now);
+      successRate += alpha * ((success ? 1.0 : 0.0) - successRate);
+      if (connectNanos >= 0) averageLatency(connectNanos, alpha);
+      updatedAtNanos = now;
+      observed = true;
+    }
+
+    /** Updates the connect time only, for a connect that neither succeeded nor failed. */
+    void updateLatency(long connectNanos, long now) {
+      averageLatency(connectNanos, alpha(now));
+      updatedAtNanos = now;
+      observed = true;
+    }
+
+    private void averageLatency(long connectNanos, double alpha) {
+      this.connectNanos = this.connectNanos < 0
+          ? connectNanos
+          : this.connectNanos + alpha * (connectNanos - this.connectNanos);
+    }
+
+    /** Returns the weight of a new observation. */
+    private double alpha(long now) {
+      // 旧数据越久，新观测的权重越大
+      return observed ? 1.0 - (1.0 - ALPHA) * weight(now) : 1.0;
+    }
+
+    /**
+     * Returns the expected time to get a connection on this route: the average connect time
+     * divided by the chance of success. Both fade towards an unknown route's as they age.
+     */
+    double cost(double unknownNanos, long now) {
+      double weight = weight(now);
+      double latency = connectNanos < 0
+          ? unknownNanos
+          : connectNanos * weight + unknownNanos * (1.0 - weight);
+      double success = 1.0 - (1.0 - successRate) * weight;
+      return latency / Math.max(success, MIN_SUCCESS_RATE);
+    }
+
+    /** Returns how much the averages still count: 1 when fresh, halving every half-life. */
+    private double weight(long now) {
+      return Math.pow(0.5, (double) (now - updatedAtNanos) / HALF_LIFE_NANOS);
+    }
+  }
 }
@@ -16,6 +16,7 @@
 package okhttp3.internal.connection;
 
 import java.io.IOException;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
@@ -26,6 +27,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.NoSuchElementException;
 import okhttp3.Address;
+import okhttp3.Call;
+import okhttp3.EventListener;
 import okhttp3.HttpUrl;
 import okhttp3.Route;
 import okhttp3.internal.Util;
@@ -37,6 +40,8 @@ import okhttp3.internal.Util;
 public final class RouteSelector {
   private final Address address;
   private final RouteDatabase routeDatabase;
+  private final Call call;
+  private final EventListener eventListener;
 
   /* The most recently attempted route. */
   private Proxy lastProxy;
@@ -53,9 +58,12 @@ public final class RouteSelector {
   /* State for negotiating failed routes */
   private final List<Route> postponedRoutes = new ArrayList<>();
 
-  public RouteSelector(Address address, RouteDatabase routeDatabase) {
+  public RouteSelector(Address address, RouteDatabase routeDatabase, Call call,
+      EventListener eventListener) {
     this.address = address;
     this.routeDatabase = routeDatabase;
+    this.call = call;
+    this.eventListener = eventListener;
 
     resetNextProxy(address.url(), address.proxy());
   }
@@ -92,6 +100,26 @@ public final class RouteSelector {
     return route;
   }
 
+  /**
+   * Returns the next route and up to {@code limit - 1} more through the same proxy, to race
+   * connections to several addresses at once. Routes that recently failed are postponed as in
+   * {@link #next()}.
+   */
+  public List<Route> nextRoutes(int limit) throws IOException {
+    List<Route> result = new ArrayList<>();
+    result.add(next());
+    while (result.size() < limit && hasNextInetSocketAddress()) {
+      lastInetSocketAddress = nextInetSocketAddress();
+      Route route = new Route(address, lastProxy, lastInetSocketAddress);
+      if (routeDatabase.shouldPostpone(route)) {
+        postponedRoutes.add(route);
+        continue;
+      }
+      result.add(route);
+    }
+    return result;
+  }
+
   /**
    * Clients should invoke this method when they encounter a connectivity failure on a connection
    * returned by this route selector.
@@ -106,6 +134,14 @@ public final class RouteSelector {
     routeDatabase.failed(failedRoute);
   }
 
+  /**
+   * Clients should invoke this method when a connect on {@code route} was abandoned after {@code
+   * elapsedNanos} because another route connected first.
+   */
+  public void connectOutpaced(Route route, long elapsedNanos) {
+    routeDatabase.outpaced(route, elapsedNanos);
+  }
+
   /** Prepares the proxy servers to try. */
   private void resetNextProxy(HttpUrl url, Proxy proxy) {
     if (proxy != null) {
@@ -114,9 +150,14 @@ public final class RouteSelector {
     } else {
       // Try each of the ProxySelector choices until one connection succeeds.
       List<Proxy> proxiesOrNull = address.proxySelector().select(url.uri());
-      proxies = proxiesOrNull != null && !proxiesOrNull.isEmpty()
-          ? Util.immutableList(proxiesOrNull)
-          : Util.immutableList(Proxy.NO_PROXY);
+      if (proxiesOrNull != null && !proxiesOrNull.isEmpty()) {
+        // Prefer the proxies that connected fastest before.
+        List<Proxy> sorted = new ArrayList<>(proxiesOrNull);
+        routeDatabase.sortProxies(address, sorted);
+        proxies = Collections.unmodifiableList(sorted);
+      } else {
+        proxies = Util.immutableList(Proxy.NO_PROXY);
+      }
     }
     nextProxyIndex = 0;
   }
@@ -167,16 +208,58 @@ public final class RouteSelector {
       inetSocketAddresses.add(InetSocketAddress.createUnresolved(socketHost, socketPort));
     } else {
       // Try each address for best behavior in mixed IPv4/IPv6 environments.
+      eventListener.dnsStart(call, socketHost);
       List<InetAddress> addresses = address.dns().lookup(socketHost);
+      eventListener.dnsEnd(call, socketHost, addresses);
+      List<Route> routes = new ArrayList<>(addresses.size());
       for (int i = 0, size = addresses.size(); i < size; i++) {
         InetAddress inetAddress = addresses.get(i);
-        inetSocketAddresses.add(new InetSocketAddress(inetAddress, socketPort));
+        routes.add(new Route(address, proxy, new InetSocketAddress(inetAddress, socketPort)));
+      }
+      // Prefer the addresses that connected fastest before. Unknown ones keep the DNS order. Then
+      // alternate families, led by the best address's; the order within each family is kept.
+      routeDatabase.sort(routes);
+      List<InetAddress> sorted = new ArrayList<>(routes.size());
+      for (int i = 0, size = routes.size(); i < size; i++) {
+        sorted.add(routes.get(i).socketAddress().getAddress());
+      }
+      List<InetAddress> interleaved = interleaveFamilies(sorted);
+      for (int i = 0, size = interleaved.size(); i < size; i++) {
+        inetSocketAddresses.add(new InetSocketAddress(interleaved.get(i), socketPort));
       }
     }
 
     nextInetSocketAddressIndex = 0;
   }
 
+  /**
+   * Reorders {@code addresses} to alternate between IPv6 and IPv4, starting with the family of the
+   * first address, as recommended by RFC 8305. Racing connections then tries the other family
+   * early, so a broken family costs one attempt delay rather than a connect timeout per address.
+   * The relative order of addresses within a family is kept.
+   */
+  static List<InetAddress> interleaveFamilies(List<InetAddress> addresses) {
+    if (addresses.size() < 2) return addresses;
+    List<InetAddress> first = new ArrayList<>();
+    List<InetAddress> second = new ArrayList<>();
+    boolean firstIsIpv6 = addresses.get(0) instanceof Inet6Address;
+    for (InetAddress address : addresses) {
+      if ((address instanceof Inet6Address) == firstIsIpv6) {
+        first.add(address);
+      } else {
+        second.add(address);
+      }
+    }
+    if (second.isEmpty()) return addresses;
+
+    List<InetAddress> result = new ArrayList<>(addresses.size());
+    for (int i = 0; i < first.size() || i < second.size(); i++) {
+      if (i < first.size()) result.add(first.get(i));
+      if (i < second.size()) result.add(second.get(i));
+    }
+    return result;
+  }
+
   /**
    * Obtain a "host" from an {@link InetSocketAddress}. This returns a string containing either an
    * actual host name or a numeric IP address.
@@ -18,9 +18,12 @@ package okhttp3.internal.connection;
 import java.io.IOException;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
+import java.util.List;
 
 import okhttp3.Address;
+import okhttp3.Call;
 import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
 import okhttp3.OkHttpClient;
 import okhttp3.Route;
 import okhttp3.internal.Internal;
@@ -74,9 +77,13 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
  */
 public final class StreamAllocation {
     public final Address address;
+    public final Call call;
+    public final EventListener eventListener;
     private final ConnectionPool connectionPool;
+    /** The pool's connections to {@link #address}. */
+    private final AddressConnections group;
     private final Object callStackTrace;
-    // State guarded by connectionPool.
+    // State guarded by group.
     private final RouteSelector routeSelector;
     private Route route;
     private int refusedStreamCount;
@@ -84,11 +91,18 @@ public final class StreamAllocation {
     private boolean released;
     private boolean canceled;
     private HttpCodec codec;
+    private ConnectRace race;
+    // 响应已交给调用方，codec和连接都释放后上报一次callEnd
+    private boolean reportCallEnd;
 
-    public StreamAllocation(ConnectionPool connectionPool, Address address, Object callStackTrace) {
+    public StreamAllocation(ConnectionPool connectionPool, Address address, Call call,
+                            EventListener eventListener, Object callStackTrace) {
         this.connectionPool = connectionPool;
         this.address = address;
-        this.routeSelector = new RouteSelector(address, routeDatabase());
+        this.call = call;
+        this.eventListener = eventListener;
+        this.group = Internal.instance.addressConnections(connectionPool, address);
+        this.routeSelector = new RouteSelector(address, routeDatabase(), call, eventListener);
         this.callStackTrace = callStackTrace;
     }
 
@@ -97,15 +111,17 @@ public final class StreamAllocation {
         int readTimeout = client.readTimeoutMillis();
         int writeTimeout = client.writeTimeoutMillis();
         boolean connectionRetryEnabled = client.retryOnConnectionFailure();
+        boolean fastFallback = connectionRetryEnabled && client.fastFallback();
 
         try {
             // 寻找并返回一个健康的RealConnection对象
             RealConnection resultConnection = findHealthyConnection(connectTimeout, readTimeout,
-                    writeTimeout, connectionRetryEnabled, doExtensiveHealthChecks);
+                    writeTimeout, connectionRetryEnabled, fastFallback, doExtensiveHealthChecks);
 
             HttpCodec resultCodec;
             if (resultConnection.http2Connection != null) {
                 resultCodec = new Http2Codec(client, this, resultConnection.http2Connection);
+                connectionStats().http2StreamOpened();
             } else {
                 resultConnection.socket().setSoTimeout(readTimeout);
                 resultConnection.source.timeout().timeout(readTimeout, MILLISECONDS);
@@ -114,7 +130,7 @@ public final class StreamAllocation {
                         client, this, resultConnection.source, resultConnection.sink);
             }
 
-            synchronized (connectionPool) {
+            synchronized (group) {
                 codec = resultCodec;
                 return resultCodec;
             }
@@ -130,14 +146,15 @@ public final class StreamAllocation {
      */
     private RealConnection findHealthyConnection(int connectTimeout, int readTimeout,
                                                  int writeTimeout, boolean connectionRetryEnabled,
+                                                 boolean fastFallback,
                                                  boolean doExtensiveHealthChecks)
             throws IOException {
         while (true) {
             RealConnection candidate = findConnection(connectTimeout, readTimeout, writeTimeout,
-                    connectionRetryEnabled);
+                    connectionRetryEnabled, fastFallback);
 
             // If this is a brand new connection, we can skip the extensive health checks.如果这是个名牌（O(∩_∩)O~）的新connection，那么我们略过大量的健康检查
-            synchronized (connectionPool) {
+            synchronized (group) {
                 if (candidate.successCount == 0) {
                     return candidate;
                 }
@@ -164,9 +181,11 @@ public final class StreamAllocation {
      * 3.最后都没有，再new一个新的
      */
     private RealConnection findConnection(int connectTimeout, int readTimeout, int writeTimeout,
-                                          boolean connectionRetryEnabled) throws IOException {
+                                          boolean connectionRetryEnabled, boolean fastFallback)
+            throws IOException {
         Route selectedRoute;
-        synchronized (connectionPool) {
+        RealConnection pooledConnection;
+        synchronized (group) {
             if (released) throw new IllegalStateException("released");
             if (codec != null) throw new IllegalStateException("codec != null");
             if (canceled) throw new IOException("Canceled");
@@ -178,42 +197,175 @@ public final class StreamAllocation {
             }
 
             // 2. 尝试从链接池中返回一个
-            RealConnection pooledConnection = Internal.instance.get(connectionPool, address, this);
+            pooledConnection = Internal.instance.get(connectionPool, group, this);
             if (pooledConnection != null) {
                 this.connection = pooledConnection;
-                return pooledConnection;
             }
 
             selectedRoute = route;
         }
+        if (pooledConnection != null) {
+            eventListener.connectionAcquired(call, pooledConnection);
+            return pooledConnection;
+        }
 
+        List<Route> raceRoutes = null;
         if (selectedRoute == null) {
-            selectedRoute = routeSelector.next();       // 递归选择可用的路由
-            synchronized (connectionPool) {
+            if (fastFallback) {
+                // 同一代理下的多个IP地址错开时间并行连接
+                raceRoutes = routeSelector.nextRoutes(ConnectRace.MAX_ROUTES);
+                selectedRoute = raceRoutes.get(0);
+                if (raceRoutes.size() == 1) raceRoutes = null;
+            } else {
+                selectedRoute = routeSelector.next();       // 递归选择可用的路由
+            }
+            synchronized (group) {
                 route = selectedRoute;
                 refusedStreamCount = 0;
             }
         }
         // 1、2的操作都未成功，new一个新的RealConnection对象返回
+        // 先在连接池的全局预算中预留一个位置，预算用完时会驱逐其他地址的空闲链接或等待
+        Internal.instance.reserveConnection(connectionPool, MILLISECONDS.toNanos(connectTimeout));
+        if (raceRoutes != null) {
+            return raceConnection(raceRoutes, connectTimeout, readTimeout, writeTimeout,
+                    connectionRetryEnabled);
+        }
         RealConnection newConnection = new RealConnection(selectedRoute);
 
-        synchronized (connectionPool) {
+        synchronized (group) {
             acquire(newConnection);     // 把这个类对象添加入刚new出来的newConnection的allocations中
-            Internal.instance.put(connectionPool, newConnection);   // 把newConnection放到链接池
+            Internal.instance.put(connectionPool, group, newConnection);   // 把newConnection放到链接池
             this.connection = newConnection;    // 赋值给类变量
             if (canceled) throw new IOException("Canceled");
         }
 
         // 连接并握手
         newConnection.connect(connectTimeout, readTimeout, writeTimeout, address.connectionSpecs(),
-                connectionRetryEnabled);
-        routeDatabase().connected(newConnection.route());   // 更新本地数据库
+                routeDatabase(), connectionRetryEnabled, call, eventListener);
+        // 更新本地数据库
+        routeDatabase().connected(newConnection.route(), newConnection.connectDurationNanos());
+        eventListener.connectionAcquired(call, newConnection);
+
+        return newConnection;
+    }
+
+    /**
+     * Races connections to {@code routes} and returns the winner, already connected and in the
+     * pool. The caller has reserved room in the pool's budget for one connection, which is handed to
+     * the race.
+     */
+    private RealConnection raceConnection(List<Route> routes, int connectTimeout, int readTimeout,
+                                          int writeTimeout, boolean connectionRetryEnabled)
+            throws IOException {
+        ConnectRace newRace = new ConnectRace(routes, connectionPool, routeSelector, connectTimeout,
+                readTimeout, writeTimeout, address.connectionSpecs(), routeDatabase(),
+                connectionRetryEnabled, call, eventListener);
+        RealConnection newConnection = null;
+        boolean raced = false;
+        try {
+            synchronized (group) {
+                if (canceled) throw new IOException("Canceled");
+                race = newRace;
+            }
+            raced = true;
+            newConnection = newRace.run();
+        } finally {
+            synchronized (group) {
+                race = null;
+                // 参赛的路由都已从routeSelector取出，失败的也已记录，下次从后面的路由继续
+                if (newConnection == null) route = null;
+            }
+            // 开始比赛后预算由比赛归还
+            if (!raced) Internal.instance.releaseConnectionReservation(connectionPool);
+        }
 
+        synchronized (group) {
+            route = newConnection.route();
+            acquire(newConnection);
+            Internal.instance.put(connectionPool, group, newConnection);
+            this.connection = newConnection;
+            if (canceled) throw new IOException("Canceled");
+        }
+        routeDatabase().connected(newConnection.route(), newConnection.connectDurationNanos());
+        eventListener.connectionAcquired(call, newConnection);
         return newConnection;
     }
 
-    public void streamFinished(boolean noNewStreams, HttpCodec codec) {
-        synchronized (connectionPool) {
+    /**
+     * Connects ahead of demand until the pool holds {@code connectionCount} connections to this
+     * allocation's address that can carry new streams, and returns how many were opened. An HTTP/2
+     * connection carries every stream to its address, so once the pool has one no more are opened.
+     * <p>
+     * <p>New connections go through the full handshake, including TLS, ALPN and the HTTP/2 preface,
+     * and are parked in the pool idle. They are evicted like any other idle connection: by the
+     * pool's keep-alive duration and idle connection limit. Warming stops early, without evicting
+     * anything, if the pool's connection budget is spent.
+     */
+    public int prewarm(OkHttpClient client, int connectionCount) throws IOException {
+        int opened = 0;
+        Route selectedRoute = null;
+        while (true) {
+            synchronized (group) {
+                if (released) throw new IllegalStateException("released");
+                if (canceled) throw new IOException("Canceled");
+                int usable = 0;
+                for (RealConnection connection : group.connections) {
+                    if (connection.noNewStreams) continue;
+                    if (connection.isMultiplexed()) return opened;
+                    usable++;
+                }
+                if (usable >= connectionCount) return opened;
+            }
+
+            // 同一地址的后续链接沿用已经连通的路由，失败时才换下一条
+            if (selectedRoute == null) selectedRoute = routeSelector.next();
+            // 预热不驱逐其他链接，也不等待预算
+            if (!Internal.instance.tryReserveConnection(connectionPool)) return opened;
+            RealConnection newConnection = new RealConnection(selectedRoute);
+            boolean connected = false;
+            try {
+                newConnection.connect(client.connectTimeoutMillis(), client.readTimeoutMillis(),
+                        client.writeTimeoutMillis(), address.connectionSpecs(), routeDatabase(),
+                        client.retryOnConnectionFailure(), call, eventListener);
+                connected = true;
+            } catch (RouteException e) {
+                routeSelector.connectFailed(selectedRoute, e.getLastConnectException());
+                if (!routeSelector.hasNext()) throw e.getLastConnectException();
+                selectedRoute = null;
+                continue;
+            } finally {
+                if (!connected) Internal.instance.releaseConnectionReservation(connectionPool);
+            }
+            routeDatabase().connected(newConnection.route(), newConnection.connectDurationNanos());
+
+            // 握手完成后才放进连接池，避免清理线程把连接中的链接当成空闲链接
+            boolean close;
+            synchronized (group) {
+                Internal.instance.put(connectionPool, group, newConnection);
+                newConnection.idleAtNanos = System.nanoTime();
+                close = Internal.instance.connectionBecameIdle(connectionPool, group, newConnection);
+            }
+            if (close) {
+                // 连接池不保留空闲链接，再预热也没有意义
+                Util.closeQuietly(newConnection.socket());
+                return opened;
+            }
+            opened++;
+        }
+    }
+
+    /**
+     * Releases the active stream. {@code bytesRead} is the number of response body bytes consumed,
+     * or -1 if the stream carried no response body (such as a web socket).
+     */
+    public void streamFinished(boolean noNewStreams, HttpCodec codec, long bytesRead) {
+        if (bytesRead != -1L) {
+            eventListener.responseBodyEnd(call, bytesRead);
+            connectionStats().bytesRead(bytesRead);
+        }
+
+        synchronized (group) {
             if (codec == null || codec != this.codec) {
                 throw new IllegalStateException("expected " + this.codec + " but was " + codec);
             }
@@ -225,7 +377,7 @@ public final class StreamAllocation {
     }
 
     public HttpCodec codec() {
-        synchronized (connectionPool) {
+        synchronized (group) {
             return codec;
         }
     }
@@ -234,11 +386,29 @@ public final class StreamAllocation {
         return Internal.instance.routeDatabase(connectionPool);
     }
 
+    public ConnectionStats connectionStats() {
+        return Internal.instance.connectionStats(connectionPool);
+    }
+
     public synchronized RealConnection connection() {
         return connection;
     }
 
     public void release() {
+        release(false);
+    }
+
+    /**
+     * Removes the call's hold on the connection. If {@code callEnd} is true this allocation carries
+     * the response handed back to the caller, and {@link EventListener#callEnd} is reported once
+     * both the call and its response body have let go of the connection.
+     */
+    public void release(boolean callEnd) {
+        if (callEnd) {
+            synchronized (group) {
+                reportCallEnd = true;
+            }
+        }
         deallocate(false, true, false);
     }
 
@@ -258,12 +428,15 @@ public final class StreamAllocation {
      */
     private void deallocate(boolean noNewStreams, boolean released, boolean streamFinished) {
         RealConnection connectionToClose = null;
-        synchronized (connectionPool) {
+        RealConnection releasedConnection = null;
+        boolean callEnd = false;
+        synchronized (group) {
             if (streamFinished) {
                 this.codec = null;
             }
-            if (released) {
+            if (released && !this.released) {
                 this.released = true;
+                group.allocationCount--; // 不会再向分组放入链接，分组可以被清理
             }
             if (connection != null) {
                 if (noNewStreams) {
@@ -277,38 +450,53 @@ public final class StreamAllocation {
                     if (connection.allocations.isEmpty()) {
                         connection.idleAtNanos = System.nanoTime(); // 标记链接空闲的时刻
                         // 这个方法会唤醒正在wait中的connection poll的cleanup线程，并执行clean up
-                        if (Internal.instance.connectionBecameIdle(connectionPool, connection)) {
+                        if (Internal.instance.connectionBecameIdle(connectionPool, group, connection)) {
                             connectionToClose = connection;
                         }
                     }
+                    releasedConnection = connection;
                     connection = null;
                 }
             }
+            if (reportCallEnd && this.released && this.codec == null) {
+                reportCallEnd = false;
+                callEnd = true;
+            }
         }
         if (connectionToClose != null) {
             Util.closeQuietly(connectionToClose.socket());
         }
+        if (releasedConnection != null) {
+            eventListener.connectionReleased(call, releasedConnection);
+        }
+        if (callEnd) {
+            eventListener.callEnd(call);
+        }
     }
 
     public void cancel() {
         HttpCodec codecToCancel;
         RealConnection connectionToCancel;
-        synchronized (connectionPool) {
+        ConnectRace raceToCancel;
+        synchronized (group) {
             canceled = true;
             codecToCancel = codec;
             connectionToCancel = connection;
+            raceToCancel = race;
         }
         if (codecToCancel != null) {
             codecToCancel.cancel();
         } else if (connectionToCancel != null) {
             connectionToCancel.cancel();
+        } else if (raceToCancel != null) {
+            raceToCancel.cancel();
         }
     }
 
     public void streamFailed(IOException e) {
         boolean noNewStreams = false;
 
-        synchronized (connectionPool) {
+        synchronized (group) {
             if (e instanceof StreamResetException) {
                 StreamResetException streamResetException = (StreamResetException) e;
                 if (streamResetException.errorCode == ErrorCode.REFUSED_STREAM) {
@@ -345,7 +533,7 @@ public final class StreamAllocation {
      * release了这个allocation在同一个connection上。
      */
     public void acquire(RealConnection connection) {
-        assert (Thread.holdsLock(connectionPool));
+        assert (Thread.holdsLock(group));
         connection.allocations.add(new StreamAllocationReference(this, callStackTrace));
     }
 
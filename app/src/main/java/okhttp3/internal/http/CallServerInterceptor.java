@@ -18,12 +18,15 @@ package okhttp3.internal.http;
 import java.io.IOException;
 import java.net.ProtocolException;
 
+import okhttp3.EventListener;
 import okhttp3.Interceptor;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.internal.Util;
 import okhttp3.internal.connection.StreamAllocation;
+import okio.Buffer;
 import okio.BufferedSink;
+import okio.ForwardingSink;
 import okio.Okio;
 import okio.Sink;
 
@@ -43,28 +46,43 @@ public final class CallServerInterceptor implements Interceptor {
         HttpCodec httpCodec = ((RealInterceptorChain) chain).httpStream();
         StreamAllocation streamAllocation = ((RealInterceptorChain) chain).streamAllocation();
         Request request = chain.request();
+        EventListener eventListener = streamAllocation.eventListener;
 
         long sentRequestMillis = System.currentTimeMillis();
+        eventListener.requestHeadersStart(streamAllocation.call);
         httpCodec.writeRequestHeaders(request); // 写入请求头
+        eventListener.requestHeadersEnd(streamAllocation.call, request);
 
         // 写入请求体
         if (HttpMethod.permitsRequestBody(request.method()) && request.body() != null) {
-            Sink requestBodyOut = httpCodec.createRequestBody(request, request.body().contentLength());
-            BufferedSink bufferedRequestBody = Okio.buffer(requestBodyOut);
+            eventListener.requestBodyStart(streamAllocation.call);
+            long contentLength = request.body().contentLength();
+            Sink requestBodyOut = httpCodec.createRequestBody(request, contentLength);
+            // 没有监听器且长度已知时不包装计数，省掉一层转发
+            CountingSink countingSink = eventListener != EventListener.NONE || contentLength == -1L
+                    ? new CountingSink(requestBodyOut)
+                    : null;
+            BufferedSink bufferedRequestBody = Okio.buffer(
+                    countingSink != null ? countingSink : requestBodyOut);
             request.body().writeTo(bufferedRequestBody);
             bufferedRequestBody.close();
+            long bytesWritten = countingSink != null ? countingSink.successfulCount : contentLength;
+            eventListener.requestBodyEnd(streamAllocation.call, bytesWritten);
+            streamAllocation.connectionStats().bytesWritten(bytesWritten);
         }
 
         // 将缓存中的数据全部写入流中
         httpCodec.finishRequest();
 
         // 读取响应
+        eventListener.responseHeadersStart(streamAllocation.call);
         Response response = httpCodec.readResponseHeaders()
                 .request(request)
                 .handshake(streamAllocation.connection().handshake())
                 .sentRequestAtMillis(sentRequestMillis)
                 .receivedResponseAtMillis(System.currentTimeMillis())
                 .build();
+        eventListener.responseHeadersEnd(streamAllocation.call, response);
 
         int code = response.code();
         if (forWebSocket && code == 101) {
@@ -91,4 +109,18 @@ public final class CallServerInterceptor implements Interceptor {
 
         return response;
     }
+
+    static final class CountingSink extends ForwardingSink {
+        long successfulCount;
+
+        CountingSink(Sink delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            super.write(source, byteCount);
+            successfulCount += byteCount;
+        }
+    }
 }
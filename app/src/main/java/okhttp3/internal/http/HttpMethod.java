@@ -53,6 +53,18 @@ public final class HttpMethod {
                 || method.equals("LOCK");     // (WebDAV) body: create lock, without body: refresh lock
     }
 
+    /**
+     * 幂等方法：重复发送与发送一次效果相同，可以安全地重试或同时发送多份（RFC 7231 4.2.2）
+     */
+    public static boolean isIdempotent(String method) {
+        return method.equals("GET")
+                || method.equals("HEAD")
+                || method.equals("OPTIONS")
+                || method.equals("TRACE")
+                || method.equals("PUT")
+                || method.equals("DELETE");
+    }
+
     public static boolean redirectsWithBody(String method) {
         return method.equals("PROPFIND"); // (WebDAV) redirects should also maintain the request body
     }
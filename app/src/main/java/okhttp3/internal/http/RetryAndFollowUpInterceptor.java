@@ -29,8 +29,10 @@ import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSocketFactory;
 
 import okhttp3.Address;
+import okhttp3.Call;
 import okhttp3.CertificatePinner;
 import okhttp3.Connection;
+import okhttp3.EventListener;
 import okhttp3.HttpUrl;
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
@@ -66,13 +68,18 @@ public final class RetryAndFollowUpInterceptor implements Interceptor {
     private static final int MAX_FOLLOW_UPS = 20;
 
     private final OkHttpClient client;
+    private final Call call;
+    private final EventListener eventListener;
     private final boolean forWebSocket;
     private StreamAllocation streamAllocation;
     private Object callStackTrace;
     private volatile boolean canceled;
 
-    public RetryAndFollowUpInterceptor(OkHttpClient client, boolean forWebSocket) {
+    public RetryAndFollowUpInterceptor(OkHttpClient client, Call call, EventListener eventListener,
+                                       boolean forWebSocket) {
         this.client = client;
+        this.call = call;
+        this.eventListener = eventListener;
         this.forWebSocket = forWebSocket;
     }
 
@@ -109,7 +116,8 @@ public final class RetryAndFollowUpInterceptor implements Interceptor {
 
         // 在这里创建了StreamAllocation对象，给整个请求实例化stream对象，其中保存了网络请求需要的组件
         streamAllocation = new StreamAllocation(
-                client.connectionPool(), createAddress(request.url()), callStackTrace);
+                client.connectionPool(), createAddress(request.url()), call, eventListener,
+                callStackTrace);
 
         int followUpCount = 0;  // 记录次数
         Response priorResponse = null;  // 会失败并且retry，记录先前的response对象
@@ -168,9 +176,8 @@ public final class RetryAndFollowUpInterceptor implements Interceptor {
             Request followUp = followUpRequest(response);
 
             if (followUp == null) {
-                if (!forWebSocket) {
-                    streamAllocation.release();
-                }
+                // 网页套接字的链接交给RealWebSocket继续使用，但分组的持有要在这里放开
+                streamAllocation.release(!forWebSocket);
                 // follow up不可用，释放资源，返回出错的response
                 return response;
             }
@@ -192,8 +199,10 @@ public final class RetryAndFollowUpInterceptor implements Interceptor {
             if (!sameConnection(response, followUp.url())) {
                 streamAllocation.release();
                 streamAllocation = new StreamAllocation(
-                        client.connectionPool(), createAddress(followUp.url()), callStackTrace);
+                        client.connectionPool(), createAddress(followUp.url()), call, eventListener,
+                        callStackTrace);
             } else if (streamAllocation.codec() != null) {
+                streamAllocation.release();
                 throw new IllegalStateException("Closing the body of " + response
                         + " didn't close its backing stream. Bad interceptor?");
             }
@@ -205,6 +214,11 @@ public final class RetryAndFollowUpInterceptor implements Interceptor {
     }
 
     private Address createAddress(HttpUrl url) {
+        return createAddress(client, url);
+    }
+
+    /** Returns the address that {@code client} connects to for requests to {@code url}. */
+    public static Address createAddress(OkHttpClient client, HttpUrl url) {
         SSLSocketFactory sslSocketFactory = null;
         HostnameVerifier hostnameVerifier = null;
         CertificatePinner certificatePinner = null;
@@ -143,6 +143,9 @@ public final class Http1Codec implements HttpCodec {
 
     @Override
     public ResponseBody openResponseBody(Response response) throws IOException {
+        if (streamAllocation != null) {
+            streamAllocation.eventListener.responseBodyStart(streamAllocation.call);
+        }
         Source source = getTransferStream(response);
         return new RealResponseBody(response.headers(), Okio.buffer(source));
     }
@@ -376,6 +379,7 @@ public final class Http1Codec implements HttpCodec {
     private abstract class AbstractSource implements Source {
         protected final ForwardingTimeout timeout = new ForwardingTimeout(source.timeout());
         protected boolean closed;
+        protected long bytesRead = 0;
 
         @Override
         public Timeout timeout() {
@@ -395,7 +399,7 @@ public final class Http1Codec implements HttpCodec {
 
             state = STATE_CLOSED;
             if (streamAllocation != null) {
-                streamAllocation.streamFinished(!reuseConnection, Http1Codec.this);
+                streamAllocation.streamFinished(!reuseConnection, Http1Codec.this, bytesRead);
             }
         }
     }
@@ -426,6 +430,7 @@ public final class Http1Codec implements HttpCodec {
             }
 
             bytesRemaining -= read;
+            bytesRead += read;
             if (bytesRemaining == 0) {
                 endOfInput(true);
             }
@@ -474,6 +479,7 @@ public final class Http1Codec implements HttpCodec {
                 throw new ProtocolException("unexpected end of stream");
             }
             bytesRemainingInChunk -= read;
+            bytesRead += read;
             return read;
         }
 
@@ -531,6 +537,7 @@ public final class Http1Codec implements HttpCodec {
                 endOfInput(true);
                 return -1;
             }
+            bytesRead += read;
             return read;
         }
 
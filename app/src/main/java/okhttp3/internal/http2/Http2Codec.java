@@ -34,6 +34,7 @@ import okhttp3.internal.http.HttpCodec;
 import okhttp3.internal.http.RealResponseBody;
 import okhttp3.internal.http.RequestLine;
 import okhttp3.internal.http.StatusLine;
+import okio.Buffer;
 import okio.ByteString;
 import okio.ForwardingSource;
 import okio.Okio;
@@ -159,6 +160,7 @@ public final class Http2Codec implements HttpCodec {
   }
 
   @Override public ResponseBody openResponseBody(Response response) throws IOException {
+    streamAllocation.eventListener.responseBodyStart(streamAllocation.call);
     Source source = new StreamFinishingSource(stream.getSource());
     return new RealResponseBody(response.headers(), Okio.buffer(source));
   }
@@ -168,12 +170,20 @@ public final class Http2Codec implements HttpCodec {
   }
 
   class StreamFinishingSource extends ForwardingSource {
+    long bytesRead = 0;
+
     public StreamFinishingSource(Source delegate) {
       super(delegate);
     }
 
+    @Override public long read(Buffer sink, long byteCount) throws IOException {
+      long read = delegate().read(sink, byteCount);
+      if (read > 0) bytesRead += read;
+      return read;
+    }
+
     @Override public void close() throws IOException {
-      streamAllocation.streamFinished(false, Http2Codec.this);
+      streamAllocation.streamFinished(false, Http2Codec.this, bytesRead);
       super.close();
     }
   }
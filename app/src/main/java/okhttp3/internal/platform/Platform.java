@@ -18,6 +18,9 @@ package okhttp3.internal.platform;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
@@ -25,6 +28,8 @@ import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.X509TrustManager;
@@ -33,6 +38,7 @@ import okhttp3.OkHttpClient;
 import okhttp3.Protocol;
 import okhttp3.internal.tls.BasicCertificateChainCleaner;
 import okhttp3.internal.tls.CertificateChainCleaner;
+import okhttp3.internal.tls.SessionStore;
 import okhttp3.internal.tls.TrustRootIndex;
 import okio.Buffer;
 
@@ -70,6 +76,11 @@ import okio.Buffer;
  * <h3>Android Cleartext Permit Detection</h3>
  * <p>
  * <p>Supported on Android 6.0+ via {@code NetworkSecurityPolicy}.
+ * <p>
+ * <h3>Persistent TLS Sessions</h3>
+ * <p>
+ * <p>Supported on Android 2.3+ and wherever Conscrypt is the TLS provider. OpenJDK can't restore
+ * a serialized session.
  */
 public class Platform {
     private static final Platform PLATFORM = findPlatform();
@@ -118,6 +129,55 @@ public class Platform {
     public void afterHandshake(SSLSocket sslSocket) {
     }
 
+    /**
+     * Configures {@code sessionContext} to offer every new client session to {@code store}, and to
+     * ask it for sessions it doesn't have in memory. Returns false if the TLS provider can't
+     * serialize sessions.
+     */
+    public boolean setPersistentSessionCache(SSLSessionContext sessionContext,
+                                             final SessionStore store) {
+        // Conscrypt的ClientSessionContext.setPersistentCache(SSLClientSessionCache)
+        Method setPersistentCache = null;
+        for (Method method : sessionContext.getClass().getMethods()) {
+            if (method.getName().equals("setPersistentCache")
+                    && method.getParameterTypes().length == 1
+                    && method.getParameterTypes()[0].isInterface()) {
+                setPersistentCache = method;
+                break;
+            }
+        }
+        if (setPersistentCache == null) return false;
+
+        Class<?> cacheInterface = setPersistentCache.getParameterTypes()[0];
+        Object cache = java.lang.reflect.Proxy.newProxyInstance(cacheInterface.getClassLoader(),
+                new Class<?>[]{cacheInterface}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return method.invoke(this, args);
+                        }
+                        switch (method.getName()) {
+                            case "getSessionData":
+                                return store.get((String) args[0], (Integer) args[1]);
+                            case "putSessionData":
+                                SSLSession session = (SSLSession) args[0];
+                                store.put(session.getPeerHost(), session.getPeerPort(),
+                                        (byte[]) args[1]);
+                                return null;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+        try {
+            setPersistentCache.invoke(sessionContext, cache);
+            return true;
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            return false;
+        }
+    }
+
     /**
      * Returns the negotiated protocol, or null if no protocol was negotiated.
      */
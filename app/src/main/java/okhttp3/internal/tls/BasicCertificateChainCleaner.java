@@ -20,6 +20,7 @@ import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
@@ -39,6 +40,8 @@ public final class BasicCertificateChainCleaner extends CertificateChainCleaner
   private static final int MAX_SIGNERS = 9;
 
   private final TrustRootIndex trustRootIndex;
+  /** Cleaned chains by the chain they were cleaned from. */
+  private final VerifiedChainCache<List<Certificate>> cleanedChains = new VerifiedChainCache<>();
 
   public BasicCertificateChainCleaner(TrustRootIndex trustRootIndex) {
     this.trustRootIndex = trustRootIndex;
@@ -53,6 +56,17 @@ public final class BasicCertificateChainCleaner extends CertificateChainCleaner
    */
   @Override public List<Certificate> clean(List<Certificate> chain, String hostname)
       throws SSLPeerUnverifiedException {
+    // 清理结果与hostname无关，只按证书链缓存
+    List<Certificate> result = cleanedChains.get(null, chain);
+    if (result == null) {
+      result = Collections.unmodifiableList(buildTrustedChain(chain));
+      cleanedChains.put(null, chain, result);
+    }
+    return result;
+  }
+
+  private List<Certificate> buildTrustedChain(List<Certificate> chain)
+      throws SSLPeerUnverifiedException {
     Deque<Certificate> queue = new ArrayDeque<>(chain);
     List<Certificate> result = new ArrayList<>();
     result.add(queue.removeFirst());
@@ -40,6 +40,9 @@ public final class OkHostnameVerifier implements HostnameVerifier {
   private static final int ALT_DNS_NAME = 2;
   private static final int ALT_IPA_NAME = 7;
 
+  /** Hosts each leaf certificate was verified for. */
+  private final VerifiedChainCache<Boolean> verifiedHosts = new VerifiedChainCache<>();
+
   private OkHostnameVerifier() {
   }
 
@@ -54,9 +57,14 @@ public final class OkHostnameVerifier implements HostnameVerifier {
   }
 
   public boolean verify(String host, X509Certificate certificate) {
-    return verifyAsIpAddress(host)
+    List<Certificate> leaf = Collections.<Certificate>singletonList(certificate);
+    if (verifiedHosts.get(host, leaf) != null) return true;
+
+    boolean verified = verifyAsIpAddress(host)
         ? verifyIpAddress(host, certificate)
         : verifyHostname(host, certificate);
+    if (verified) verifiedHosts.put(host, leaf, Boolean.TRUE);
+    return verified;
   }
 
   /** Returns true if {@code certificate} matches {@code ipAddress}. */
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.tls;
+
+/**
+ * Keeps serialized TLS client sessions, including session tickets, by the host and port they were
+ * negotiated with. The platform's TLS provider asks for a session when connecting to a host it has
+ * no session for in memory, and offers each new session to be kept.
+ */
+public interface SessionStore {
+  /** Returns the serialized session for {@code host:port}, or null if there's none. */
+  byte[] get(String host, int port);
+
+  /** Keeps {@code sessionData} for {@code host:port}, replacing any previous session. */
+  void put(String host, int port, byte[] sessionData);
+}
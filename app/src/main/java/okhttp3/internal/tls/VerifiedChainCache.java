@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.internal.tls;
+
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the results of verifying certificate chains, so repeat handshakes with the same server
+ * skip hashing public keys, parsing names and checking signatures. Only successes should be put:
+ * a failure is rare, and recomputing it produces the detailed exception.
+ *
+ * <p>Chains are compared with {@link Certificate#equals}, which compares the certificates' encoded
+ * forms, so a result is only reused for exactly the same certificates. Resumed sessions usually
+ * return the very same certificate objects, which compare by identity first.
+ */
+public final class VerifiedChainCache<T> {
+  static final int DEFAULT_MAX_SIZE = 64;
+
+  private final Map<Key, T> results;
+
+  public VerifiedChainCache() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  VerifiedChainCache(final int maxSize) {
+    this.results = new LinkedHashMap<Key, T>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<Key, T> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Returns the result remembered for {@code chain} verified for {@code hostname}, or null if
+   * there's none. {@code hostname} may be null for results that don't depend on it.
+   */
+  public synchronized T get(String hostname, List<Certificate> chain) {
+    return results.get(new Key(hostname, chain));
+  }
+
+  public synchronized void put(String hostname, List<Certificate> chain, T result) {
+    // 复制一份，调用方之后修改自己的列表不影响缓存
+    List<Certificate> copy = Collections.unmodifiableList(new ArrayList<>(chain));
+    results.put(new Key(hostname, copy), result);
+  }
+
+  static final class Key {
+    final String hostname;
+    final List<Certificate> chain;
+
+    Key(String hostname, List<Certificate> chain) {
+      this.hostname = hostname;
+      this.chain = chain;
+    }
+
+    @Override public boolean equals(Object other) {
+      if (!(other instanceof Key)) return false;
+      Key that = (Key) other;
+      return (hostname != null ? hostname.equals(that.hostname) : that.hostname == null)
+          && chain.equals(that.chain);
+    }
+
+    @Override public int hashCode() {
+      int result = hostname != null ? hostname.hashCode() : 0;
+      result = 31 * result + chain.hashCode();
+      return result;
+    }
+  }
+}
@@ -567,7 +567,7 @@ public final class RealWebSocket implements WebSocket, WebSocketReader.FrameCall
     }
 
     @Override public void close() {
-      streamAllocation.streamFinished(true, streamAllocation.codec());
+      streamAllocation.streamFinished(true, streamAllocation.codec(), -1L);
     }
   }
 
@@ -15,48 +15,142 @@
  */
 package okio;
 
-import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * A collection of unused segments, necessary to avoid GC churn and zero-fill.
  * This pool is a thread-safe static singleton.
+ *
+ * <p>The pool is striped into a power-of-two number of buckets, selected by the current thread's
+ * ID, so that threads running on different cores rarely touch the same bucket. Each bucket is a
+ * lock-free stack: the head is swapped for {@link #LOCK} while a thread is using it, and any thread
+ * that observes {@code LOCK} simply allocates (on take) or drops (on recycle) instead of waiting.
+ *
+ * <p>Each bucket head's {@code limit} holds the total number of bytes pooled in that bucket, which
+ * lets {@link #recycle} enforce the byte budget without a separate counter.
  */
-final class SegmentPool {
-  /** The maximum number of bytes to pool. */
-  // TODO: Is 64 KiB a good maximum size? Do we ever have that many idle segments?
+public final class SegmentPool {
+  /** The default maximum number of bytes to pool in each bucket. */
   static final long MAX_SIZE = 64 * 1024; // 64 KiB.
 
-  /** Singly-linked list of segments. */
-  static @Nullable Segment next;
+  /** A sentinel segment to indicate that a bucket is currently in use. */
+  private static final Segment LOCK = new Segment(new byte[0], 0, 0);
+
+  /**
+   * The number of buckets: the number of cores rounded up to a power of two, so that a thread ID
+   * can be masked into a bucket index. Threads running at the same time rarely share a bucket.
+   */
+  static final int HASH_BUCKET_COUNT =
+      Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+  /**
+   * Spacing between counters in {@link #stats} so that counters of different buckets don't share a
+   * cache line.
+   */
+  private static final int STATS_STRIDE = 8;
+
+  /** Singly-linked lists of segments, one per bucket. */
+  private static final AtomicReferenceArray<Segment> hashBuckets =
+      new AtomicReferenceArray<>(HASH_BUCKET_COUNT);
+
+  /** Per-bucket hit and miss counters, {@link #STATS_STRIDE} slots apart. */
+  private static final AtomicLongArray stats =
+      new AtomicLongArray(HASH_BUCKET_COUNT * STATS_STRIDE);
 
-  /** Total bytes in this pool. */
-  static long byteCount;
+  /** The maximum number of bytes to pool in each bucket. */
+  private static volatile long maxBucketSize =
+      Long.getLong("okio.SegmentPool.maxSize", MAX_SIZE * HASH_BUCKET_COUNT) / HASH_BUCKET_COUNT;
 
   private SegmentPool() {
   }
 
   static Segment take() {
-    synchronized (SegmentPool.class) {
-      if (next != null) {
-        Segment result = next;
-        next = result.next;
-        result.next = null;
-        byteCount -= Segment.SIZE;
-        return result;
-      }
+    int bucket = bucket();
+    Segment first = hashBuckets.getAndSet(bucket, LOCK);
+    if (first == LOCK) {
+      // We didn't acquire the lock. Don't take a pooled segment.
+      stats.getAndIncrement(bucket * STATS_STRIDE + 1);
+      return new Segment();
     }
-    return new Segment(); // Pool is empty. Don't zero-fill while holding a lock.
+    if (first == null) {
+      // We acquired the lock but the pool was empty. Unlock and allocate.
+      hashBuckets.set(bucket, null);
+      stats.getAndIncrement(bucket * STATS_STRIDE + 1);
+      return new Segment(); // Pool is empty. Don't zero-fill while holding a lock.
+    }
+    // We acquired the lock and the pool was not empty. Pop the first element and return it.
+    hashBuckets.set(bucket, first.next);
+    first.next = null;
+    first.limit = 0;
+    stats.getAndIncrement(bucket * STATS_STRIDE);
+    return first;
   }
 
   static void recycle(Segment segment) {
     if (segment.next != null || segment.prev != null) throw new IllegalArgumentException();
     if (segment.shared) return; // This segment cannot be recycled.
-    synchronized (SegmentPool.class) {
-      if (byteCount + Segment.SIZE > MAX_SIZE) return; // Pool is full.
-      byteCount += Segment.SIZE;
-      segment.next = next;
-      segment.pos = segment.limit = 0;
-      next = segment;
+    int bucket = bucket();
+    Segment first = hashBuckets.getAndSet(bucket, LOCK);
+    if (first == LOCK) return; // A take() is currently in progress.
+    int firstLimit = first != null ? first.limit : 0;
+    if (firstLimit + Segment.SIZE > maxBucketSize) {
+      hashBuckets.set(bucket, first); // Pool is full.
+      return;
+    }
+    segment.next = first;
+    segment.pos = 0;
+    segment.limit = firstLimit + Segment.SIZE;
+    hashBuckets.set(bucket, segment);
+  }
+
+  private static int bucket() {
+    return (int) (Thread.currentThread().getId() & (HASH_BUCKET_COUNT - 1L));
+  }
+
+  /**
+   * Sets the maximum number of bytes this pool retains across all threads. The budget is split
+   * evenly between buckets. Segments already pooled above a lowered budget are released as they are
+   * taken.
+   */
+  public static void setMaxSize(long maxSize) {
+    if (maxSize < 0) throw new IllegalArgumentException("maxSize < 0: " + maxSize);
+    maxBucketSize = maxSize / HASH_BUCKET_COUNT;
+  }
+
+  /** Returns the maximum number of bytes this pool retains across all threads. */
+  public static long maxSize() {
+    return maxBucketSize * HASH_BUCKET_COUNT;
+  }
+
+  /**
+   * Returns the number of bytes currently pooled. Buckets that are in use at the time of the call
+   * are not counted, so this is an estimate while other threads are reading or writing.
+   */
+  public static long byteCount() {
+    long result = 0;
+    for (int i = 0; i < HASH_BUCKET_COUNT; i++) {
+      Segment first = hashBuckets.get(i);
+      if (first != null && first != LOCK) result += first.limit;
+    }
+    return result;
+  }
+
+  /** Returns the number of {@link #take} calls served by a pooled segment. */
+  public static long hitCount() {
+    return sum(0);
+  }
+
+  /** Returns the number of {@link #take} calls that had to allocate a new segment. */
+  public static long missCount() {
+    return sum(1);
+  }
+
+  private static long sum(int offset) {
+    long result = 0;
+    for (int i = 0; i < HASH_BUCKET_COUNT; i++) {
+      result += stats.get(i * STATS_STRIDE + offset);
     }
+    return result;
   }
 }
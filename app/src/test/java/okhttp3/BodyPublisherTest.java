@@ -0,0 +1,239 @@
+package okhttp3;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.ForwardingSource;
+import okio.Okio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BodyPublisherTest {
+    private static final int CHUNKS = 3;
+
+    private final CountingBody body = new CountingBody(CHUNKS);
+    private final QueueExecutor executor = new QueueExecutor();
+
+    @Test
+    public void readsOnlyAsManyChunksAsRequested() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        body.publisher(executor).subscribe(subscriber);
+        assertEquals(0, executor.tasks.size());
+
+        subscriber.subscription.request(1);
+        executor.runAll();
+        assertEquals(1, subscriber.chunks.size());
+        assertEquals(1, body.reads);
+        assertEquals(BodyPublisher.CHUNK_SIZE, subscriber.chunks.get(0).size());
+
+        // 没有新的需求时不会继续读取
+        executor.runAll();
+        assertEquals(1, body.reads);
+
+        subscriber.subscription.request(2);
+        executor.runAll();
+        assertEquals(3, subscriber.chunks.size());
+        assertFalse(subscriber.completed);
+        assertFalse(body.closed);
+
+        subscriber.subscription.request(1);
+        executor.runAll();
+        assertTrue(subscriber.completed);
+        assertTrue(body.closed);
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void requestFromOnNextDoesNotRecurse() {
+        final int[] depth = new int[1];
+        final int[] maxDepth = new int[1];
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(ByteString chunk) {
+                depth[0]++;
+                maxDepth[0] = Math.max(maxDepth[0], depth[0]);
+                super.onNext(chunk);
+                subscription.request(1);
+                depth[0]--;
+            }
+        };
+        body.publisher(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }).subscribe(subscriber);
+
+        subscriber.subscription.request(1);
+        assertEquals(CHUNKS, subscriber.chunks.size());
+        assertTrue(subscriber.completed);
+        assertEquals(1, maxDepth[0]);
+        assertTrue(body.closed);
+    }
+
+    @Test
+    public void cancelFromOnNextStopsStreamAndClosesBody() {
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(ByteString chunk) {
+                super.onNext(chunk);
+                subscription.cancel();
+                // 正在读取的线程负责关闭
+                assertFalse(body.closed);
+            }
+        };
+        body.publisher(executor).subscribe(subscriber);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        executor.runAll();
+        assertEquals(1, subscriber.chunks.size());
+        assertEquals(1, body.reads);
+        assertTrue(body.closed);
+        assertFalse(subscriber.completed);
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    public void cancelWhileIdleClosesBody() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        body.publisher(executor).subscribe(subscriber);
+        subscriber.subscription.request(1);
+        executor.runAll();
+
+        subscriber.subscription.cancel();
+        assertTrue(body.closed);
+
+        subscriber.subscription.request(1);
+        assertEquals(0, executor.tasks.size());
+        assertEquals(1, subscriber.chunks.size());
+    }
+
+    @Test
+    public void requestOfZeroFails() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        body.publisher(executor).subscribe(subscriber);
+
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertEquals(0, body.reads);
+        assertTrue(body.closed);
+
+        // 出错之后不再有信号
+        subscriber.subscription.request(1);
+        executor.runAll();
+        assertEquals(0, subscriber.chunks.size());
+    }
+
+    @Test
+    public void secondSubscriberIsRejected() {
+        BodyPublisher publisher = body.publisher(executor);
+        RecordingSubscriber first = new RecordingSubscriber();
+        RecordingSubscriber second = new RecordingSubscriber();
+        publisher.subscribe(first);
+        publisher.subscribe(second);
+
+        assertTrue(second.error instanceof IllegalStateException);
+        assertFalse(body.closed);
+
+        first.subscription.request(CHUNKS + 1);
+        executor.runAll();
+        assertEquals(CHUNKS, first.chunks.size());
+        assertTrue(first.completed);
+    }
+
+    static class RecordingSubscriber implements BodyPublisher.Subscriber {
+        BodyPublisher.Subscription subscription;
+        final List<ByteString> chunks = new ArrayList<>();
+        Throwable error;
+        boolean completed;
+
+        @Override
+        public void onSubscribe(BodyPublisher.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(ByteString chunk) {
+            chunks.add(chunk);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+
+    /** Runs tasks only when the test says so. */
+    static final class QueueExecutor implements Executor {
+        final Deque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            for (Runnable task; (task = tasks.poll()) != null; ) {
+                task.run();
+            }
+        }
+    }
+
+    /** A body of whole chunks that counts reads and records whether it was closed. */
+    static final class CountingBody extends ResponseBody {
+        final Buffer data = new Buffer();
+        int reads;
+        boolean closed;
+
+        CountingBody(int chunks) {
+            data.write(new byte[(int) (chunks * BodyPublisher.CHUNK_SIZE)]);
+        }
+
+        @Override
+        public MediaType contentType() {
+            return null;
+        }
+
+        @Override
+        public long contentLength() {
+            return -1L;
+        }
+
+        @Override
+        public BufferedSource source() {
+            return source;
+        }
+
+        private final BufferedSource source = Okio.buffer(new ForwardingSource(data) {
+            @Override
+            public long read(Buffer sink, long byteCount) throws IOException {
+                long read = super.read(sink, byteCount);
+                if (read != -1L) reads++;
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                closed = true;
+                super.close();
+            }
+        });
+    }
+}
@@ -0,0 +1,188 @@
+package okhttp3;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class CachingDnsTest {
+    private final FakeDns delegate = new FakeDns();
+    private final List<Runnable> refreshes = new ArrayList<>();
+    private final Executor refreshExecutor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            refreshes.add(command);
+        }
+    };
+
+    @Test
+    public void repeatedLookupIsServedFromCache() throws Exception {
+        CachingDns dns = new CachingDns.Builder().delegate(delegate).build();
+
+        List<InetAddress> first = dns.lookup("a.test");
+        assertSame(first, dns.lookup("a.test"));
+        assertEquals(1, delegate.lookupCount.get());
+        assertEquals(1, dns.missCount());
+        assertEquals(1, dns.hitCount());
+    }
+
+    @Test
+    public void resultExpiresAfterTtl() throws Exception {
+        CachingDns dns = new CachingDns.Builder()
+                .delegate(delegate)
+                .ttl(50, TimeUnit.MILLISECONDS)
+                .build();
+
+        dns.lookup("a.test");
+        Thread.sleep(100);
+        dns.lookup("a.test");
+        assertEquals(2, delegate.lookupCount.get());
+    }
+
+    @Test
+    public void failureIsCachedForNegativeTtl() throws Exception {
+        delegate.fail = true;
+        CachingDns dns = new CachingDns.Builder().delegate(delegate).build();
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                dns.lookup("a.test");
+                fail();
+            } catch (UnknownHostException expected) {
+            }
+        }
+        assertEquals(1, delegate.lookupCount.get());
+        assertEquals(1, dns.negativeHitCount());
+    }
+
+    @Test
+    public void zeroNegativeTtlDoesNotCacheFailures() throws Exception {
+        delegate.fail = true;
+        CachingDns dns = new CachingDns.Builder()
+                .delegate(delegate)
+                .negativeTtl(0, TimeUnit.SECONDS)
+                .build();
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                dns.lookup("a.test");
+                fail();
+            } catch (UnknownHostException expected) {
+            }
+        }
+        assertEquals(2, delegate.lookupCount.get());
+    }
+
+    @Test
+    public void concurrentLookupsShareOneQuery() throws Exception {
+        delegate.gate = new CountDownLatch(1);
+        final CachingDns dns = new CachingDns.Builder().delegate(delegate).build();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Callable<List<InetAddress>> lookup = new Callable<List<InetAddress>>() {
+                @Override
+                public List<InetAddress> call() throws Exception {
+                    return dns.lookup("a.test");
+                }
+            };
+            Future<List<InetAddress>> first = executor.submit(lookup);
+            while (delegate.lookupCount.get() == 0) Thread.sleep(5);
+            Future<List<InetAddress>> second = executor.submit(lookup);
+            while (dns.sharedLookupCount() == 0) Thread.sleep(5);
+
+            delegate.gate.countDown();
+            assertEquals(first.get(), second.get());
+            assertEquals(1, delegate.lookupCount.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void popularHostIsRefreshedInBackground() throws Exception {
+        CachingDns dns = new CachingDns.Builder()
+                .delegate(delegate)
+                .ttl(200, TimeUnit.MILLISECONDS)
+                .refreshExecutor(refreshExecutor)
+                .build();
+
+        List<InetAddress> stale = dns.lookup("a.test");
+        Thread.sleep(160);
+        // 超过TTL的75%后命中缓存，同时安排一次后台刷新
+        assertSame(stale, dns.lookup("a.test"));
+        dns.lookup("a.test");
+        assertEquals(1, refreshes.size());
+
+        refreshes.get(0).run();
+        assertEquals(1, dns.refreshCount());
+        assertEquals(2, delegate.lookupCount.get());
+        assertEquals(delegate.address(2), dns.lookup("a.test").get(0));
+    }
+
+    @Test
+    public void leastRecentlyUsedHostIsEvicted() throws Exception {
+        CachingDns dns = new CachingDns.Builder().delegate(delegate).maxEntries(2).build();
+
+        dns.lookup("a.test");
+        dns.lookup("b.test");
+        dns.lookup("a.test");
+        dns.lookup("c.test");
+        assertEquals(2, dns.size());
+
+        dns.lookup("a.test");
+        assertEquals(3, delegate.lookupCount.get());
+        dns.lookup("b.test");
+        assertEquals(4, delegate.lookupCount.get());
+    }
+
+    @Test
+    public void evictAllForgetsEveryHost() throws Exception {
+        CachingDns dns = new CachingDns.Builder().delegate(delegate).build();
+
+        dns.lookup("a.test");
+        dns.evictAll();
+        assertEquals(0, dns.size());
+        dns.lookup("a.test");
+        assertEquals(2, delegate.lookupCount.get());
+    }
+
+    /** Resolves every host to 127.0.0.n, where n counts the lookups made. */
+    static final class FakeDns implements Dns {
+        final AtomicInteger lookupCount = new AtomicInteger();
+        volatile boolean fail;
+        volatile CountDownLatch gate;
+
+        InetAddress address(int n) throws UnknownHostException {
+            return InetAddress.getByAddress(new byte[] {127, 0, 0, (byte) n});
+        }
+
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            int n = lookupCount.incrementAndGet();
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            if (fail) throw new UnknownHostException(hostname);
+            return Collections.singletonList(address(n));
+        }
+    }
+}
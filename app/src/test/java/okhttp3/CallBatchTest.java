@@ -0,0 +1,206 @@
+package okhttp3;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import okio.Buffer;
+import okio.BufferedSource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CallBatchTest {
+    @Test
+    public void getReturnsResponsesInSubmissionOrder() throws Exception {
+        FakeCall a = new FakeCall("a");
+        FakeCall b = new FakeCall("b");
+        CallBatch batch = new CallBatch(Arrays.asList(CallFuture.submit(a), CallFuture.submit(b)));
+
+        // 完成顺序与提交顺序相反
+        b.succeed();
+        assertFalse(batch.isDone());
+        a.succeed();
+        assertTrue(batch.isDone());
+
+        List<Response> responses = batch.get();
+        assertSame(a.request, responses.get(0).request());
+        assertSame(b.request, responses.get(1).request());
+    }
+
+    @Test
+    public void failureCancelsPendingCallsAndClosesEveryCompletedResponse() throws Exception {
+        FakeCall first = new FakeCall("first");
+        FakeCall failing = new FakeCall("failing");
+        FakeCall later = new FakeCall("later");
+        FakeCall pending = new FakeCall("pending");
+        CallBatch batch = new CallBatch(Arrays.asList(CallFuture.submit(first),
+                CallFuture.submit(failing), CallFuture.submit(later), CallFuture.submit(pending)));
+
+        first.succeed();
+        later.succeed();
+        failing.fail(new IOException("boom"));
+
+        try {
+            batch.get();
+            fail();
+        } catch (ExecutionException expected) {
+            assertEquals("boom", expected.getCause().getMessage());
+        }
+
+        assertTrue(first.body.closed);
+        assertTrue(later.body.closed);
+        assertTrue(pending.canceled);
+        assertTrue(batch.futures().get(3).isCancelled());
+
+        // 取消之后才到达的响应也会被关闭
+        pending.succeed();
+        assertTrue(pending.body.closed);
+    }
+
+    @Test
+    public void timeoutLeavesCallsRunning() throws Exception {
+        FakeCall a = new FakeCall("a");
+        FakeCall b = new FakeCall("b");
+        CallBatch batch = new CallBatch(Arrays.asList(CallFuture.submit(a), CallFuture.submit(b)));
+
+        a.succeed();
+        try {
+            batch.get(10, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException expected) {
+        }
+        assertFalse(b.canceled);
+        assertFalse(a.body.closed);
+        assertFalse(batch.isCancelled());
+
+        // 超时后可以继续等待
+        b.succeed();
+        List<Response> responses = batch.get(10, TimeUnit.MILLISECONDS);
+        assertSame(a.request, responses.get(0).request());
+        assertSame(b.request, responses.get(1).request());
+        assertFalse(a.body.closed);
+    }
+
+    @Test
+    public void interruptLeavesCallsRunning() throws Exception {
+        FakeCall a = new FakeCall("a");
+        CallBatch batch = new CallBatch(Arrays.asList(CallFuture.submit(a)));
+
+        Thread.currentThread().interrupt();
+        try {
+            batch.get();
+            fail();
+        } catch (InterruptedException expected) {
+        }
+        assertFalse(a.canceled);
+
+        a.succeed();
+        assertSame(a.request, batch.get().get(0).request());
+    }
+
+    @Test
+    public void submitRejectsExecutedCall() {
+        FakeCall call = new FakeCall("a");
+        CallFuture.submit(call);
+        try {
+            CallFuture.submit(call);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /** A call that completes when the test says so. */
+    static final class FakeCall implements Call {
+        final Request request;
+        final TrackingBody body = new TrackingBody();
+        Callback callback;
+        boolean canceled;
+
+        FakeCall(String path) {
+            this.request = new Request.Builder().url("https://example.com/" + path).build();
+        }
+
+        void succeed() throws IOException {
+            callback.onResponse(this, new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(200)
+                    .message("OK")
+                    .body(body)
+                    .build());
+        }
+
+        void fail(IOException e) {
+            callback.onFailure(this, e);
+        }
+
+        @Override
+        public Request request() {
+            return request;
+        }
+
+        @Override
+        public Response execute() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void enqueue(Callback responseCallback) {
+            if (callback != null) throw new IllegalStateException("Already Executed");
+            callback = responseCallback;
+        }
+
+        @Override
+        public void cancel() {
+            canceled = true;
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return callback != null;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return canceled;
+        }
+
+        @Override
+        public Call clone() {
+            return new FakeCall(request.url().encodedPath().substring(1));
+        }
+    }
+
+    static final class TrackingBody extends ResponseBody {
+        boolean closed;
+
+        @Override
+        public MediaType contentType() {
+            return null;
+        }
+
+        @Override
+        public long contentLength() {
+            return 0;
+        }
+
+        @Override
+        public BufferedSource source() {
+            return new Buffer();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package okhttp3;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+public class CoalescingTest {
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private TestServer server;
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        if (server != null) server.close();
+    }
+
+    /** Every request waits long enough for the concurrent ones to arrive. */
+    private void startSlowServer() throws IOException {
+        server = new TestServer(new TestServer.Delays() {
+            @Override
+            public long delayMillis(int requestIndex) {
+                return 300;
+            }
+        });
+    }
+
+    private List<String> getConcurrently(final OkHttpClient client, Request... requests)
+            throws Exception {
+        List<Future<String>> futures = new ArrayList<>();
+        for (final Request request : requests) {
+            futures.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return client.newCall(request).execute().body().string();
+                }
+            }));
+        }
+        List<String> result = new ArrayList<>();
+        for (Future<String> future : futures) {
+            result.add(future.get());
+        }
+        return result;
+    }
+
+    @Test
+    public void concurrentIdenticalRequestsShareOneExchange() throws Exception {
+        startSlowServer();
+        OkHttpClient client = new OkHttpClient.Builder().coalesceRequests(true).build();
+        Request request = new Request.Builder().url(server.url("/")).build();
+
+        List<String> bodies = getConcurrently(client, request, request, request);
+
+        assertEquals(1, server.requestCount.get());
+        for (String body : bodies) {
+            assertEquals("0", body);
+        }
+    }
+
+    @Test
+    public void requestsWithDifferentHeadersAreNotCoalesced() throws Exception {
+        startSlowServer();
+        OkHttpClient client = new OkHttpClient.Builder().coalesceRequests(true).build();
+
+        getConcurrently(client,
+                new Request.Builder().url(server.url("/")).header("Accept", "text/plain").build(),
+                new Request.Builder().url(server.url("/")).header("Accept", "text/html").build());
+
+        assertEquals(2, server.requestCount.get());
+    }
+
+    @Test
+    public void requestsAreNotCoalescedUnlessEnabled() throws Exception {
+        startSlowServer();
+        OkHttpClient client = new OkHttpClient();
+        Request request = new Request.Builder().url(server.url("/")).build();
+
+        getConcurrently(client, request, request);
+
+        assertEquals(2, server.requestCount.get());
+    }
+
+    @Test
+    public void laterRequestMakesItsOwnExchange() throws Exception {
+        server = new TestServer(TestServer.NO_DELAY);
+        OkHttpClient client = new OkHttpClient.Builder().coalesceRequests(true).build();
+        Request request = new Request.Builder().url(server.url("/")).build();
+
+        assertEquals("0", client.newCall(request).execute().body().string());
+        assertEquals("1", client.newCall(request).execute().body().string());
+    }
+}
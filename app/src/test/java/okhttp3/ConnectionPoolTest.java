@@ -0,0 +1,184 @@
+package okhttp3;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.internal.Internal;
+import okhttp3.internal.connection.AddressConnections;
+import okhttp3.internal.http.HttpCodec;
+import okhttp3.internal.connection.StreamAllocation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionPoolTest {
+    private TestServer server;
+    private TestServer otherServer;
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null) server.close();
+        if (otherServer != null) otherServer.close();
+    }
+
+    private static Address address(OkHttpClient client, HttpUrl url) {
+        return new Address(url.host(), url.port(), client.dns(), client.socketFactory(), null, null,
+                null, client.proxyAuthenticator(), null, client.protocols(), client.connectionSpecs(),
+                client.proxySelector());
+    }
+
+    private static String get(OkHttpClient client, HttpUrl url) throws IOException {
+        return client.newCall(new Request.Builder().url(url).build()).execute().body().string();
+    }
+
+    @Test
+    public void connectionsToAnAddressAreReused() throws Exception {
+        server = new TestServer(TestServer.NO_DELAY);
+        otherServer = new TestServer(TestServer.NO_DELAY);
+        ConnectionPool pool = new ConnectionPool();
+        OkHttpClient client = new OkHttpClient.Builder().connectionPool(pool).build();
+
+        get(client, server.url("/"));
+        get(client, otherServer.url("/"));
+        get(client, server.url("/"));
+        get(client, otherServer.url("/"));
+
+        assertEquals(1, server.connectionCount.get());
+        assertEquals(1, otherServer.connectionCount.get());
+        assertEquals(2, pool.connectionCount());
+        assertEquals(2, pool.idleConnectionCount());
+    }
+
+    @Test
+    public void cleanupKeepsEmptyGroupThatIsStillHeld() throws Exception {
+        server = new TestServer(TestServer.NO_DELAY);
+        ConnectionPool pool = new ConnectionPool();
+        OkHttpClient client = new OkHttpClient.Builder().connectionPool(pool).build();
+        Address address = address(client, server.url("/"));
+
+        // 第一个allocation持有空分组时清理任务运行，随后第二个allocation出现
+        StreamAllocation holder = new StreamAllocation(pool, address, null, EventListener.NONE, null);
+        pool.cleanup(System.nanoTime());
+        StreamAllocation other = new StreamAllocation(pool, address, null, EventListener.NONE, null);
+
+        HttpCodec codec = holder.newStream(client, false);
+        holder.streamFinished(false, codec, 0L);
+        holder.release();
+        other.release();
+
+        // 持有者放入的链接对之后的调用可见
+        get(client, server.url("/"));
+        assertEquals(1, server.connectionCount.get());
+        assertEquals(1, pool.connectionCount());
+    }
+
+    @Test
+    public void budgetEvictsIdleConnectionToAnotherAddress() throws Exception {
+        server = new TestServer(TestServer.NO_DELAY);
+        otherServer = new TestServer(TestServer.NO_DELAY);
+        ConnectionPool pool = new ConnectionPool(5, 5, TimeUnit.MINUTES, 1);
+        OkHttpClient client = new OkHttpClient.Builder().connectionPool(pool).build();
+
+        get(client, server.url("/"));
+        get(client, otherServer.url("/"));
+
+        assertEquals(1, pool.connectionCount());
+        assertEquals(1, otherServer.connectionCount.get());
+    }
+
+    @Test
+    public void budgetWaitTimesOutWhenEveryConnectionIsInUse() throws Exception {
+        server = new TestServer(TestServer.NO_DELAY);
+        otherServer = new TestServer(TestServer.NO_DELAY);
+        ConnectionPool pool = new ConnectionPool(5, 5, TimeUnit.MINUTES, 1);
+        OkHttpClient client = new OkHttpClient.Builder()
+                .connectionPool(pool)
+                .connectTimeout(200, TimeUnit.MILLISECONDS)
+                .build();
+
+        Response inUse = client.newCall(new Request.Builder().url(server.url("/")).build())
+                .execute();
+        try {
+            get(client, otherServer.url("/"));
+            fail();
+        } catch (InterruptedIOException expected) {
+            assertTrue(expected.getMessage().contains("connection budget exhausted"));
+        }
+        assertEquals(0, otherServer.connectionCount.get());
+
+        // 释放后预算可以给其他地址使用
+        inUse.close();
+        assertEquals("0", get(client, otherServer.url("/")));
+        assertEquals(1, pool.connectionCount());
+    }
+
+    /** Returns how many allocations other than the caller's own still hold the group. */
+    private static int otherHolders(ConnectionPool pool, Address address) {
+        AddressConnections group = Internal.instance.addressConnections(pool, address);
+        synchronized (group) {
+            group.allocationCount--;
+            return group.allocationCount;
+        }
+    }
+
+    @Test
+    public void webSocketCallLetsGoOfGroup() throws Exception {
+        server = new TestServer(TestServer.NO_DELAY);
+        ConnectionPool pool = new ConnectionPool();
+        OkHttpClient client = new OkHttpClient.Builder()
+                .connectionPool(pool)
+                .protocols(Collections.singletonList(Protocol.HTTP_1_1))
+                .build();
+
+        // 测试服务器回复200而不是101，握手失败
+        final CountDownLatch failed = new CountDownLatch(1);
+        client.newWebSocket(new Request.Builder().url(server.url("/")).build(),
+                new WebSocketListener() {
+                    @Override
+                    public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+                        failed.countDown();
+                    }
+                });
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+
+        assertEquals(0, otherHolders(pool, address(client, server.url("/"))));
+    }
+
+    @Test
+    public void interceptorThatLeaksStreamLetsGoOfGroup() throws Exception {
+        server = new TestServer(TestServer.NO_DELAY);
+        ConnectionPool pool = new ConnectionPool();
+        OkHttpClient client = new OkHttpClient.Builder()
+                .connectionPool(pool)
+                .addNetworkInterceptor(new Interceptor() {
+                    @Override
+                    public Response intercept(Chain chain) throws IOException {
+                        // 把响应改写成同主机重定向，并替换掉响应体，原来的流一直不会结束
+                        Response response = chain.proceed(chain.request());
+                        return response.newBuilder()
+                                .code(302)
+                                .header("Location", "/redirected")
+                                .body(ResponseBody.create(null, ""))
+                                .build();
+                    }
+                })
+                .build();
+
+        try {
+            get(client, server.url("/"));
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        assertEquals(0, otherHolders(pool, address(client, server.url("/"))));
+        assertFalse(pool.connectionCount() == 0);
+    }
+}
@@ -0,0 +1,214 @@
+package okhttp3;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Dispatcher.AdaptiveLimit;
+import okhttp3.RealCall.AsyncCall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DispatcherTest {
+    private final RecordingExecutor executor = new RecordingExecutor();
+    private final Dispatcher dispatcher = new Dispatcher(executor);
+    private final OkHttpClient client = new OkHttpClient.Builder().dispatcher(dispatcher).build();
+
+    private void enqueue(String url, Priority priority) {
+        client.newCall(new Request.Builder().url(url).priority(priority).build()).enqueue(
+                new Callback() {
+                    @Override
+                    public void onFailure(Call call, IOException e) {
+                    }
+
+                    @Override
+                    public void onResponse(Call call, Response response) {
+                    }
+                });
+    }
+
+    private void enqueue(String url) {
+        enqueue(url, Priority.NORMAL);
+    }
+
+    @Test
+    public void hostsTakeTurnsForFreedSlots() {
+        dispatcher.setMaxRequests(1);
+        enqueue("http://a/1");
+        enqueue("http://a/2");
+        enqueue("http://a/3");
+        enqueue("http://b/1");
+
+        assertEquals("http://a/1", executor.finishNext());
+        assertEquals("http://a/2", executor.finishNext());
+        assertEquals("http://b/1", executor.finishNext());
+        assertEquals("http://a/3", executor.finishNext());
+        assertEquals(0, dispatcher.queuedCallsCount());
+        assertEquals(0, dispatcher.runningCallsCount());
+    }
+
+    @Test
+    public void busyHostDoesNotBlockOtherHosts() {
+        dispatcher.setMaxRequestsPerHost(1);
+        enqueue("http://a/1");
+        enqueue("http://a/2");
+        enqueue("http://b/1");
+
+        assertEquals(2, dispatcher.runningCallsCount());
+        assertEquals(1, dispatcher.queuedCallsCount());
+        assertEquals("http://a/2", dispatcher.queuedCalls().get(0).request().url().toString());
+    }
+
+    @Test
+    public void highPriorityCallSkipsLowPriorityBacklog() {
+        dispatcher.setMaxRequests(1);
+        enqueue("http://a/running");
+        for (int i = 0; i < 10; i++) {
+            enqueue("http://b/low" + i, Priority.LOW);
+        }
+        enqueue("http://c/high", Priority.HIGH);
+
+        assertEquals("http://a/running", executor.finishNext());
+        assertEquals(10, dispatcher.queuedCallsCount());
+        assertEquals("http://c/high", executor.finishNext());
+    }
+
+    @Test
+    public void lowPriorityCallIsNotStarved() {
+        dispatcher.setMaxRequests(1);
+        enqueue("http://a/running");
+        for (int i = 0; i < 40; i++) {
+            enqueue("http://b/high" + i, Priority.HIGH);
+        }
+        enqueue("http://c/low", Priority.LOW);
+
+        executor.finishNext();
+        // 权重16:1，最多17个空位内低优先级的call就会执行
+        boolean lowRan = false;
+        for (int i = 0; i < 17 && !lowRan; i++) {
+            lowRan = executor.finishNext().equals("http://c/low");
+        }
+        assertTrue(lowRan);
+    }
+
+    /**
+     * Drives {@code limit} against a host that serves {@code capacity} calls at once and answers the
+     * rest with 503. Each round starts as many calls as the limit allows, all at once.
+     */
+    private static int settle(AdaptiveLimit limit, int capacity, int rounds) {
+        long latencyNanos = TimeUnit.MILLISECONDS.toNanos(50);
+        for (int round = 0; round < rounds; round++) {
+            long startedAtNanos = System.nanoTime();
+            int inFlight = limit.limit();
+            for (int i = 0; i < inFlight; i++) {
+                boolean rejected = i >= capacity;
+                limit.onSample(startedAtNanos, latencyNanos, rejected, false, inFlight - i, 64);
+            }
+        }
+        return limit.limit();
+    }
+
+    @Test
+    public void adaptiveLimitSettlesNearHostCapacity() {
+        assertTrue(settle(new AdaptiveLimit(5), 3, 2000) <= 4);
+        assertTrue(settle(new AdaptiveLimit(5), 3, 2000) >= 3);
+
+        int limit = settle(new AdaptiveLimit(5), 24, 2000);
+        assertTrue("limit " + limit, limit >= 18 && limit <= 24);
+    }
+
+    @Test
+    public void adaptiveLimitBacksOffOncePerRound() {
+        AdaptiveLimit limit = new AdaptiveLimit(8);
+        long startedAtNanos = System.nanoTime();
+        for (int i = 0; i < 8; i++) {
+            limit.onSample(startedAtNanos, 1000L, true, false, 8 - i, 64);
+        }
+        assertEquals(6, limit.limit());
+    }
+
+    @Test
+    public void adaptiveLimitCountsTimeoutsOnlyOnceHostHasAnswered() {
+        AdaptiveLimit limit = new AdaptiveLimit(8);
+        limit.onSample(System.nanoTime(), 1000L, false, true, 1, 64);
+        assertEquals(8, limit.limit());
+
+        limit.onSample(System.nanoTime(), 1000L, false, false, 1, 64);
+        limit.onSample(System.nanoTime(), 1000L, false, true, 1, 64);
+        assertEquals(6, limit.limit());
+    }
+
+    @Test
+    public void dnsFailureDoesNotShrinkAdaptiveLimit() throws Exception {
+        dispatcher.setAdaptiveRequestsPerHost(true);
+        OkHttpClient failing = client.newBuilder()
+                .dns(new Dns() {
+                    @Override
+                    public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+                        throw new UnknownHostException(hostname);
+                    }
+                })
+                .build();
+        failing.newCall(new Request.Builder().url("http://a/1").build()).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+            }
+        });
+
+        executor.calls.remove(0).run();
+        assertEquals(0, dispatcher.runningCallsCount());
+        assertEquals(Integer.valueOf(5), dispatcher.adaptiveRequestsPerHostLimits().get("a"));
+    }
+
+    /** Holds the calls the dispatcher starts instead of running them. */
+    static final class RecordingExecutor extends AbstractExecutorService {
+        final List<AsyncCall> calls = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            calls.add((AsyncCall) command);
+        }
+
+        /** Finishes the oldest started call and returns its URL. */
+        String finishNext() {
+            AsyncCall call = calls.remove(0);
+            call.get().client.dispatcher().finished(call);
+            return call.request().url().toString();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package okhttp3;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FastFallbackTest {
+    /** Connects to this address never complete, like a route whose packets are dropped. */
+    private static final String BLACKHOLE = "127.0.0.2";
+
+    private TestServer server;
+    private OkHttpClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new TestServer(TestServer.NO_DELAY);
+        client = new OkHttpClient.Builder()
+                .socketFactory(new BlackholeSocketFactory())
+                .connectTimeout(5, TimeUnit.SECONDS)
+                .build();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    private static Dns dns(final String... addresses) {
+        return new Dns() {
+            @Override
+            public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+                InetAddress[] result = new InetAddress[addresses.length];
+                for (int i = 0; i < addresses.length; i++) {
+                    result[i] = InetAddress.getByName(addresses[i]);
+                }
+                return Arrays.asList(result);
+            }
+        };
+    }
+
+    private Call newCall(OkHttpClient client) {
+        return client.newCall(new Request.Builder()
+                .url("http://race.test:" + server.port() + "/")
+                .build());
+    }
+
+    @Test
+    public void secondRouteWinsWhenFirstHangs() throws Exception {
+        OkHttpClient racing = client.newBuilder()
+                .dns(dns(BLACKHOLE, "127.0.0.1"))
+                .fastFallback(true)
+                .build();
+
+        long start = System.nanoTime();
+        assertEquals("0", newCall(racing).execute().body().string());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        assertEquals(1, racing.connectionPool().connectionCount());
+    }
+
+    @Test
+    public void fastFallbackIsOffByDefault() {
+        assertFalse(new OkHttpClient().fastFallback());
+    }
+
+    @Test
+    public void attemptsBeyondConnectionBudgetWaitForSlot() throws Exception {
+        ConnectionPool pool = new ConnectionPool(5, 5, TimeUnit.MINUTES, 1);
+        OkHttpClient racing = client.newBuilder()
+                .dns(dns(BLACKHOLE, "127.0.0.1"))
+                .fastFallback(true)
+                .connectionPool(pool)
+                .connectTimeout(500, TimeUnit.MILLISECONDS)
+                .build();
+
+        // 预算只有一个，第二个路由要等第一个超时后才能开始
+        long start = System.nanoTime();
+        assertEquals("0", newCall(racing).execute().body().string());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(500));
+        assertEquals(1, pool.connectionCount());
+
+        // 预算没有泄漏：换一个地址仍然可以驱逐空闲链接后连接
+        OkHttpClient direct = racing.newBuilder().dns(dns("127.0.0.1")).build();
+        assertEquals("1", direct.newCall(new Request.Builder()
+                .url("http://other.test:" + server.port() + "/")
+                .build()).execute().body().string());
+        assertEquals(1, pool.connectionCount());
+    }
+
+    @Test
+    public void withoutFastFallbackFirstRouteTimesOut() throws Exception {
+        OkHttpClient sequential = client.newBuilder()
+                .dns(dns(BLACKHOLE, "127.0.0.1"))
+                .fastFallback(false)
+                .connectTimeout(500, TimeUnit.MILLISECONDS)
+                .build();
+
+        long start = System.nanoTime();
+        assertEquals("0", newCall(sequential).execute().body().string());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    public void raceFailsWhenEveryRouteFails() throws Exception {
+        OkHttpClient racing = client.newBuilder()
+                .dns(dns("127.0.0.1", "127.0.0.1"))
+                .fastFallback(true)
+                .build();
+        server.close();
+
+        try {
+            newCall(racing).execute();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(0, racing.connectionPool().connectionCount());
+    }
+
+    @Test
+    public void cancelStopsRace() throws Exception {
+        OkHttpClient racing = client.newBuilder()
+                .dns(dns(BLACKHOLE, BLACKHOLE))
+                .fastFallback(true)
+                .build();
+        final Call call = newCall(racing);
+        new Timer(true).schedule(new TimerTask() {
+            @Override
+            public void run() {
+                call.cancel();
+            }
+        }, 300);
+
+        long start = System.nanoTime();
+        try {
+            call.execute();
+            fail();
+        } catch (IOException expected) {
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+    }
+
+    /** Creates sockets whose connects to {@link #BLACKHOLE} hang until timeout or close. */
+    static final class BlackholeSocketFactory extends SocketFactory {
+        @Override
+        public Socket createSocket() {
+            return new Socket() {
+                volatile boolean closed;
+
+                @Override
+                public void connect(SocketAddress endpoint, int timeout) throws IOException {
+                    InetSocketAddress address = (InetSocketAddress) endpoint;
+                    if (!address.getAddress().getHostAddress().equals(BLACKHOLE)) {
+                        super.connect(endpoint, timeout);
+                        return;
+                    }
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+                    while (!closed && System.nanoTime() < deadline) {
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                    throw closed
+                            ? new SocketException("Socket closed")
+                            : new SocketTimeoutException("connect timed out");
+                }
+
+                @Override
+                public synchronized void close() throws IOException {
+                    closed = true;
+                    super.close();
+                }
+            };
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                                   int localPort) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package okhttp3;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HedgingInterceptorTest {
+    private TestServer server;
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null) server.close();
+    }
+
+    /** Delays the first request so the hedge, which is the second, answers first. */
+    private void startServerWithSlowFirstRequest(final long delayMillis) throws IOException {
+        server = new TestServer(new TestServer.Delays() {
+            @Override
+            public long delayMillis(int requestIndex) {
+                return requestIndex == 0 ? delayMillis : 0;
+            }
+        });
+    }
+
+    @Test
+    public void hedgeWinsWhenFirstAttemptIsSlow() throws Exception {
+        startServerWithSlowFirstRequest(2000);
+        HedgingPolicy policy = HedgingPolicy.fixedDelay(100, TimeUnit.MILLISECONDS);
+        OkHttpClient client = new OkHttpClient.Builder().hedgingPolicy(policy).build();
+
+        long start = System.nanoTime();
+        Response response = client.newCall(new Request.Builder().url(server.url("/")).build())
+                .execute();
+        assertEquals("1", response.body().string());
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1500));
+        assertEquals(1, policy.hedgeCount());
+        assertEquals(1, policy.hedgeWinCount());
+    }
+
+    @Test
+    public void hedgeDoesNotJoinCoalescedRequest() throws Exception {
+        startServerWithSlowFirstRequest(2000);
+        HedgingPolicy policy = HedgingPolicy.fixedDelay(100, TimeUnit.MILLISECONDS);
+        OkHttpClient client = new OkHttpClient.Builder()
+                .coalesceRequests(true)
+                .hedgingPolicy(policy)
+                .build();
+
+        Response response = client.newCall(new Request.Builder().url(server.url("/")).build())
+                .execute();
+        // 对冲请求自己发出了第二个请求，而不是等待第一次尝试的结果
+        assertEquals("1", response.body().string());
+        assertEquals(2, server.requestCount.get());
+        assertEquals(1, policy.hedgeWinCount());
+    }
+
+    @Test
+    public void hedgeIsSkippedWhenHostIsAtItsLimit() throws Exception {
+        startServerWithSlowFirstRequest(500);
+        HedgingPolicy policy = HedgingPolicy.fixedDelay(100, TimeUnit.MILLISECONDS);
+        OkHttpClient client = new OkHttpClient.Builder().hedgingPolicy(policy).build();
+        client.dispatcher().setMaxRequestsPerHost(1);
+
+        final AtomicReference<String> body = new AtomicReference<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        client.newCall(new Request.Builder().url(server.url("/")).build()).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                done.countDown();
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) throws IOException {
+                body.set(response.body().string());
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        assertEquals("0", body.get());
+        assertEquals(1, server.requestCount.get());
+        assertEquals(0, policy.hedgeCount());
+    }
+}
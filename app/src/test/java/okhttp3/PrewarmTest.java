@@ -0,0 +1,274 @@
+package okhttp3;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.internal.Internal;
+import okhttp3.internal.connection.AddressConnections;
+import okhttp3.internal.http.RetryAndFollowUpInterceptor;
+import okio.ByteString;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PrewarmTest {
+    private TestServer server;
+    private TestServer otherServer;
+    private Http2Server http2Server;
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null) server.close();
+        if (otherServer != null) otherServer.close();
+        if (http2Server != null) http2Server.close();
+    }
+
+    /** Builds a client whose prewarm tasks run on the calling thread. */
+    private static OkHttpClient.Builder inlineClient(ConnectionPool pool) {
+        return new OkHttpClient.Builder()
+                .dispatcher(new Dispatcher(new InlineExecutor()))
+                .connectionPool(pool);
+    }
+
+    @Test
+    public void stopsAtConnectionsPerHost() throws Exception {
+        server = new TestServer(TestServer.NO_DELAY);
+        ConnectionPool pool = new ConnectionPool();
+        OkHttpClient client = inlineClient(pool).build();
+
+        // 指向同一地址的url只预热一次
+        client.prewarm(Arrays.asList(server.url("/a"), server.url("/b")), 3);
+        assertEquals(3, pool.idleConnectionCount());
+
+        client.prewarm(Collections.singletonList(server.url("/")), 3);
+        assertEquals(3, pool.connectionCount());
+
+        client.prewarm(Collections.singletonList(server.url("/")), 4);
+        assertEquals(4, pool.idleConnectionCount());
+
+        // 预热的链接被之后的调用复用
+        client.newCall(new Request.Builder().url(server.url("/")).build()).execute().body().string();
+        assertEquals(4, pool.connectionCount());
+        assertEquals(4, server.connectionCount.get());
+    }
+
+    @Test
+    public void stopsAtOneHttp2Connection() throws Exception {
+        http2Server = new Http2Server();
+        ConnectionPool pool = new ConnectionPool();
+        OkHttpClient client = inlineClient(pool)
+                .sslSocketFactory(http2Server.clientContext.getSocketFactory(),
+                        http2Server.trustManager)
+                .build();
+
+        client.prewarm(Collections.singletonList(http2Server.url()), 3);
+        assertEquals(1, pool.connectionCount());
+
+        AddressConnections group = Internal.instance.addressConnections(pool,
+                RetryAndFollowUpInterceptor.createAddress(client, http2Server.url()));
+        synchronized (group) {
+            group.allocationCount--;
+            assertTrue(group.connections.getFirst().isMultiplexed());
+        }
+    }
+
+    @Test
+    public void givesUpWithoutEvictingWhenBudgetIsSpent() throws Exception {
+        server = new TestServer(TestServer.NO_DELAY);
+        otherServer = new TestServer(TestServer.NO_DELAY);
+        ConnectionPool pool = new ConnectionPool(5, 5, TimeUnit.MINUTES, 1);
+        OkHttpClient client = inlineClient(pool).build();
+
+        Response response = client.newCall(new Request.Builder().url(otherServer.url("/")).build())
+                .execute();
+        response.body().string();
+        assertEquals(1, pool.idleConnectionCount());
+
+        client.prewarm(Collections.singletonList(server.url("/")), 2);
+        assertEquals(1, pool.idleConnectionCount());
+
+        // 空闲链接仍然可以复用
+        client.newCall(new Request.Builder().url(otherServer.url("/")).build()).execute()
+                .body().string();
+        assertEquals(1, otherServer.connectionCount.get());
+        assertEquals(0, server.connectionCount.get());
+    }
+
+    @Test
+    public void shutDownExecutorIsIgnored() throws Exception {
+        server = new TestServer(TestServer.NO_DELAY);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        OkHttpClient client = new OkHttpClient.Builder()
+                .dispatcher(new Dispatcher(executor))
+                .build();
+
+        client.prewarm(Collections.singletonList(server.url("/")), 1);
+        assertEquals(0, client.connectionPool().connectionCount());
+    }
+
+    /** Runs tasks on the calling thread. */
+    static final class InlineExecutor extends AbstractExecutorService {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return new ArrayList<>();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+
+    /**
+     * A TLS server that negotiates HTTP/2 and then only sends its settings, which is all a prewarmed
+     * connection needs.
+     */
+    static final class Http2Server {
+        /** A PKCS12 key store with a self-signed EC certificate for 127.0.0.1, password "password". */
+        private static final String KEY_STORE = ""
+                + "MIIEFgIBAzCCA8AGCSqGSIb3DQEHAaCCA7EEggOtMIIDqTCCATAGCSqGSIb3DQEHAaCCASEEggEdMIIBGTCCARUGCyqGSIb3"
+                + "DQEMCgECoIG9MIG6MGYGCSqGSIb3DQEFDTBZMDgGCSqGSIb3DQEFDDArBBTlQzgtvvZ77rvF9Lux6fxKBnkhhwICJxACASAw"
+                + "DAYIKoZIhvcNAgkFADAdBglghkgBZQMEASoEEK5KLSxXVfj/LqEEfnGck74EUBgPUsvft6dckOvg/ajGC4khv4b8b3ZrYgla"
+                + "mtE125U8JZqvxWky4CMErU95TA3EMAQKckArV+OIq9BqKBP+Bidplv94qBLzhnGolQlqbhcTMUYwIQYJKoZIhvcNAQkUMRQe"
+                + "EgBsAG8AYwBhAGwAaABvAHMAdDAhBgkqhkiG9w0BCRUxFAQSVGltZSAxNzkyMTk3MzI2NjY1MIICcQYJKoZIhvcNAQcGoIIC"
+                + "YjCCAl4CAQAwggJXBgkqhkiG9w0BBwEwZgYJKoZIhvcNAQUNMFkwOAYJKoZIhvcNAQUMMCsEFLuzZYnn+qFa0QD7YPnhYGVf"
+                + "uM4cAgInEAIBIDAMBggqhkiG9w0CCQUAMB0GCWCGSAFlAwQBKgQQWrOYm0QYtjdERWP4qw7r0YCCAeDQvmxAAAQp1EMJcEzd"
+                + "BUHgQdvi/oFEoEM49lyaNfz9TR8aXBErvweNt2nmGNR0tkHWUb4PJcn41M4QZO7hm1pHnHKgtCurobvLT+X/xz7LeCd1G/IG"
+                + "5UDLILb36teTbIlYhzAqvi+WCj6WrmcqOgkCB8Nb3zrzyBU38imH30Q1um9CpkPFIsZ+yzrK83Jw59VuyVvId3XQvqz7JzsA"
+                + "kO9loMGq/DlCmRVYqKsrZJXFxQ9JxB2zVNEcbE/eq8kF2EYXta/3mkFAyUD4YEE2UhQM/As95Mtff9EC3DC9SG0Ng7V599nT"
+                + "LlobWHbRVP2SVafvd7IbpgUzXEqje8Xu2EAeulyDUaKJm5h38s5O3fA2Duf5bpYgC/2wtKdoNh2WBe11zm4N5RSrlwuLmOLd"
+                + "QJuwyZ7iQERBIRFQ8+U5YruINGjnGc/khbXfEa4Fl7Beb8tIGAG/7gEXBrOgE2X9qXoctIcSuOuEI5m3/XB33esy9hex+ajp"
+                + "GHAG//X4P25YnVot/LVNrCKXKvTZK3Q05VcHI/JVWmlZWjuSfnkG16oZBjbaC8cw1R1+PhWQiPWSgSXXuUomFDN0tW+ad9O2"
+                + "g8Cbc51LxsGTtrtv7t3dvhFhzjyy0G6ZjDlie5Q/uQ96OI4wTTAxMA0GCWCGSAFlAwQCAQUABCDKFMoidY0tS7nxSH4ENT1a"
+                + "6NxHERrb6NKNP6rqFOjLkgQU1UgLJd5NJ8SJAa3akY4gKq7hwrICAicQ";
+        private static final char[] PASSWORD = "password".toCharArray();
+        /** An empty SETTINGS frame. */
+        private static final byte[] SETTINGS = {0, 0, 0, 4, 0, 0, 0, 0, 0};
+
+        final SSLContext clientContext;
+        final X509TrustManager trustManager;
+        private final SSLServerSocket serverSocket;
+        private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+        Http2Server() throws Exception {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(new okio.Buffer().write(ByteString.decodeBase64(KEY_STORE)).inputStream(),
+                    PASSWORD);
+            KeyManagerFactory keyManagerFactory =
+                    KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, PASSWORD);
+            TrustManagerFactory trustManagerFactory =
+                    TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init(keyStore);
+            trustManager = (X509TrustManager) trustManagerFactory.getTrustManagers()[0];
+
+            SSLContext serverContext = SSLContext.getInstance("TLS");
+            serverContext.init(keyManagerFactory.getKeyManagers(), null, null);
+            clientContext = SSLContext.getInstance("TLS");
+            clientContext.init(null, trustManagerFactory.getTrustManagers(), null);
+
+            serverSocket = (SSLServerSocket) serverContext.getServerSocketFactory()
+                    .createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread("Http2Server") {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            serve((SSLSocket) serverSocket.accept());
+                        }
+                    } catch (IOException ignored) {
+                        // 服务端已关闭
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        HttpUrl url() {
+            return HttpUrl.parse("https://127.0.0.1:" + serverSocket.getLocalPort() + "/");
+        }
+
+        private void serve(final SSLSocket socket) throws IOException {
+            sockets.add(socket);
+            // SSLParameters.setApplicationProtocols是Java 9的API
+            SSLParameters parameters = socket.getSSLParameters();
+            try {
+                SSLParameters.class.getMethod("setApplicationProtocols", String[].class)
+                        .invoke(parameters, (Object) new String[]{"h2"});
+            } catch (ReflectiveOperationException e) {
+                throw new AssertionError(e);
+            }
+            socket.setSSLParameters(parameters);
+            Thread thread = new Thread("Http2Server connection") {
+                @Override
+                public void run() {
+                    try {
+                        OutputStream out = socket.getOutputStream();
+                        out.write(SETTINGS);
+                        out.flush();
+                        InputStream in = socket.getInputStream();
+                        byte[] buffer = new byte[8192];
+                        while (in.read(buffer) != -1) {
+                        }
+                    } catch (IOException ignored) {
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+}
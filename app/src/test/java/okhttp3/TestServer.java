@@ -0,0 +1,114 @@
+package okhttp3;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface. Each request is answered with its index,
+ * after the delay {@link #delays} gives for that index.
+ */
+final class TestServer implements Closeable {
+    interface Delays {
+        long delayMillis(int requestIndex);
+    }
+
+    static final Delays NO_DELAY = new Delays() {
+        @Override
+        public long delayMillis(int requestIndex) {
+            return 0;
+        }
+    };
+
+    private final ServerSocket serverSocket;
+    private final Delays delays;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    final AtomicInteger requestCount = new AtomicInteger();
+    final AtomicInteger connectionCount = new AtomicInteger();
+
+    TestServer(Delays delays) throws IOException {
+        this.delays = delays;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread("TestServer " + serverSocket.getLocalPort()) {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    HttpUrl url(String path) {
+        return HttpUrl.parse("http://127.0.0.1:" + port() + path);
+    }
+
+    private void acceptConnections() {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                connectionCount.incrementAndGet();
+                sockets.add(socket);
+                Thread handler = new Thread("TestServer connection") {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                };
+                handler.setDaemon(true);
+                handler.start();
+            }
+        } catch (IOException ignored) {
+            // 服务器已关闭
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                String line = reader.readLine();
+                if (line == null) return;
+                while (!line.isEmpty()) {
+                    line = reader.readLine();
+                    if (line == null) return;
+                }
+                int index = requestCount.getAndIncrement();
+                Thread.sleep(delays.delayMillis(index));
+                String body = Integer.toString(index);
+                out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body)
+                        .getBytes("UTF-8"));
+                out.flush();
+            }
+        } catch (IOException | InterruptedException ignored) {
+            // 客户端断开或服务器关闭
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package okhttp3;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.internal.io.FileSystem;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.Okio;
+import okio.Sink;
+import okio.Source;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TlsSessionCacheTest {
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final RecordingFileSystem fileSystem = new RecordingFileSystem();
+
+    private TlsSessionCache newCache(int maxSessions) throws IOException {
+        return new TlsSessionCache(temporaryFolder.getRoot(), maxSessions, fileSystem);
+    }
+
+    private static byte[] session(String name) {
+        return ByteString.encodeUtf8(name).toByteArray();
+    }
+
+    private File snapshot() {
+        return new File(temporaryFolder.getRoot(), TlsSessionCache.SNAPSHOT);
+    }
+
+    private void writeSnapshot(String... lines) throws IOException {
+        BufferedSink sink = Okio.buffer(Okio.sink(snapshot()));
+        for (String line : lines) {
+            sink.writeUtf8(line).writeByte('\n');
+        }
+        sink.close();
+    }
+
+    @Test
+    public void snapshotRoundTripKeepsLruOrder() throws Exception {
+        TlsSessionCache cache = newCache(3);
+        TlsSessionCache.Store store = cache.new Store();
+        store.put("a.test", 443, session("a"));
+        store.put("b.test", 443, session("b"));
+        store.put("c.test", 443, session("c"));
+        store.get("a.test", 443);
+        cache.flush();
+
+        // 读回时b最久未用，容量为2时先被淘汰
+        TlsSessionCache restored = newCache(2);
+        TlsSessionCache.Store restoredStore = restored.new Store();
+        assertEquals(2, restored.size());
+        assertNull(restoredStore.get("b.test", 443));
+        assertArrayEquals(session("a"), restoredStore.get("a.test", 443));
+        assertArrayEquals(session("c"), restoredStore.get("c.test", 443));
+        assertNull(restoredStore.get("a.test", 8443));
+        assertEquals(2, restored.hitCount());
+        assertEquals(2, restored.missCount());
+    }
+
+    @Test
+    public void corruptSnapshotIsDiscarded() throws Exception {
+        writeSnapshot(TlsSessionCache.MAGIC, TlsSessionCache.VERSION, "a.test:443 not-a-number AAAA");
+
+        TlsSessionCache cache = newCache(3);
+        assertEquals(0, cache.size());
+        assertFalse(snapshot().exists());
+
+        // 之后的会话照常保存
+        cache.new Store().put("a.test", 443, session("a"));
+        cache.flush();
+        assertEquals(1, newCache(3).size());
+    }
+
+    @Test
+    public void snapshotWithUnknownHeaderIsDiscarded() throws Exception {
+        writeSnapshot("okhttp3.SomethingElse", TlsSessionCache.VERSION);
+        assertEquals(0, newCache(3).size());
+        assertFalse(snapshot().exists());
+    }
+
+    @Test
+    public void expiredSessionsAreNotLoaded() throws Exception {
+        long now = System.currentTimeMillis();
+        String data = ByteString.encodeUtf8("data").base64();
+        writeSnapshot(TlsSessionCache.MAGIC, TlsSessionCache.VERSION,
+                "old.test:443 " + (now - TlsSessionCache.MAX_AGE_MILLIS - 1000) + " " + data,
+                "new.test:443 " + (now - TlsSessionCache.MAX_AGE_MILLIS + 60000) + " " + data);
+
+        TlsSessionCache cache = newCache(3);
+        TlsSessionCache.Store store = cache.new Store();
+        assertEquals(1, cache.size());
+        assertNull(store.get("old.test", 443));
+        assertArrayEquals(session("data"), store.get("new.test", 443));
+    }
+
+    @Test
+    public void leastRecentlyUsedSessionIsEvicted() throws Exception {
+        TlsSessionCache cache = new TlsSessionCache(2);
+        TlsSessionCache.Store store = cache.new Store();
+        store.put("a.test", 443, session("a"));
+        store.put("b.test", 443, session("b"));
+        store.get("a.test", 443);
+        store.put("c.test", 443, session("c"));
+
+        assertEquals(2, cache.size());
+        assertNull(store.get("b.test", 443));
+        assertArrayEquals(session("a"), store.get("a.test", 443));
+        assertArrayEquals(session("c"), store.get("c.test", 443));
+    }
+
+    @Test
+    public void evictAllClearsMemoryAndDirectory() throws Exception {
+        TlsSessionCache cache = newCache(3);
+        cache.new Store().put("a.test", 443, session("a"));
+        cache.flush();
+        assertTrue(snapshot().exists());
+
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertFalse(snapshot().exists());
+        assertEquals(0, newCache(3).size());
+    }
+
+    @Test
+    public void newSessionsAreSavedOffTimerThreads() throws Exception {
+        TlsSessionCache cache = newCache(3);
+        cache.new Store().put("a.test", 443, session("a"));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!snapshot().exists() && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue(snapshot().exists());
+        assertEquals("OkHttp TlsSessionCache", fileSystem.lastWriteThread);
+    }
+
+    /** The system file system, recording which thread last opened a file for writing. */
+    static final class RecordingFileSystem implements FileSystem {
+        volatile String lastWriteThread;
+
+        @Override
+        public Source source(File file) throws FileNotFoundException {
+            return SYSTEM.source(file);
+        }
+
+        @Override
+        public Sink sink(File file) throws FileNotFoundException {
+            lastWriteThread = Thread.currentThread().getName();
+            return SYSTEM.sink(file);
+        }
+
+        @Override
+        public Sink appendingSink(File file) throws FileNotFoundException {
+            lastWriteThread = Thread.currentThread().getName();
+            return SYSTEM.appendingSink(file);
+        }
+
+        @Override
+        public void delete(File file) throws IOException {
+            SYSTEM.delete(file);
+        }
+
+        @Override
+        public boolean exists(File file) {
+            return SYSTEM.exists(file);
+        }
+
+        @Override
+        public long size(File file) {
+            return SYSTEM.size(file);
+        }
+
+        @Override
+        public void rename(File from, File to) throws IOException {
+            SYSTEM.rename(from, to);
+        }
+
+        @Override
+        public void deleteContents(File directory) throws IOException {
+            SYSTEM.deleteContents(directory);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package okhttp3.internal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+    private final TimerWheel wheel = new TimerWheel("TimerWheelTest", 2);
+
+    /** Returns a task that records {@code name} in {@code log} and counts down {@code latch}. */
+    private static Runnable record(final String name, final List<String> log,
+                                   final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                log.add(name);
+                latch.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void tasksRunInDeadlineOrder() throws Exception {
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(3);
+        wheel.schedule(record("c", log, latch), 300, TimeUnit.MILLISECONDS);
+        wheel.schedule(record("a", log, latch), 100, TimeUnit.MILLISECONDS);
+        wheel.schedule(record("b", log, latch), 200, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a", "b", "c"), log);
+    }
+
+    @Test
+    public void taskNeverRunsEarly() throws Exception {
+        final long[] ranAt = new long[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ranAt[0] = System.nanoTime();
+                latch.countDown();
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(ranAt[0] - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void earlierTaskWakesTickerSleepingOnLaterOne() throws Exception {
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(1);
+        wheel.schedule(record("late", log, new CountDownLatch(1)), 10, TimeUnit.SECONDS);
+        long start = System.nanoTime();
+        wheel.schedule(record("early", log, latch), 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+        assertEquals(Collections.singletonList("early"), log);
+    }
+
+    @Test
+    public void canceledTaskDoesNotRun() throws Exception {
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(1);
+        TimerWheel.Timeout canceled =
+                wheel.schedule(record("canceled", log, latch), 50, TimeUnit.MILLISECONDS);
+        wheel.schedule(record("kept", log, latch), 100, TimeUnit.MILLISECONDS);
+
+        assertTrue(canceled.cancel());
+        assertFalse(canceled.cancel());
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(Collections.singletonList("kept"), log);
+    }
+
+    @Test
+    public void cancelAfterTaskRanReturnsFalse() throws Exception {
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(1);
+        TimerWheel.Timeout timeout =
+                wheel.schedule(record("ran", log, latch), 20, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void nonPositiveDelayRunsImmediately() throws Exception {
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(1);
+        wheel.schedule(record("now", log, latch), 0, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("now"), log);
+    }
+}
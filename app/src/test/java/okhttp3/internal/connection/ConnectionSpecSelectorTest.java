@@ -0,0 +1,98 @@
+package okhttp3.internal.connection;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSocket;
+
+import okhttp3.ConnectionSpec;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.TlsVersion;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionSpecSelectorTest {
+    static {
+        // 确保Internal.instance已经初始化
+        new OkHttpClient();
+    }
+
+    private static final ConnectionSpec PREFERRED = new ConnectionSpec.Builder(
+            ConnectionSpec.MODERN_TLS).tlsVersions(TlsVersion.TLS_1_3).build();
+    private static final ConnectionSpec FALLBACK = new ConnectionSpec.Builder(
+            ConnectionSpec.MODERN_TLS).tlsVersions(TlsVersion.TLS_1_2).build();
+    private static final List<ConnectionSpec> SPECS = Arrays.asList(PREFERRED, FALLBACK);
+    private static final SSLHandshakeException HANDSHAKE_FAILURE =
+            new SSLHandshakeException("handshake_failure");
+
+    private final RouteDatabase routeDatabase = new RouteDatabase();
+    private final HttpUrl url = HttpUrl.parse("https://legacy.test/");
+    private SSLSocket socket;
+
+    @After
+    public void tearDown() throws IOException {
+        if (socket != null) socket.close();
+    }
+
+    private SSLSocket newSocket() throws Exception {
+        if (socket != null) socket.close();
+        socket = (SSLSocket) SSLContext.getDefault().getSocketFactory().createSocket();
+        return socket;
+    }
+
+    @Test
+    public void startsWithPreferredSpecWhenNothingIsRemembered() throws Exception {
+        ConnectionSpecSelector selector = new ConnectionSpecSelector(SPECS, routeDatabase, url);
+        assertEquals(PREFERRED, selector.configureSecureSocket(newSocket()));
+    }
+
+    @Test
+    public void fallbackThatSucceededIsRemembered() throws Exception {
+        ConnectionSpecSelector selector = new ConnectionSpecSelector(SPECS, routeDatabase, url);
+        assertEquals(PREFERRED, selector.configureSecureSocket(newSocket()));
+        assertTrue(selector.connectionFailed(HANDSHAKE_FAILURE));
+        assertEquals(FALLBACK, selector.configureSecureSocket(newSocket()));
+        selector.connectionSucceeded();
+
+        assertEquals(FALLBACK, routeDatabase.fallbackConnectionSpec(url));
+        assertNull(routeDatabase.fallbackConnectionSpec(HttpUrl.parse("https://legacy.test:8443/")));
+
+        // 下一个链接直接使用回退的配置，省去一次失败的握手
+        ConnectionSpecSelector next = new ConnectionSpecSelector(SPECS, routeDatabase, url);
+        assertEquals(FALLBACK, next.configureSecureSocket(newSocket()));
+    }
+
+    @Test
+    public void failedRememberedFallbackNegotiatesFromTheStart() throws Exception {
+        routeDatabase.tlsConnected(url, FALLBACK, true);
+
+        ConnectionSpecSelector selector = new ConnectionSpecSelector(SPECS, routeDatabase, url);
+        assertEquals(FALLBACK, selector.configureSecureSocket(newSocket()));
+        assertTrue(selector.connectionFailed(HANDSHAKE_FAILURE));
+        assertEquals(PREFERRED, selector.configureSecureSocket(newSocket()));
+    }
+
+    @Test
+    public void successWithPreferredSpecForgetsFallback() throws Exception {
+        routeDatabase.tlsConnected(url, FALLBACK, true);
+        routeDatabase.tlsConnected(url, PREFERRED, false);
+
+        assertNull(routeDatabase.fallbackConnectionSpec(url));
+    }
+
+    @Test
+    public void selectorWithoutRouteDatabaseRemembersNothing() throws Exception {
+        ConnectionSpecSelector selector = new ConnectionSpecSelector(SPECS);
+        assertEquals(PREFERRED, selector.configureSecureSocket(newSocket()));
+        selector.connectionSucceeded();
+    }
+}
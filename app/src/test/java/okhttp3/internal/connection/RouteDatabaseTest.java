@@ -0,0 +1,122 @@
+package okhttp3.internal.connection;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import okhttp3.Address;
+import okhttp3.Authenticator;
+import okhttp3.ConnectionSpec;
+import okhttp3.Dns;
+import okhttp3.Protocol;
+import okhttp3.Route;
+
+import static org.junit.Assert.assertEquals;
+
+public class RouteDatabaseTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    static final Address ADDRESS = new Address("example.com", 80, Dns.SYSTEM,
+            SocketFactory.getDefault(), null, null, null, Authenticator.NONE, Proxy.NO_PROXY,
+            Collections.singletonList(Protocol.HTTP_1_1),
+            Collections.singletonList(ConnectionSpec.CLEARTEXT), ProxySelector.getDefault());
+
+    private final RouteDatabase routeDatabase = new RouteDatabase();
+
+    static Route route(String literal) throws Exception {
+        return new Route(ADDRESS, Proxy.NO_PROXY,
+                new InetSocketAddress(InetAddress.getByName(literal), 80));
+    }
+
+    private List<Route> sorted(Route... routes) {
+        List<Route> result = new ArrayList<>(Arrays.asList(routes));
+        routeDatabase.sort(result);
+        return result;
+    }
+
+    @Test
+    public void connectTimeIsMovingAverage() {
+        RouteDatabase.Score score = new RouteDatabase.Score();
+        long now = System.nanoTime();
+        score.update(true, 100 * MS, now);
+        assertEquals(100 * MS, score.connectNanos, 1);
+
+        // 新观测的权重为ALPHA
+        score.update(true, 200 * MS, now);
+        assertEquals((100 + RouteDatabase.ALPHA * 100) * MS, score.connectNanos, 1);
+
+        score.update(false, -1L, now);
+        assertEquals(1.0 - RouteDatabase.ALPHA, score.successRate, 1e-9);
+    }
+
+    @Test
+    public void scoreFadesTowardsUnknownWithHalfLife() {
+        RouteDatabase.Score score = new RouteDatabase.Score();
+        long now = System.nanoTime();
+        score.update(true, 100 * MS, now);
+
+        assertEquals(100 * MS, score.cost(300 * MS, now), 1);
+        assertEquals(200 * MS, score.cost(300 * MS, now + RouteDatabase.HALF_LIFE_NANOS), 1);
+        assertEquals(250 * MS, score.cost(300 * MS, now + 2 * RouteDatabase.HALF_LIFE_NANOS), 1);
+
+        // 很久之后的观测几乎完全取代旧值
+        score.update(true, 300 * MS, now + 20 * RouteDatabase.HALF_LIFE_NANOS);
+        assertEquals(300 * MS, score.connectNanos, MS);
+    }
+
+    @Test
+    public void unknownRouteRanksAsAverage() throws Exception {
+        Route fast = route("10.0.0.1");
+        Route slow = route("10.0.0.2");
+        Route unknown = route("10.0.0.3");
+        routeDatabase.connected(fast, 10 * MS);
+        routeDatabase.connected(slow, 30 * MS);
+
+        assertEquals(Arrays.asList(fast, unknown, slow), sorted(slow, unknown, fast));
+    }
+
+    @Test
+    public void sortKeepsOrderWhenNothingIsKnown() throws Exception {
+        Route a = route("10.0.0.1");
+        Route b = route("10.0.0.2");
+        Route c = route("10.0.0.3");
+        assertEquals(Arrays.asList(c, a, b), sorted(c, a, b));
+    }
+
+    @Test
+    public void failuresRaiseCost() throws Exception {
+        Route reliable = route("10.0.0.1");
+        Route failing = route("10.0.0.2");
+        routeDatabase.connected(failing, 10 * MS);
+        routeDatabase.failed(failing);
+        routeDatabase.failed(failing);
+        routeDatabase.connected(reliable, 20 * MS);
+
+        assertEquals(Arrays.asList(reliable, failing), sorted(failing, reliable));
+    }
+
+    @Test
+    public void outpacedRouteIsAtLeastAsSlowAsWinner() throws Exception {
+        Route winner = route("10.0.0.1");
+        Route loser = route("10.0.0.2");
+        routeDatabase.connected(winner, 10 * MS);
+        routeDatabase.outpaced(loser, 50 * MS);
+        assertEquals(Arrays.asList(winner, loser), sorted(loser, winner));
+
+        // 已知比这更慢的路由不会因为被超过而变快
+        Route known = route("10.0.0.3");
+        routeDatabase.connected(known, 100 * MS);
+        routeDatabase.outpaced(known, 20 * MS);
+        assertEquals(Arrays.asList(winner, loser, known), sorted(known, loser, winner));
+    }
+}
@@ -0,0 +1,75 @@
+package okhttp3.internal.connection;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Address;
+import okhttp3.Dns;
+import okhttp3.EventListener;
+import okhttp3.Route;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class RouteSelectorTest {
+    private static InetAddress address(String literal) throws Exception {
+        return InetAddress.getByName(literal);
+    }
+
+    @Test
+    public void interleaveFamiliesAlternatesStartingWithFirstFamily() throws Exception {
+        InetAddress v6a = address("::1");
+        InetAddress v6b = address("::2");
+        InetAddress v6c = address("::3");
+        InetAddress v4a = address("10.0.0.1");
+        InetAddress v4b = address("10.0.0.2");
+
+        assertEquals(Arrays.asList(v6a, v4a, v6b, v4b, v6c),
+                RouteSelector.interleaveFamilies(Arrays.asList(v6a, v6b, v6c, v4a, v4b)));
+        assertEquals(Arrays.asList(v4a, v6a, v4b, v6b, v6c),
+                RouteSelector.interleaveFamilies(Arrays.asList(v4a, v4b, v6a, v6b, v6c)));
+    }
+
+    @Test
+    public void interleaveFamiliesKeepsSingleFamilyAsIs() throws Exception {
+        List<InetAddress> addresses = Arrays.asList(address("10.0.0.1"), address("10.0.0.2"));
+        assertSame(addresses, RouteSelector.interleaveFamilies(addresses));
+    }
+
+    @Test
+    public void sortedRoutesStillAlternateFamilies() throws Exception {
+        final InetAddress v6a = address("::1");
+        final InetAddress v6b = address("::2");
+        final InetAddress v4a = address("10.0.0.1");
+        final InetAddress v4b = address("10.0.0.2");
+        Address base = RouteDatabaseTest.ADDRESS;
+        Address address = new Address("example.com", 80, new Dns() {
+            @Override
+            public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+                return Arrays.asList(v6a, v6b, v4a, v4b);
+            }
+        }, base.socketFactory(), null, null, null, base.proxyAuthenticator(), base.proxy(),
+                base.protocols(), base.connectionSpecs(), base.proxySelector());
+
+        // v6b最快、v6a最慢，未测量过的IPv4地址按平均水平排在中间
+        RouteDatabase routeDatabase = new RouteDatabase();
+        routeDatabase.connected(new Route(address, base.proxy(),
+                new InetSocketAddress(v6a, 80)), TimeUnit.MILLISECONDS.toNanos(100));
+        routeDatabase.connected(new Route(address, base.proxy(),
+                new InetSocketAddress(v6b, 80)), TimeUnit.MILLISECONDS.toNanos(10));
+
+        RouteSelector selector = new RouteSelector(address, routeDatabase, null, EventListener.NONE);
+        List<InetAddress> order = new ArrayList<>();
+        for (Route route : selector.nextRoutes(4)) {
+            order.add(route.socketAddress().getAddress());
+        }
+        assertEquals(Arrays.asList(v6b, v4a, v6a, v4b), order);
+    }
+}
@@ -0,0 +1,200 @@
+package okhttp3.internal.tls;
+
+import org.junit.Test;
+
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+import okhttp3.CertificatePinner;
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class VerifiedChainCacheTest {
+    /** A CA that the cleaner trusts. */
+    private static final String ROOT = ""
+            + "-----BEGIN CERTIFICATE-----\n"
+            + "MIIBSDCB76ADAgECAgkA9+72IcWwjmwwCgYIKoZIzj0EAwIwDzENMAsGA1UEAxME\n"
+            + "cm9vdDAgFw0yNjEwMTcwMDM4MzFaGA8yMTI2MDkyMzAwMzgzMVowDzENMAsGA1UE\n"
+            + "AxMEcm9vdDBZMBMGByqGSM49AgEGCCqGSM49AwEHA0IABJIEJNlxHAnbN8wjD1fi\n"
+            + "fruhpOlx8mZI8P0IHzw6JvSLDNAtmoa4fWMHgFIMR0DldwlRIBIZGo3/0DvpmZX7\n"
+            + "F6+jMjAwMB0GA1UdDgQWBBTiSa2jM+2G3iVeLGO5CrSqsOfX2zAPBgNVHRMBAf8E\n"
+            + "BTADAQH/MAoGCCqGSM49BAMCA0gAMEUCIQCVnXCBE4jt2WMVBnavp0jwj4vq7QM0\n"
+            + "IQ52jTa8W+pb4AIgdrzBXgPIywhR8X3+p1Ri+6rM1/2NQuOlpBO2Ht7Ai3k=\n"
+            + "-----END CERTIFICATE-----\n";
+
+    /** A CA that isn't trusted. */
+    private static final String OTHER_ROOT = ""
+            + "-----BEGIN CERTIFICATE-----\n"
+            + "MIIBSDCB8KADAgECAghs+/nvsLerTjAKBggqhkjOPQQDAjAQMQ4wDAYDVQQDEwVv\n"
+            + "dGhlcjAgFw0yNjEwMTcwMDM4MzNaGA8yMTI2MDkyMzAwMzgzM1owEDEOMAwGA1UE\n"
+            + "AxMFb3RoZXIwWTATBgcqhkjOPQIBBggqhkjOPQMBBwNCAATSEPIvIWV6ws6AQdjH\n"
+            + "28739TpxXTFZNh1zOqFMIaPlfiTHTL0hXjbAysBfjb7VYopQkYFYTnNh4oPit3gH\n"
+            + "X0uLozIwMDAdBgNVHQ4EFgQUSS66dV1KhZ6S7/1Y4pUQCtGdta8wDwYDVR0TAQH/\n"
+            + "BAUwAwEB/zAKBggqhkjOPQQDAgNHADBEAiAKx0t3MKKaxhVkIvDSQ31noY7LPSbO\n"
+            + "DyuOiv+nYCweEwIgRc3p6ELNvzseP1qwDT5yzw868gg4gMDxybSUk7lVvMU=\n"
+            + "-----END CERTIFICATE-----\n";
+
+    /** Two leaf certificates for a.test with different keys, issued by {@link #ROOT}. */
+    private static final String LEAF1 = ""
+            + "-----BEGIN CERTIFICATE-----\n"
+            + "MIIBbDCCARKgAwIBAgIIL20RbtLSohYwCgYIKoZIzj0EAwIwDzENMAsGA1UEAxME\n"
+            + "cm9vdDAgFw0yNjEwMTcwMDM4NDVaGA8yMTI2MDkyMzAwMzg0NVowEDEOMAwGA1UE\n"
+            + "AxMFbGVhZjEwWTATBgcqhkjOPQIBBggqhkjOPQMBBwNCAAROF3F6UHj6bqu1QC6U\n"
+            + "kS83wJlORiqM8eaoYkEbuDodDFMwDMZ0uuVzafUkkS1EiHQFSMERjkQrg6iEAvqs\n"
+            + "jUAXo1UwUzAdBgNVHQ4EFgQUn7yDKZP8nEht2GYYBdeehoXIazswEQYDVR0RBAow\n"
+            + "CIIGYS50ZXN0MB8GA1UdIwQYMBaAFOJJraMz7YbeJV4sY7kKtKqw59fbMAoGCCqG\n"
+            + "SM49BAMCA0gAMEUCIQCFHJyIolDJHdVyR3RiwKu0o58xw9d2NuCifNqwh7JcEwIg\n"
+            + "O5R6k1921y4bijkQ7VsT7WzXgiPp3jw2CyDr0ng8TKI=\n"
+            + "-----END CERTIFICATE-----\n";
+
+    private static final String LEAF2 = ""
+            + "-----BEGIN CERTIFICATE-----\n"
+            + "MIIBbDCCAROgAwIBAgIJAMhH9z56KJsOMAoGCCqGSM49BAMCMA8xDTALBgNVBAMT\n"
+            + "BHJvb3QwIBcNMjYxMDE3MDAzODQ4WhgPMjEyNjA5MjMwMDM4NDhaMBAxDjAMBgNV\n"
+            + "BAMTBWxlYWYyMFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAE1S/AnUQXLQmPEdGv\n"
+            + "yylv8lEEzVjkxLlalFUkNChBmUZu0FfZltbFeYlCsMmN57gEZZ+fSuMw2rg60BeB\n"
+            + "yssUW6NVMFMwHQYDVR0OBBYEFNcwr155WOMKupAjZUeEQVfkwGaCMBEGA1UdEQQK\n"
+            + "MAiCBmEudGVzdDAfBgNVHSMEGDAWgBTiSa2jM+2G3iVeLGO5CrSqsOfX2zAKBggq\n"
+            + "hkjOPQQDAgNHADBEAiA2PjXUrt0EHYgZpY8RDJQNq/ot/oPArLKl/U5cqCEHNwIg\n"
+            + "QRixogMAPWoPxETlHOBc6y9JPnYmB8r9cAuAD9OTKQM=\n"
+            + "-----END CERTIFICATE-----\n";
+
+    /** A leaf certificate for a.test issued by {@link #OTHER_ROOT}. */
+    private static final String UNTRUSTED_LEAF = ""
+            + "-----BEGIN CERTIFICATE-----\n"
+            + "MIIBbTCCARSgAwIBAgIJAMjDYFp7/gWCMAoGCCqGSM49BAMCMBAxDjAMBgNVBAMT\n"
+            + "BW90aGVyMCAXDTI2MTAxNzAwMzg1MloYDzIxMjYwOTIzMDAzODUyWjAQMQ4wDAYD\n"
+            + "VQQDEwVsZWFmMzBZMBMGByqGSM49AgEGCCqGSM49AwEHA0IABC9xS8TEiTmjC3sn\n"
+            + "BR/RMVUVnVAjJVhn1Gwe/f0dgU0YVNwUTn92CQbNuJAW0brXudYkR4D8O7E2CGX4\n"
+            + "7BYWoS+jVTBTMB0GA1UdDgQWBBQITglfqPNqO1eqQMPkCDqdziDm9jARBgNVHREE\n"
+            + "CjAIggZhLnRlc3QwHwYDVR0jBBgwFoAUSS66dV1KhZ6S7/1Y4pUQCtGdta8wCgYI\n"
+            + "KoZIzj0EAwIDRwAwRAIfEQ313vvecZsgPZLGUtDM3ED7yKP3fKfKGNox9Y7T+gIh\n"
+            + "AKrePbgIcOvak1TF9EL6ozbCntb4n2RkoWh5DRGGguV7\n"
+            + "-----END CERTIFICATE-----\n";
+
+    private final X509Certificate root = certificate(ROOT);
+    private final X509Certificate otherRoot = certificate(OTHER_ROOT);
+    private final X509Certificate leaf1 = certificate(LEAF1);
+    private final X509Certificate leaf2 = certificate(LEAF2);
+    private final X509Certificate untrustedLeaf = certificate(UNTRUSTED_LEAF);
+
+    private static X509Certificate certificate(String pem) {
+        try {
+            return (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new Buffer().writeUtf8(pem).inputStream());
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static List<Certificate> chain(Certificate... certificates) {
+        return new ArrayList<>(Arrays.asList(certificates));
+    }
+
+    @Test
+    public void keyIsHostnameAndEqualChain() {
+        VerifiedChainCache<String> cache = new VerifiedChainCache<>();
+        List<Certificate> chain = chain(leaf1, root);
+        cache.put("a.test", chain, "result");
+
+        assertEquals("result", cache.get("a.test", chain(leaf1, root)));
+        assertNull(cache.get("b.test", chain));
+        assertNull(cache.get(null, chain));
+        assertNull(cache.get("a.test", chain(leaf2, root)));
+        assertNull(cache.get("a.test", chain(leaf1)));
+
+        // 缓存持有自己的副本
+        chain.set(0, leaf2);
+        assertEquals("result", cache.get("a.test", chain(leaf1, root)));
+        assertNull(cache.get("a.test", chain));
+    }
+
+    @Test
+    public void leastRecentlyUsedResultIsEvicted() {
+        VerifiedChainCache<String> cache = new VerifiedChainCache<>(2);
+        cache.put("a.test", chain(leaf1), "1");
+        cache.put("a.test", chain(leaf2), "2");
+        cache.get("a.test", chain(leaf1));
+        cache.put("a.test", chain(root), "3");
+
+        assertEquals("1", cache.get("a.test", chain(leaf1)));
+        assertNull(cache.get("a.test", chain(leaf2)));
+        assertEquals("3", cache.get("a.test", chain(root)));
+    }
+
+    @Test
+    public void hostnameVerifierChecksEachHostname() {
+        OkHostnameVerifier verifier = OkHostnameVerifier.INSTANCE;
+        assertTrue(verifier.verify("a.test", leaf1));
+        assertTrue(verifier.verify("a.test", leaf1));
+        // 同一证书换一个主机名不会命中缓存
+        assertFalse(verifier.verify("b.test", leaf1));
+        assertFalse(verifier.verify("b.test", leaf1));
+        assertTrue(verifier.verify("a.test", leaf2));
+    }
+
+    @Test
+    public void pinnerCachesOnlySuccessForSameHostnameAndChain() throws Exception {
+        CertificatePinner pinner = new CertificatePinner.Builder()
+                .add("a.test", CertificatePinner.pin(leaf1))
+                .add("b.test", CertificatePinner.pin(leaf2))
+                .build();
+
+        pinner.check("a.test", chain(leaf1, root));
+        pinner.check("a.test", chain(leaf1, root));
+        assertPinFailure(pinner, "a.test", chain(leaf2, root));
+        assertPinFailure(pinner, "b.test", chain(leaf1, root));
+
+        // 失败不会被缓存
+        assertPinFailure(pinner, "a.test", chain(leaf2, root));
+        pinner.check("b.test", chain(leaf2, root));
+    }
+
+    private static void assertPinFailure(CertificatePinner pinner, String hostname,
+                                         List<Certificate> chain) {
+        try {
+            pinner.check(hostname, chain);
+            fail();
+        } catch (SSLPeerUnverifiedException expected) {
+        }
+    }
+
+    @Test
+    public void cachedCleanedChainEqualsFreshClean() throws Exception {
+        CertificateChainCleaner cleaner = CertificateChainCleaner.get(root);
+        List<Certificate> cleaned = cleaner.clean(chain(leaf1, root), "a.test");
+        assertEquals(Arrays.<Certificate>asList(leaf1, root), cleaned);
+        assertSame(cleaned, cleaner.clean(chain(leaf1, root), "b.test"));
+        assertEquals(CertificateChainCleaner.get(root).clean(chain(leaf1, root), "a.test"), cleaned);
+
+        // 不同的证书链各自清理，顺序混乱的链也会被整理
+        assertEquals(Arrays.<Certificate>asList(leaf2, root),
+                cleaner.clean(chain(leaf2, otherRoot, root), "a.test"));
+        assertNotEquals(cleaned, cleaner.clean(chain(leaf2, root), "a.test"));
+    }
+
+    @Test
+    public void cleanerDoesNotCacheFailures() throws Exception {
+        CertificateChainCleaner cleaner = CertificateChainCleaner.get(root);
+        for (int i = 0; i < 2; i++) {
+            try {
+                cleaner.clean(chain(untrustedLeaf, otherRoot), "a.test");
+                fail();
+            } catch (SSLPeerUnverifiedException expected) {
+            }
+        }
+    }
+}
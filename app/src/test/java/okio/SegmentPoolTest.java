@@ -0,0 +1,144 @@
+package okio;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class SegmentPoolTest {
+    private long originalMaxSize;
+
+    @Before
+    public void setUp() {
+        originalMaxSize = SegmentPool.maxSize();
+        drainCurrentBucket();
+    }
+
+    @After
+    public void tearDown() {
+        SegmentPool.setMaxSize(originalMaxSize);
+    }
+
+    /** Empties the current thread's bucket, so segments taken later are the test's own or new. */
+    private static void drainCurrentBucket() {
+        long segments = SegmentPool.maxSize() / SegmentPool.HASH_BUCKET_COUNT / Segment.SIZE + 1;
+        for (long i = 0; i < segments; i++) {
+            SegmentPool.take();
+        }
+    }
+
+    private static List<Segment> recycleNew(int count) {
+        List<Segment> result = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Segment segment = new Segment();
+            result.add(segment);
+            SegmentPool.recycle(segment);
+        }
+        return result;
+    }
+
+    @Test
+    public void bucketCountIsCoresRoundedUpToPowerOfTwo() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int buckets = SegmentPool.HASH_BUCKET_COUNT;
+        assertEquals(buckets, Integer.highestOneBit(buckets));
+        assertTrue(buckets >= cores);
+        assertTrue(buckets < cores * 2);
+    }
+
+    @Test
+    public void takeReturnsMostRecentlyRecycledSegment() {
+        List<Segment> recycled = recycleNew(2);
+        Segment taken = SegmentPool.take();
+        assertSame(recycled.get(1), taken);
+        assertEquals(0, taken.limit);
+        assertEquals(null, taken.next);
+        assertSame(recycled.get(0), SegmentPool.take());
+    }
+
+    @Test
+    public void threadInAnotherBucketDoesNotSeeRecycledSegment() throws Exception {
+        assumeTrue(SegmentPool.HASH_BUCKET_COUNT > 1);
+        final Segment recycled = recycleNew(1).get(0);
+
+        // 线程ID是连续分配的，找一个落在其他桶里的线程
+        final long bucketMask = SegmentPool.HASH_BUCKET_COUNT - 1;
+        final long ownBucket = Thread.currentThread().getId() & bucketMask;
+        final AtomicReference<Segment> taken = new AtomicReference<>();
+        Thread other;
+        do {
+            other = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    if ((Thread.currentThread().getId() & bucketMask) != ownBucket) {
+                        taken.set(SegmentPool.take());
+                    }
+                }
+            });
+            other.start();
+            other.join();
+        } while (taken.get() == null);
+
+        assertNotSame(recycled, taken.get());
+        assertSame(recycled, SegmentPool.take());
+    }
+
+    @Test
+    public void eachBucketKeepsItsShareOfMaxSize() {
+        SegmentPool.setMaxSize(2L * Segment.SIZE * SegmentPool.HASH_BUCKET_COUNT);
+        List<Segment> recycled = recycleNew(3);
+
+        // 第三个超出了本桶的预算，被丢弃
+        assertSame(recycled.get(1), SegmentPool.take());
+        assertSame(recycled.get(0), SegmentPool.take());
+        Segment third = SegmentPool.take();
+        assertNotSame(recycled.get(2), third);
+    }
+
+    @Test
+    public void setMaxSizeSplitsBudgetBetweenBuckets() {
+        int buckets = SegmentPool.HASH_BUCKET_COUNT;
+        long maxSize = 4L * Segment.SIZE * buckets + buckets - 1;
+        SegmentPool.setMaxSize(maxSize);
+        assertEquals(4L * Segment.SIZE * buckets, SegmentPool.maxSize());
+
+        SegmentPool.setMaxSize(0);
+        assertEquals(0, SegmentPool.maxSize());
+        Segment recycled = recycleNew(1).get(0);
+        assertNotSame(recycled, SegmentPool.take());
+
+        try {
+            SegmentPool.setMaxSize(-1);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void loweredMaxSizeReleasesPooledSegmentsAsTaken() {
+        List<Segment> recycled = recycleNew(2);
+        SegmentPool.setMaxSize(0);
+        assertSame(recycled.get(1), SegmentPool.take());
+        SegmentPool.recycle(recycled.get(1));
+        assertSame(recycled.get(0), SegmentPool.take());
+        assertNotSame(recycled.get(1), SegmentPool.take());
+    }
+
+    @Test
+    public void sharedSegmentIsNotRecycled() {
+        Segment segment = new Segment();
+        new Segment(segment);
+        SegmentPool.recycle(segment);
+        assertNotSame(segment, SegmentPool.take());
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import okhttp3.Cache;
+import okhttp3.ConnectionPool;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.internal.io.FileSystem;
+import okio.Buffer;
+import okio.ByteString;
+import okio.Okio;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures a complete {@code RealCall.execute()} through the interceptor chain against a
+ * {@link LoopbackServer}:
+ *
+ * <ul>
+ *   <li>{@code http1}: {@code BridgeInterceptor}, {@code ConnectInterceptor} with a pooled
+ *       connection, and {@code Http1Codec} framing.
+ *   <li>{@code h2}: the same over TLS with {@code Http2Codec} streams multiplexed on one
+ *       connection.
+ *   <li>{@code cached}: {@code CacheInterceptor} serving a fresh response from the
+ *       {@link Cache} without touching the network.
+ * </ul>
+ *
+ * <p>Run {@link #main} to measure requests/sec, p50/p99 latency and bytes allocated per call (from
+ * {@link GCProfiler}) at several concurrency levels; each JMH thread issues calls back to back.
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CallBenchmark {
+  /** Number of concurrent callers used by {@link #main}. */
+  static final int[] CONCURRENCY = {1, 16, 64};
+
+  @Param({"http1", "h2", "cached"})
+  String protocol;
+
+  @Param({"128", "65536"})
+  int bodySize;
+
+  LoopbackServer server;
+  OkHttpClient client;
+  HttpUrl url;
+  File cacheDirectory;
+
+  @Setup
+  public void setup() throws IOException, GeneralSecurityException {
+    boolean cached = protocol.equals("cached");
+    Headers headers = cached
+        ? Headers.of("Cache-Control", "max-age=3600")
+        : Headers.of("Cache-Control", "no-store");
+    server = LoopbackServer.start(newBody(bodySize), headers, protocol.equals("h2"));
+    url = server.url("/");
+
+    // Keep a connection per caller so the pool doesn't evict connections between calls.
+    OkHttpClient.Builder builder = new OkHttpClient.Builder()
+        .connectionPool(new ConnectionPool(128, 5, TimeUnit.MINUTES));
+    if (protocol.equals("h2")) {
+      builder.sslSocketFactory(server.clientSocketFactory(), server.trustManager());
+    }
+    if (cached) {
+      cacheDirectory = File.createTempFile("CallBenchmark", ".cache");
+      cacheDirectory.delete();
+      builder.cache(new Cache(cacheDirectory, 16 * 1024 * 1024));
+    }
+    client = builder.build();
+
+    // Prime the connection pool or the cache.
+    Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+    response.body().source().readAll(Okio.blackhole());
+    response.close();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    client.dispatcher().executorService().shutdown();
+    client.connectionPool().evictAll();
+    if (client.cache() != null) {
+      client.cache().close();
+      FileSystem.SYSTEM.deleteContents(cacheDirectory);
+      cacheDirectory.delete();
+    }
+    server.close();
+  }
+
+  @Benchmark
+  public long execute() throws IOException {
+    Request request = new Request.Builder().url(url).build();
+    Response response = client.newCall(request).execute();
+    try {
+      if (!response.isSuccessful()) throw new IOException("Unexpected code " + response);
+      if (protocol.equals("cached") && response.networkResponse() != null) {
+        throw new IOException("Expected a cached response: " + response);
+      }
+      return response.body().source().readAll(Okio.blackhole());
+    } finally {
+      response.close();
+    }
+  }
+
+  private static ByteString newBody(int size) {
+    Buffer buffer = new Buffer();
+    for (int i = 0; i < size; i++) {
+      buffer.writeByte('a' + i % 26);
+    }
+    return buffer.readByteString();
+  }
+
+  /**
+   * Runs this benchmark once for throughput and once for sampled latency at each concurrency level
+   * in {@link #CONCURRENCY}, writing JSON reports to the directory in {@code args[0]}.
+   */
+  public static void main(String[] args) throws RunnerException {
+    File reportDirectory = new File(args.length > 0 ? args[0] : ".");
+    reportDirectory.mkdirs();
+    for (int threads : CONCURRENCY) {
+      run(threads, Mode.Throughput, TimeUnit.SECONDS, reportDirectory);
+      run(threads, Mode.SampleTime, TimeUnit.MICROSECONDS, reportDirectory);
+    }
+  }
+
+  private static void run(int threads, Mode mode, TimeUnit timeUnit, File reportDirectory)
+      throws RunnerException {
+    File report = new File(reportDirectory,
+        "CallBenchmark-" + mode.shortLabel() + "-" + threads + "threads.json");
+    Options options = new OptionsBuilder()
+        .include(CallBenchmark.class.getName())
+        .threads(threads)
+        .mode(mode)
+        .timeUnit(timeUnit)
+        .addProfiler(GCProfiler.class)
+        .resultFormat(ResultFormatType.JSON)
+        .result(report.getPath())
+        .build();
+    new Runner(options).run();
+  }
+}
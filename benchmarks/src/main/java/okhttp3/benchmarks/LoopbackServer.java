@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okhttp3.benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import javax.security.auth.x500.X500Principal;
+import okhttp3.Headers;
+import okhttp3.HttpUrl;
+import okhttp3.Protocol;
+import okhttp3.internal.Util;
+import okhttp3.internal.http2.Header;
+import okhttp3.internal.http2.Http2Connection;
+import okhttp3.internal.http2.Http2Stream;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+import org.bouncycastle.x509.X509V3CertificateGenerator;
+
+/**
+ * A minimal in-process HTTP server bound to the loopback interface. Every request gets the same
+ * canned response, so benchmarks measure the client rather than the server.
+ *
+ * <p>With TLS enabled the server negotiates HTTP/2 or HTTP/1.1 with ALPN, which needs the JDK 9
+ * {@link SSLParameters#setApplicationProtocols} API. OkHttp 3.5 cannot speak cleartext HTTP/2
+ * (h2c), so HTTP/2 is always measured over TLS.
+ */
+final class LoopbackServer implements Closeable {
+  private final ServerSocket serverSocket;
+  private final ExecutorService executor = Executors.newCachedThreadPool(
+      Util.threadFactory("LoopbackServer", true));
+  private final List<Socket> openSockets = new ArrayList<>();
+  private final ByteString body;
+  private final Headers headers;
+  private final SSLContext sslContext;
+  private final X509TrustManager trustManager;
+
+  private LoopbackServer(ByteString body, Headers headers, boolean tls)
+      throws IOException, GeneralSecurityException {
+    this.body = body;
+    this.headers = headers;
+    if (tls) {
+      KeyStore keyStore = newSelfSignedKeyStore();
+      KeyManagerFactory keyManagerFactory =
+          KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      keyManagerFactory.init(keyStore, new char[0]);
+      TrustManagerFactory trustManagerFactory =
+          TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      trustManagerFactory.init(keyStore);
+      TrustManager[] trustManagers = trustManagerFactory.getTrustManagers();
+      this.trustManager = (X509TrustManager) trustManagers[0];
+      this.sslContext = SSLContext.getInstance("TLS");
+      this.sslContext.init(keyManagerFactory.getKeyManagers(), trustManagers, null);
+
+      SSLServerSocket sslServerSocket = (SSLServerSocket) sslContext.getServerSocketFactory()
+          .createServerSocket(0, 128, InetAddress.getLoopbackAddress());
+      SSLParameters parameters = sslServerSocket.getSSLParameters();
+      parameters.setApplicationProtocols(new String[] {
+          Protocol.HTTP_2.toString(), Protocol.HTTP_1_1.toString()});
+      sslServerSocket.setSSLParameters(parameters);
+      this.serverSocket = sslServerSocket;
+    } else {
+      this.sslContext = null;
+      this.trustManager = null;
+      this.serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+    }
+  }
+
+  /** Starts a server that answers every request with {@code body} and {@code headers}. */
+  static LoopbackServer start(ByteString body, Headers headers, boolean tls)
+      throws IOException, GeneralSecurityException {
+    final LoopbackServer server = new LoopbackServer(body, headers, tls);
+    server.executor.execute(new Runnable() {
+      @Override public void run() {
+        server.acceptConnections();
+      }
+    });
+    return server;
+  }
+
+  HttpUrl url(String path) {
+    return new HttpUrl.Builder()
+        .scheme(sslContext != null ? "https" : "http")
+        .host("localhost")
+        .port(serverSocket.getLocalPort())
+        .encodedPath(path)
+        .build();
+  }
+
+  SSLSocketFactory clientSocketFactory() {
+    return sslContext.getSocketFactory();
+  }
+
+  X509TrustManager trustManager() {
+    return trustManager;
+  }
+
+  private void acceptConnections() {
+    while (true) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+        socket.setTcpNoDelay(true);
+      } catch (IOException e) {
+        return; // Server socket closed.
+      }
+      synchronized (openSockets) {
+        openSockets.add(socket);
+      }
+      executor.execute(new Runnable() {
+        @Override public void run() {
+          boolean handedOff = false;
+          try {
+            handedOff = serveConnection(socket);
+          } catch (IOException ignored) {
+            // The client went away.
+          } finally {
+            if (!handedOff) {
+              Util.closeQuietly(socket);
+              synchronized (openSockets) {
+                openSockets.remove(socket);
+              }
+            }
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Serves requests on {@code socket}. Returns true if the socket was handed off to an HTTP/2
+   * connection, which reads frames on its own thread and closes the socket when the peer does.
+   */
+  private boolean serveConnection(Socket socket) throws IOException {
+    if (socket instanceof SSLSocket) {
+      SSLSocket sslSocket = (SSLSocket) socket;
+      sslSocket.startHandshake();
+      if (Protocol.HTTP_2.toString().equals(sslSocket.getApplicationProtocol())) {
+        serveHttp2(sslSocket);
+        return true;
+      }
+    }
+    serveHttp1(socket);
+    return false;
+  }
+
+  private void serveHttp1(Socket socket) throws IOException {
+    BufferedSource source = Okio.buffer(Okio.source(socket));
+    BufferedSink sink = Okio.buffer(Okio.sink(socket));
+    while (!source.exhausted()) {
+      source.readUtf8LineStrict(); // Request line.
+      long contentLength = 0;
+      for (String line; !(line = source.readUtf8LineStrict()).isEmpty(); ) {
+        int colon = line.indexOf(':');
+        if (line.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+          contentLength = Long.parseLong(line.substring(colon + 1).trim());
+        }
+      }
+      source.skip(contentLength);
+
+      sink.writeUtf8("HTTP/1.1 200 OK\r\n");
+      for (int i = 0, size = headers.size(); i < size; i++) {
+        sink.writeUtf8(headers.name(i)).writeUtf8(": ").writeUtf8(headers.value(i))
+            .writeUtf8("\r\n");
+      }
+      sink.writeUtf8("Content-Length: ").writeDecimalLong(body.size()).writeUtf8("\r\n\r\n");
+      sink.write(body);
+      sink.flush();
+    }
+  }
+
+  private void serveHttp2(SSLSocket socket) throws IOException {
+    Http2Connection connection = new Http2Connection.Builder(false)
+        .socket(socket)
+        .listener(new Http2Connection.Listener() {
+          @Override public void onStream(Http2Stream stream) throws IOException {
+            List<Header> responseHeaders = new ArrayList<>();
+            responseHeaders.add(new Header(Header.RESPONSE_STATUS, "200"));
+            for (int i = 0, size = headers.size(); i < size; i++) {
+              responseHeaders.add(new Header(headers.name(i).toLowerCase(), headers.value(i)));
+            }
+            responseHeaders.add(new Header("content-length", Long.toString(body.size())));
+            stream.reply(responseHeaders, true);
+            BufferedSink sink = Okio.buffer(stream.getSink());
+            sink.write(body);
+            sink.close();
+          }
+        })
+        .build();
+    connection.start();
+  }
+
+  @Override public void close() throws IOException {
+    serverSocket.close();
+    synchronized (openSockets) {
+      for (Socket socket : openSockets) {
+        Util.closeQuietly(socket);
+      }
+    }
+    executor.shutdownNow();
+  }
+
+  /** Returns a key store holding a freshly generated self-signed certificate for localhost. */
+  private static KeyStore newSelfSignedKeyStore() throws IOException, GeneralSecurityException {
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+    keyPairGenerator.initialize(2048, new SecureRandom());
+    KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+    X500Principal subject = new X500Principal("CN=localhost");
+    X509V3CertificateGenerator generator = new X509V3CertificateGenerator();
+    generator.setSerialNumber(BigInteger.ONE);
+    generator.setIssuerDN(subject);
+    generator.setSubjectDN(subject);
+    generator.setNotBefore(new Date(System.currentTimeMillis() - 60 * 1000L));
+    generator.setNotAfter(new Date(System.currentTimeMillis() + 24 * 60 * 60 * 1000L));
+    generator.setPublicKey(keyPair.getPublic());
+    generator.setSignatureAlgorithm("SHA256WithRSA");
+    X509Certificate certificate = generator.generate(keyPair.getPrivate());
+
+    KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+    keyStore.load(null, null);
+    keyStore.setKeyEntry("private", keyPair.getPrivate(), new char[0],
+        new Certificate[] {certificate});
+    keyStore.setCertificateEntry("cert", certificate);
+    return keyStore;
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okio.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import okio.Buffer;
+import okio.ByteString;
+import okio.Options;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the {@link Buffer} operations that every HTTP exchange goes through: scanning for
+ * delimiters, reading header lines, encoding UTF-8 and matching {@link Options}.
+ *
+ * <p>Benchmarks that consume their input first copy it out of {@link #source}; copies of whole
+ * segments share the underlying byte arrays, so this adds little beyond the measured operation.
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BufferBenchmark {
+  private static final ByteString NEEDLE = ByteString.encodeUtf8("\r\n\r\n");
+
+  private static final Options HTTP_METHODS = Options.of(
+      ByteString.encodeUtf8("GET "),
+      ByteString.encodeUtf8("HEAD "),
+      ByteString.encodeUtf8("POST "),
+      ByteString.encodeUtf8("PUT "),
+      ByteString.encodeUtf8("PATCH "),
+      ByteString.encodeUtf8("DELETE "));
+
+  private static final ByteString REQUEST_LINE =
+      ByteString.encodeUtf8("DELETE /index.html HTTP/1.1\r\n");
+
+  /** Number of bytes scanned or encoded per operation. */
+  @Param({"128", "8192", "131072"})
+  int size;
+
+  /** Whether the text contains only ASCII, or a mix of 1-, 2- and 3-byte UTF-8 sequences. */
+  @Param({"ascii", "utf8"})
+  String encoding;
+
+  /** {@code size} filler bytes followed by {@link #NEEDLE}. */
+  final Buffer haystack = new Buffer();
+
+  /** Header-like lines terminated by {@code \n}, about {@code size} bytes in total. */
+  final Buffer source = new Buffer();
+
+  final Buffer scratch = new Buffer();
+
+  String text;
+
+  @Setup
+  public void setup() {
+    StringBuilder builder = new StringBuilder(size);
+    String alphabet = encoding.equals("ascii")
+        ? "abcdefghijklmnopqrstuvwxyz0123456789"
+        : "abcdéfghijklmnöpqrstuvwxyz€中0123456789";
+    for (int i = 0; builder.length() < size; i++) {
+      builder.append(alphabet.charAt(i % alphabet.length()));
+    }
+    text = builder.toString();
+
+    haystack.clear();
+    for (int i = 0; i < size; i++) {
+      haystack.writeByte('a');
+    }
+    haystack.write(NEEDLE);
+
+    source.clear();
+    while (source.size() < size) {
+      source.writeUtf8("X-Header-").writeUtf8(Long.toString(source.size()))
+          .writeUtf8(": ").writeUtf8(text, 0, Math.min(text.length(), 64)).writeByte('\n');
+    }
+  }
+
+  @Benchmark
+  public long indexOfByte() {
+    return haystack.indexOf((byte) '\r');
+  }
+
+  @Benchmark
+  public long indexOfByteString() throws IOException {
+    return haystack.indexOf(NEEDLE);
+  }
+
+  @Benchmark
+  public void readUtf8Line(Blackhole blackhole) throws IOException {
+    source.copyTo(scratch, 0, source.size());
+    for (String line; (line = scratch.readUtf8Line()) != null; ) {
+      blackhole.consume(line);
+    }
+  }
+
+  @Benchmark
+  public long writeUtf8() {
+    scratch.writeUtf8(text);
+    long result = scratch.size();
+    scratch.clear();
+    return result;
+  }
+
+  @Benchmark
+  public String readUtf8() throws IOException {
+    scratch.writeUtf8(text);
+    return scratch.readUtf8();
+  }
+
+  @Benchmark
+  public int select() throws IOException {
+    scratch.write(REQUEST_LINE);
+    int result = scratch.select(HTTP_METHODS);
+    scratch.clear();
+    return result;
+  }
+}
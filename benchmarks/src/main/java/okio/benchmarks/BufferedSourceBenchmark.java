@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okio.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ByteString;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@code RealBufferedSource} reading from an upstream that, like a socket, returns at most
+ * {@link #chunk} bytes per read. This exercises the refill loop that sits between every codec and
+ * the network.
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BufferedSourceBenchmark {
+  private static final ByteString CRLF = ByteString.encodeUtf8("\r\n");
+
+  /** Total bytes in the stream. */
+  @Param({"8192", "1048576"})
+  int size;
+
+  /** Largest number of bytes the upstream returns per read. */
+  @Param({"1024", "8192"})
+  int chunk;
+
+  final Buffer data = new Buffer();
+  final Buffer upstream = new Buffer();
+
+  @Setup
+  public void setup() {
+    data.clear();
+    while (data.size() < size) {
+      data.writeUtf8("Content-Type: text/plain; charset=utf-8\r\n");
+    }
+  }
+
+  private BufferedSource newSource() {
+    upstream.clear();
+    data.copyTo(upstream, 0, data.size());
+    return Okio.buffer(new Source() {
+      @Override public long read(Buffer sink, long byteCount) throws IOException {
+        return upstream.read(sink, Math.min(byteCount, chunk));
+      }
+
+      @Override public Timeout timeout() {
+        return Timeout.NONE;
+      }
+
+      @Override public void close() {
+      }
+    });
+  }
+
+  @Benchmark
+  public void readUtf8LineStrict(Blackhole blackhole) throws IOException {
+    BufferedSource source = newSource();
+    while (!source.exhausted()) {
+      blackhole.consume(source.readUtf8LineStrict());
+    }
+  }
+
+  @Benchmark
+  public long indexOfCrlf() throws IOException {
+    BufferedSource source = newSource();
+    long count = 0;
+    for (long index; (index = source.indexOf(CRLF)) != -1; count++) {
+      source.skip(index + CRLF.size());
+    }
+    return count;
+  }
+
+  @Benchmark
+  public ByteString readByteString() throws IOException {
+    return newSource().readByteString();
+  }
+
+  @Benchmark
+  public long readAllToSink() throws IOException {
+    Buffer sink = new Buffer();
+    long result = newSource().readAll(sink);
+    sink.clear();
+    return result;
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 Square, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package okio.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import okio.Buffer;
+import okio.ByteString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link ByteString} hashing, decoding and copying, both for flat byte strings and for
+ * the {@code SegmentedByteString} instances returned by {@link Buffer#snapshot()}.
+ *
+ * <p>{@code hashCode()} and {@code utf8()} are memoized, so each operation measures a fresh
+ * instance: a snapshot for the segmented case and a {@link ByteString#of} copy for the flat case.
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ByteStringBenchmark {
+  @Param({"32", "8192", "131072"})
+  int size;
+
+  /** Either a single array ("flat") or a view over a buffer's segments ("segmented"). */
+  @Param({"flat", "segmented"})
+  String shape;
+
+  final Buffer buffer = new Buffer();
+  final Buffer scratch = new Buffer();
+  byte[] data;
+  ByteString byteString;
+
+  @Setup
+  public void setup() {
+    // A fixed seed so that every run measures the same bytes.
+    Random random = new Random(0);
+    data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) (' ' + random.nextInt('~' - ' '));
+    }
+    buffer.clear();
+    // Write in small pieces so that a snapshot spans several segments.
+    for (int i = 0; i < size; i += 1024) {
+      buffer.write(data, i, Math.min(1024, size - i));
+    }
+    byteString = fresh();
+  }
+
+  private ByteString fresh() {
+    return shape.equals("flat") ? ByteString.of(data) : buffer.snapshot();
+  }
+
+  @Benchmark
+  public int hashCodeFresh() {
+    return fresh().hashCode();
+  }
+
+  @Benchmark
+  public String utf8Fresh() {
+    return fresh().utf8();
+  }
+
+  @Benchmark
+  public byte[] toByteArray() {
+    return byteString.toByteArray();
+  }
+
+  @Benchmark
+  public long writeToBuffer() {
+    scratch.write(byteString);
+    long result = scratch.size();
+    scratch.clear();
+    return result;
+  }
+
+  @Benchmark
+  public boolean rangeEquals() {
+    return byteString.rangeEquals(0, data, 0, size);
+  }
+
+  @Benchmark
+  public ByteString substring() {
+    return byteString.substring(size / 4, size - size / 4);
+  }
+}